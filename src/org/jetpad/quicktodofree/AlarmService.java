@@ -18,19 +18,36 @@
 
 package org.jetpad.quicktodofree;
 
+import java.text.DateFormat;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jetpad.quicktodofree.QuickTodo.AlarmState;
+import org.jetpad.quicktodofree.QuickTodo.Reminders;
 import org.jetpad.quicktodofree.QuickTodo.Todo;
 
 import android.app.AlarmManager;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.ContentResolver;
 import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.IBinder;
+import android.preference.PreferenceManager;
 
 public class AlarmService extends Service {
+	/**
+	 * Boolean extra telling the service that the AlarmManager has lost
+	 * every alarm (e.g. after a reboot) so the stored state cannot be trusted.
+	 */
+	public static final String EXTRA_RESET = "reset";
+
     private static final String[] PROJECTION = new String[] {
         Todo._ID, // 0
         Todo.TITLE, // 1
@@ -39,6 +56,29 @@ public class AlarmService extends Service {
         Todo.NOTIFY_DATE, //4
         Todo.HAS_DUE_DATE //5
     };
+
+    private static final String[] STATE_PROJECTION = new String[] {
+        AlarmState._ID, // 0
+        AlarmState.FIRE_DATE, // 1
+        AlarmState.ARMED // 2
+    };
+
+    private static final String[] REMINDER_PROJECTION = new String[] {
+        Reminders.TODO_ID, // 0
+        Reminders.FIRE_DATE, // 1
+        Todo.TITLE, // 2
+        Todo.DUE_DATE // 3
+    };
+
+    /**
+     * Only reminders of open todos with a due date ever go off
+     */
+    private static final String REMINDER_SELECTION = "ifnull(" + Todo.COMPLETED + ",0)=0 AND "
+        + Todo.HAS_DUE_DATE + "!=0 AND " + Reminders.FIRE_DATE + ">?";
+
+    // Preference keys for the single reminder alarm
+    private static final String PREF_REMINDER_ARMED = "reminderArmedAt";
+    private static final String PREF_REMINDER_DELIVERED = "reminderDeliveredTo";
     
 	@Override
 	public IBinder onBind(Intent intent) {
@@ -48,50 +88,169 @@ public class AlarmService extends Service {
 	@Override
 	public void onStart(Intent i, int startId) {
 		super.onStart(i, startId);
-		if(i.getAction().equals("org.jetpad.quicktodofree.UPDATE_ALARM")) {
-			scheduleAlarms(i.getData(),false);
+		boolean reset = i.getBooleanExtra(EXTRA_RESET, false);
+		if(i.getAction().equals("org.jetpad.quicktodofree.UPDATE_ALARM")
+				|| i.getAction().equals("org.jetpad.quicktodofree.DELETE_ALARM")) {
+			scheduleAlarms(i.getData(),reset);
+			scheduleNextReminder(reset);
 		}
-		else if (i.getAction().equals("org.jetpad.quicktodofree.DELETE_ALARM")) {
-			scheduleAlarms(i.getData(),true);
+		else if (i.getAction().equals("org.jetpad.quicktodofree.FIRE_REMINDERS")) {
+			fireReminders();
+			scheduleNextReminder(true);
 		}
 		stopSelf();
 	  }
 
-	public void scheduleAlarms(Uri mUri,boolean cancel) {
-		Cursor cursor = getContentResolver().query(mUri, PROJECTION, null, null,
+	/**
+	 * Brings the alarms for the todos under mUri in line with their due
+	 * dates. The state last handed to the AlarmManager is kept in the
+	 * {@link AlarmState} table, and only items whose desired state differs
+	 * from it cause any AlarmManager or NotificationManager calls. Deleted
+	 * todos are found by their leftover state rows.
+	 */
+	public void scheduleAlarms(Uri mUri,boolean reset) {
+		ContentResolver cr = getContentResolver();
+		boolean single = Todo.CONTENT_ITEM_TYPE.equals(cr.getType(mUri));
+		Uri stateUri = single ? ContentUris.withAppendedId(AlarmState.CONTENT_URI,
+				ContentUris.parseId(mUri)) : AlarmState.CONTENT_URI;
+
+		// What we told the AlarmManager last time, keyed by todo id
+		HashMap<Long, long[]> stored = new HashMap<Long, long[]>();
+		Cursor state = cr.query(stateUri, STATE_PROJECTION, null, null, null);
+		if (state != null) {
+			while(state.moveToNext()) {
+				// After a reboot nothing is armed whatever the table says
+				stored.put(state.getLong(0), new long[] {
+						state.getLong(1), reset ? 0 : state.getInt(2) });
+			}
+			state.close();
+		}
+
+		Cursor cursor = cr.query(mUri, PROJECTION, null, null,
                 Todo.DEFAULT_SORT_ORDER);
-		cursor.moveToFirst();
-		while(!cursor.isAfterLast()) {
-			String title = cursor.getString(1);
-			Long duedate = cursor.getLong(2);
-			int completed = cursor.getInt(3);
-			int hasduedate =cursor.getInt(5);
-			Uri mUriLocal;
-			if(getContentResolver().getType(mUri).equals(Todo.CONTENT_ITEM_TYPE)) {
-				mUriLocal = mUri;
-			} else {
-				mUriLocal = ContentUris.withAppendedId(mUri, cursor.getInt(0));
+		if (cursor != null) {
+			while(cursor.moveToNext()) {
+				long id = cursor.getLong(0);
+				String title = cursor.getString(1);
+				long duedate = cursor.getLong(2);
+				int completed = cursor.getInt(3);
+				int hasduedate =cursor.getInt(5);
+				//Long reminder = cursor.getLong(4);
+				boolean armed = duedate != 0 && hasduedate != 0 && completed == 0;
+				reconcile(single ? mUri : ContentUris.withAppendedId(Todo.CONTENT_URI, id),
+						id, title, duedate, armed, stored.remove(id));
 			}
-			//Long reminder = cursor.getLong(4);
-			updateDueAlarm(mUriLocal,title,"Due Now!",duedate,true);
-			if(duedate != 0 && hasduedate != 0 && !cancel && completed == 0) {
-				updateDueAlarm(mUriLocal,title,"Due Now!",duedate,false);
+			cursor.close();
+		}
+
+		// Anything left over belongs to a todo that no longer exists
+		for (Map.Entry<Long, long[]> e : stored.entrySet()) {
+			long id = e.getKey();
+			reconcile(ContentUris.withAppendedId(Todo.CONTENT_URI, id), id, null, 0, false, e.getValue());
+			cr.delete(ContentUris.withAppendedId(AlarmState.CONTENT_URI, id), null, null);
+		}
+	}
+
+	/**
+	 * Arms a single alarm for the earliest upcoming reminder across all todos.
+	 * This is one indexed lookup however many reminders there are, and the
+	 * AlarmManager is only touched when that earliest reminder changes.
+	 */
+	public void scheduleNextReminder(boolean reset) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+		long delivered = prefs.getLong(PREF_REMINDER_DELIVERED, System.currentTimeMillis());
+		long armedAt = reset ? 0 : prefs.getLong(PREF_REMINDER_ARMED, 0);
+
+		long next = 0;
+		Cursor cursor = getContentResolver().query(
+				Reminders.CONTENT_URI.buildUpon().appendQueryParameter("limit", "1").build(),
+				REMINDER_PROJECTION, REMINDER_SELECTION, new String[] { String.valueOf(delivered) },
+				Reminders.DEFAULT_SORT_ORDER);
+		if (cursor != null) {
+			if (cursor.moveToFirst()) {
+				next = cursor.getLong(1);
 			}
-			cursor.moveToNext();
+			cursor.close();
+		}
+		if (next == armedAt) {
+			return;
+		}
+
+		AlarmManager am = (AlarmManager)getSystemService(ALARM_SERVICE);
+		Intent fire = new Intent(this, AlarmService.class);
+		fire.setAction("org.jetpad.quicktodofree.FIRE_REMINDERS");
+		PendingIntent p = PendingIntent.getService(this, 0, fire, 0);
+		if (next == 0) {
+			am.cancel(p);
+		} else {
+			am.set(AlarmManager.RTC_WAKEUP, next, p);
+		}
+		prefs.edit()
+			.putLong(PREF_REMINDER_ARMED, next)
+			.putLong(PREF_REMINDER_DELIVERED, delivered)
+			.commit();
+	}
+
+	/**
+	 * Posts a notification for every reminder that has come due since the
+	 * last delivery.
+	 */
+	private void fireReminders() {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+		long now = System.currentTimeMillis();
+		long delivered = prefs.getLong(PREF_REMINDER_DELIVERED, now);
+
+		Cursor cursor = getContentResolver().query(Reminders.CONTENT_URI, REMINDER_PROJECTION,
+				REMINDER_SELECTION + " AND " + Reminders.FIRE_DATE + "<=?",
+				new String[] { String.valueOf(delivered), String.valueOf(now) },
+				Reminders.DEFAULT_SORT_ORDER);
+		if (cursor != null) {
+			while (cursor.moveToNext()) {
+				Calendar c = Calendar.getInstance();
+				c.setTimeInMillis(cursor.getLong(3));
+				TodoAlarm.showNotification(this,
+						ContentUris.withAppendedId(Todo.CONTENT_URI, cursor.getLong(0)),
+						cursor.getString(2),
+						"Due at " + DateFormat.getTimeInstance(DateFormat.SHORT).format(c.getTime()),
+						cursor.getLong(1));
+			}
+			cursor.close();
+		}
+		prefs.edit().putLong(PREF_REMINDER_DELIVERED, now).commit();
+	}
+
+	private void reconcile(Uri mUri, long id, String title, long duedate, boolean armed, long[] last) {
+		boolean wasArmed = last != null && last[1] != 0;
+		if (armed == wasArmed && (!armed || last[0] == duedate)) {
+			// Nothing has changed since we last scheduled this item
+			return;
+		}
+		updateDueAlarm(mUri,title,"Due Now!",duedate,!armed);
+		if (title != null) {
+			ContentValues values = new ContentValues();
+			values.put(AlarmState._ID, id);
+			values.put(AlarmState.FIRE_DATE, duedate);
+			values.put(AlarmState.ARMED, armed ? 1 : 0);
+			getContentResolver().insert(AlarmState.CONTENT_URI, values);
 		}
 	}
     
 	private void updateDueAlarm(Uri mUri,String title, String notifyText, long millis,boolean cancel) {
         AlarmManager am = (AlarmManager)getSystemService(ALARM_SERVICE);
-        Intent alarm = new Intent(this,TodoAlarm.class);
-        alarm.setData(mUri);
-        alarm.setAction(Intent.ACTION_RUN);
-        alarm.putExtra("title", title);
-        alarm.putExtra("notifyText", notifyText);
-        alarm.putExtra("duedate", millis);
-        PendingIntent p = PendingIntent.getActivity(this, 0, alarm, 0);
+        PendingIntent p = ReminderReceiver.dueIntent(this, mUri, title, notifyText, millis);
+        // A snooze was for the due date this replaces
+        am.cancel(ReminderReceiver.snoozeIntent(this, mUri, title, notifyText, millis));
         if(cancel) {
         	am.cancel(p);
+
+        	// Alarms armed before the receiver took over started TodoAlarm
+        	Intent legacy = new Intent(this,TodoAlarm.class);
+        	legacy.setData(mUri);
+        	legacy.setAction(Intent.ACTION_RUN);
+        	PendingIntent old = PendingIntent.getActivity(this, 0, legacy, PendingIntent.FLAG_NO_CREATE);
+        	if (old != null) {
+        		am.cancel(old);
+        	}
         } else {
         	am.set(AlarmManager.RTC_WAKEUP,millis , p);
         }
@@ -0,0 +1,84 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import org.jetpad.quicktodofree.QuickTodo.Archive;
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+
+/**
+ * Background job that keeps the todo list down to live work. Once a day it
+ * moves todos that have been completed for a while into the archive, a small
+ * batch at a time, and optionally purges archived todos after a while.
+ */
+public class ArchiveService extends IntentService {
+    private static final long DAY_MILLIS = AlarmManager.INTERVAL_DAY;
+
+    /** Pause between batches so other writers get a look in */
+    private static final long BATCH_PAUSE_MILLIS = 50;
+
+    public ArchiveService() {
+        super("ArchiveService");
+    }
+
+    /**
+     * Makes sure the daily run is scheduled. Cheap to call repeatedly.
+     */
+    public static void schedule(Context context) {
+        Intent intent = new Intent(context, ArchiveService.class);
+        if (PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        am.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR, AlarmManager.INTERVAL_DAY,
+                PendingIntent.getService(context, 0, intent, 0));
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        long now = System.currentTimeMillis();
+
+        int archiveDays = Integer.parseInt(prefs.getString("archiveAfterDays", "0"));
+        if (archiveDays > 0) {
+            String[] cutoff = new String[] { String.valueOf(now - archiveDays * DAY_MILLIS) };
+            int moved;
+            do {
+                moved = getContentResolver().update(Archive.SWEEP_URI, null,
+                        Todo.MODIFIED_DATE + "<?", cutoff);
+                SystemClock.sleep(BATCH_PAUSE_MILLIS);
+            } while (moved > 0);
+        }
+
+        int purgeDays = Integer.parseInt(prefs.getString("purgeAfterDays", "0"));
+        if (purgeDays > 0) {
+            getContentResolver().delete(Archive.CONTENT_URI, Archive.ARCHIVED_DATE + "<?",
+                    new String[] { String.valueOf(now - purgeDays * DAY_MILLIS) });
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.util.HashMap;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Writes edits to todos behind the editor's back, on one thread shared by
+ * every editor so that writes land in the order they were made. Saves of
+ * the same todo that come in before it is written are merged, only the
+ * latest value of each column is written.
+ * <p>
+ * A new todo starts out as a draft that exists only here. It is inserted
+ * by its first save, so a todo given up on before then never touches the
+ * provider at all.
+ * <p>
+ * A write that fails is logged and its values kept, to be written again
+ * with the next save or after {@link #RETRY_DELAY_MILLIS}.
+ */
+final class AutosaveQueue implements Handler.Callback {
+    private static final String TAG = "AutosaveQueue";
+
+    private static final int MSG_WRITE = 1;
+
+    /** How long a failed write waits before it is tried again */
+    static final long RETRY_DELAY_MILLIS = 5000;
+
+    private static AutosaveQueue sInstance;
+
+    private static final class Pending {
+        final ContentValues values = new ContentValues();
+        /** Uptime at which the values are written */
+        long due;
+    }
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    /** Saves not yet written, guarded by itself */
+    private final HashMap<Uri, Pending> mPending = new HashMap<Uri, Pending>();
+
+    /**
+     * The list each draft goes into, and the todo each draft became once
+     * saved. Guarded by mPending.
+     */
+    private final HashMap<Uri, Uri> mDrafts = new HashMap<Uri, Uri>();
+    private final HashMap<Uri, Uri> mCreated = new HashMap<Uri, Uri>();
+    private int mNextDraft;
+
+    /**
+     * How many change notifications for each watched todo are our own
+     * writes, for editors that only care about everyone else's. Writes to
+     * a todo nobody watches are not counted, there is nobody to take them.
+     * Both guarded by mPending.
+     */
+    private final HashMap<Uri, Integer> mOwnChanges = new HashMap<Uri, Integer>();
+    private final HashMap<Uri, Integer> mWatchers = new HashMap<Uri, Integer>();
+
+    static synchronized AutosaveQueue get(Context context) {
+        if (sInstance == null) {
+            sInstance = new AutosaveQueue(context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+
+    /**
+     * A queue of its own writing through resolver, for tests. Everything
+     * else shares the one from {@link #get(Context)}.
+     */
+    AutosaveQueue(ContentResolver resolver) {
+        mResolver = resolver;
+        HandlerThread thread = new HandlerThread("AutosaveQueue");
+        thread.start();
+        mHandler = new Handler(thread.getLooper(), this);
+    }
+
+    /**
+     * Starts a new todo for the list at directory. The draft uri stands in
+     * for the todo in every call here until it is saved, and can be
+     * looked up with {@link #created(Uri)} after that.
+     */
+    Uri draft(Uri directory) {
+        synchronized (mPending) {
+            Uri draft = directory.buildUpon().fragment("draft" + mNextDraft++).build();
+            mDrafts.put(draft, directory);
+            return draft;
+        }
+    }
+
+    /**
+     * Forgets a draft once its editor has no more use for it, after the
+     * work queued for it so far. Anything still waiting to be saved for it
+     * is written first.
+     */
+    void release(final Uri draft) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                Pending pending;
+                synchronized (mPending) {
+                    pending = mPending.remove(draft);
+                }
+                if (pending != null && !write(draft, pending.values)) {
+                    // Still needed to find the todo by, until the write goes through
+                    requeue(draft, pending.values);
+                    mHandler.postDelayed(this, RETRY_DELAY_MILLIS);
+                    return;
+                }
+                synchronized (mPending) {
+                    mDrafts.remove(draft);
+                    mCreated.remove(draft);
+                }
+            }
+        });
+    }
+
+    /**
+     * The todo a draft became, or null if it has not been written yet.
+     */
+    Uri created(Uri draft) {
+        synchronized (mPending) {
+            return mCreated.get(draft);
+        }
+    }
+
+    /**
+     * Writes values to uri once no other save of uri has come in for
+     * delayMillis. Values saved earlier and not yet written are kept
+     * unless these replace them.
+     */
+    void save(Uri uri, ContentValues values, long delayMillis) {
+        long due = SystemClock.uptimeMillis() + delayMillis;
+        synchronized (mPending) {
+            Pending pending = mPending.get(uri);
+            if (pending == null) {
+                pending = new Pending();
+                mPending.put(uri, pending);
+            }
+            pending.values.putAll(values);
+            pending.due = due;
+        }
+        mHandler.sendMessageAtTime(mHandler.obtainMessage(MSG_WRITE, uri), due);
+    }
+
+    /**
+     * Writes whatever is waiting for uri now, without waiting for it to be
+     * written.
+     */
+    void flush(Uri uri) {
+        synchronized (mPending) {
+            Pending pending = mPending.get(uri);
+            if (pending == null) {
+                return;
+            }
+            pending.due = 0;
+        }
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_WRITE, uri));
+    }
+
+    /**
+     * Runs task on the writer, after everything queued before it.
+     */
+    void post(Runnable task) {
+        mHandler.post(task);
+    }
+
+    /**
+     * Drops any save waiting for uri and deletes it, after the writes
+     * already under way.
+     */
+    void delete(final Uri uri) {
+        synchronized (mPending) {
+            mPending.remove(uri);
+        }
+        mHandler.post(new Runnable() {
+            public void run() {
+                Uri target = resolve(uri);
+                if (target != null) {
+                    mResolver.delete(target, null, null);
+                }
+                synchronized (mPending) {
+                    if (mDrafts.containsKey(uri)) {
+                        // Still a draft, but one that must never be written
+                        mDrafts.put(uri, null);
+                        mCreated.remove(uri);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * The todo to write for uri, or null for a draft that has never been
+     * saved.
+     */
+    Uri resolve(Uri uri) {
+        synchronized (mPending) {
+            if (!mDrafts.containsKey(uri)) {
+                return uri;
+            }
+            return mCreated.get(uri);
+        }
+    }
+
+    /**
+     * Starts counting our own writes to uri, for an observer of it that
+     * calls {@link #takeOwnChange(Uri)}. Each call is undone by one call
+     * of {@link #unwatch(Uri)} when the observer goes.
+     */
+    void watch(Uri uri) {
+        synchronized (mPending) {
+            Integer count = mWatchers.get(uri);
+            mWatchers.put(uri, count == null ? 1 : count + 1);
+        }
+    }
+
+    void unwatch(Uri uri) {
+        synchronized (mPending) {
+            Integer count = mWatchers.get(uri);
+            if (count == null || count == 1) {
+                mWatchers.remove(uri);
+                // Nobody is left to take these
+                mOwnChanges.remove(uri);
+            } else {
+                mWatchers.put(uri, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Whether a change notification for uri came from one of our writes.
+     * Each write answers true once.
+     */
+    boolean takeOwnChange(Uri uri) {
+        synchronized (mPending) {
+            Integer count = mOwnChanges.get(uri);
+            if (count == null) {
+                return false;
+            }
+            if (count == 1) {
+                mOwnChanges.remove(uri);
+            } else {
+                mOwnChanges.put(uri, count - 1);
+            }
+            return true;
+        }
+    }
+
+    public boolean handleMessage(Message msg) {
+        Uri uri = (Uri) msg.obj;
+        ContentValues values;
+        synchronized (mPending) {
+            Pending pending = mPending.get(uri);
+            if (pending == null || pending.due > SystemClock.uptimeMillis()) {
+                // Already written, or a later save pushed it back and has
+                // a message of its own
+                return true;
+            }
+            mPending.remove(uri);
+            values = pending.values;
+        }
+        if (!write(uri, values)) {
+            requeue(uri, values);
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_WRITE, uri), RETRY_DELAY_MILLIS);
+        }
+        return true;
+    }
+
+    /**
+     * Puts the values of a failed write back in front of anything saved
+     * for uri since, which replaces them where they overlap.
+     */
+    private void requeue(Uri uri, ContentValues values) {
+        long due = SystemClock.uptimeMillis() + RETRY_DELAY_MILLIS;
+        synchronized (mPending) {
+            Pending pending = mPending.get(uri);
+            if (pending == null) {
+                pending = new Pending();
+                pending.due = due;
+                mPending.put(uri, pending);
+            }
+            ContentValues newer = new ContentValues(pending.values);
+            pending.values.clear();
+            pending.values.putAll(values);
+            pending.values.putAll(newer);
+        }
+    }
+
+    /**
+     * Writes values to uri, inserting a draft's todo the first time. False
+     * if the write failed and should be tried again.
+     */
+    private boolean write(Uri uri, ContentValues values) {
+        Uri target = resolve(uri);
+        if (target != null) {
+            boolean counted;
+            synchronized (mPending) {
+                // Counted first, the notification may be delivered before
+                // update returns. Taken back if the write fails.
+                counted = mWatchers.containsKey(target);
+                if (counted) {
+                    Integer count = mOwnChanges.get(target);
+                    mOwnChanges.put(target, count == null ? 1 : count + 1);
+                }
+            }
+            try {
+                mResolver.update(target, values, null, null);
+                return true;
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to save " + target + ", will try again", e);
+                if (counted) {
+                    takeOwnChange(target);
+                }
+                return false;
+            }
+        }
+        Uri directory;
+        synchronized (mPending) {
+            directory = mDrafts.get(uri);
+        }
+        if (directory != null) {
+            Uri created;
+            try {
+                created = mResolver.insert(directory, values);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Failed to insert into " + directory + ", will try again", e);
+                return false;
+            }
+            if (created == null) {
+                Log.w(TAG, "Failed to insert into " + directory + ", will try again");
+                return false;
+            }
+            synchronized (mPending) {
+                mCreated.put(uri, created);
+            }
+        }
+        return true;
+    }
+}
@@ -29,7 +29,12 @@ public class BootHelper extends BroadcastReceiver {
 	@Override
 	public void onReceive(Context context, Intent intent) {
 		if(Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
-		  context.startService(new Intent("org.jetpad.quicktodofree.UPDATE_ALARM",Todo.CONTENT_URI));
+		  // The AlarmManager forgets everything on reboot
+		  context.startService(new Intent("org.jetpad.quicktodofree.UPDATE_ALARM",Todo.CONTENT_URI)
+				  .putExtra(AlarmService.EXTRA_RESET, true));
+		  ArchiveService.schedule(context);
+		  MaintenanceService.schedule(context);
+		  DayChangeReceiver.schedule(context);
 		}
 	}
 }
@@ -0,0 +1,504 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jetpad.quicktodofree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.jetpad.quicktodofree.QuickTodo.Archive;
+import org.jetpad.quicktodofree.QuickTodo.Folders;
+import org.jetpad.quicktodofree.QuickTodo.Reminders;
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * A backup of the data alone, without the free pages, indexes and page
+ * overhead of a copy of the database file. Rows go in blocks of up to
+ * {@link #BLOCK_ROWS}, each column of a block stored together: dates and
+ * ids as varint differences from the row before, flags packed eight to a
+ * byte, and text Deflate compressed. Every block carries a CRC32, and a
+ * backup is only restored once all of it has been checked.
+ * <p>
+ * Both directions stream through the provider a block at a time, so memory
+ * use does not grow with the number of todos.
+ */
+final class CompactBackup {
+    private static final int MAGIC = 0x51544231; // "QTB1"
+    private static final int VERSION = 1;
+
+    /** Rows per block, a block is the most that is ever held in memory */
+    static final int BLOCK_ROWS = 256;
+
+    /** No real block comes near this, a bigger length means a damaged file */
+    private static final int MAX_BLOCK_BYTES = 16 * 1024 * 1024;
+
+    // How a column is stored
+    private static final int DELTA = 0;
+    private static final int NUMBER = 1;
+    private static final int FLAG = 2;
+    private static final int TEXT = 3;
+
+    private static final int END = 0;
+    private static final int FOLDERS = 1;
+    private static final int TODOS = 2;
+    private static final int ARCHIVE = 3;
+    private static final int REMINDERS = 4;
+
+    private static final String[] TODO_COLUMNS = {
+        Todo._ID, Todo.CREATED_DATE, Todo.MODIFIED_DATE, Todo.DUE_DATE, Todo.HAS_DUE_DATE, Todo.COMPLETED,
+        Todo.PRIORITY, Todo.FOLDER, Todo.TITLE, Todo.NOTE, Todo.RRULE, Todo.TAGS,
+    };
+    private static final int[] TODO_TYPES = {
+        DELTA, DELTA, DELTA, DELTA, FLAG, FLAG,
+        NUMBER, NUMBER, TEXT, TEXT, TEXT, TEXT,
+    };
+
+    /**
+     * What goes in a backup, in the order it is restored: folders before
+     * the todos in them, todos before their reminders.
+     */
+    private static final Section[] SECTIONS = {
+        new Section(FOLDERS, Folders.CONTENT_URI,
+                new String[] { Folders._ID, Folders.NAME }, new int[] { DELTA, TEXT }),
+        new Section(TODOS, Todo.CONTENT_URI, TODO_COLUMNS, TODO_TYPES),
+        new Section(ARCHIVE, Archive.CONTENT_URI, TODO_COLUMNS, TODO_TYPES),
+        new Section(REMINDERS, Reminders.CONTENT_URI,
+                new String[] { Reminders.TODO_ID, Reminders.MINUTES_BEFORE }, new int[] { DELTA, NUMBER }),
+    };
+
+    private static final class Section {
+        final int kind;
+        final Uri uri;
+        final String[] columns;
+        final int[] types;
+
+        Section(int kind, Uri uri, String[] columns, int[] types) {
+            this.kind = kind;
+            this.uri = uri;
+            this.columns = columns;
+            this.types = types;
+        }
+    }
+
+    private CompactBackup() {
+    }
+
+    /**
+     * Writes everything in the provider to file.
+     */
+    static void backup(ContentResolver cr, File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            writeVarint(out, VERSION);
+            for (Section section : SECTIONS) {
+                Cursor c = cr.query(section.uri, section.columns, null, null, null);
+                if (c == null) {
+                    continue;
+                }
+                try {
+                    out.writeByte(section.kind);
+                    List<Object[]> rows = new ArrayList<Object[]>(BLOCK_ROWS);
+                    while (c.moveToNext()) {
+                        rows.add(readRow(c, section));
+                        if (rows.size() == BLOCK_ROWS) {
+                            writeBlock(out, section, rows);
+                            rows.clear();
+                        }
+                    }
+                    if (rows.size() > 0) {
+                        writeBlock(out, section, rows);
+                    }
+                    writeVarint(out, 0);
+                } finally {
+                    c.close();
+                }
+            }
+            out.writeByte(END);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Replaces everything in the provider with the contents of file. The
+     * file is checked through first, a damaged backup changes nothing.
+     * Archived todos come back as completed todos, and go back to the
+     * archive with the next sweep.
+     */
+    static void restore(ContentResolver cr, File file) throws IOException {
+        read(null, file);
+
+        cr.delete(Todo.CONTENT_URI, null, null);
+        cr.delete(Archive.CONTENT_URI, null, null);
+        Cursor c = cr.query(Folders.CONTENT_URI, new String[] { Folders._ID }, null, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    cr.delete(ContentUris.withAppendedId(Folders.CONTENT_URI, c.getLong(0)), null, null);
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        read(cr, file);
+    }
+
+    /**
+     * Reads file through, checking every block, and restores each block
+     * through cr unless cr is null.
+     */
+    private static void read(ContentResolver cr, File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || readVarint(in) != VERSION) {
+                throw new IOException("Not a QuickTodo backup");
+            }
+            int kind;
+            while ((kind = in.readUnsignedByte()) != END) {
+                Section section = null;
+                for (Section s : SECTIONS) {
+                    if (s.kind == kind) {
+                        section = s;
+                    }
+                }
+                if (section == null) {
+                    throw new IOException("Backup is damaged");
+                }
+                int count;
+                while ((count = (int) readVarint(in)) != 0) {
+                    ContentValues[] rows = readBlock(in, section, count);
+                    if (cr != null) {
+                        restoreBlock(cr, section, rows);
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("Backup is cut short");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void restoreBlock(ContentResolver cr, Section section, ContentValues[] rows) {
+        switch (section.kind) {
+        case FOLDERS:
+            for (ContentValues row : rows) {
+                cr.insert(Folders.CONTENT_URI, row);
+            }
+            break;
+
+        case ARCHIVE:
+            for (ContentValues row : rows) {
+                row.put(Todo.COMPLETED, 1);
+            }
+            // Fall through, they go in as todos
+        case TODOS:
+            cr.bulkInsert(Todo.CONTENT_URI, rows);
+            break;
+
+        case REMINDERS:
+            for (ContentValues row : rows) {
+                Uri todo = ContentUris.withAppendedId(Todo.CONTENT_URI, row.getAsLong(Reminders.TODO_ID));
+                row.remove(Reminders.TODO_ID);
+                cr.insert(Uri.withAppendedPath(todo, Reminders.CONTENT_DIRECTORY), row);
+            }
+            break;
+        }
+    }
+
+    private static Object[] readRow(Cursor c, Section section) {
+        Object[] row = new Object[section.columns.length];
+        for (int i = 0; i < row.length; i++) {
+            if (c.isNull(i)) {
+                continue;
+            }
+            row[i] = section.types[i] == TEXT ? (Object) c.getString(i) : (Object) Long.valueOf(c.getLong(i));
+        }
+        return row;
+    }
+
+    private static void writeBlock(DataOutputStream out, Section section, List<Object[]> rows) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (int i = 0; i < section.columns.length; i++) {
+            writeColumn(payload, section.types[i], rows, i);
+        }
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        writeVarint(out, rows.size());
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static ContentValues[] readBlock(DataInputStream in, Section section, int count) throws IOException {
+        byte[] bytes = new byte[length(in)];
+        in.readFully(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if (in.readInt() != (int) crc.getValue()) {
+            throw new IOException("Backup is damaged");
+        }
+
+        ContentValues[] rows = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = new ContentValues();
+        }
+        DataInputStream payload = new DataInputStream(new ByteArrayInputStream(bytes));
+        for (int i = 0; i < section.columns.length; i++) {
+            readColumn(payload, section.types[i], section.columns[i], rows);
+        }
+        return rows;
+    }
+
+    /**
+     * A column is a bitmap of which rows have a value, then the values of
+     * those rows.
+     */
+    private static void writeColumn(ByteArrayOutputStream out, int type, List<Object[]> rows, int column)
+            throws IOException {
+        boolean[] present = new boolean[rows.size()];
+        for (int i = 0; i < present.length; i++) {
+            present[i] = rows.get(i)[column] != null;
+        }
+        writeBits(out, present);
+
+        switch (type) {
+        case DELTA:
+        case NUMBER:
+            long previous = 0;
+            for (Object[] row : rows) {
+                if (row[column] != null) {
+                    long value = (Long) row[column];
+                    writeVarint(out, zigzag(value - previous));
+                    if (type == DELTA) {
+                        previous = value;
+                    }
+                }
+            }
+            break;
+
+        case FLAG:
+            List<Boolean> flags = new ArrayList<Boolean>();
+            for (Object[] row : rows) {
+                if (row[column] != null) {
+                    flags.add((Long) row[column] != 0);
+                }
+            }
+            boolean[] bits = new boolean[flags.size()];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = flags.get(i);
+            }
+            writeBits(out, bits);
+            break;
+
+        case TEXT:
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            for (Object[] row : rows) {
+                if (row[column] != null) {
+                    byte[] utf8 = ((String) row[column]).getBytes("UTF-8");
+                    writeVarint(text, utf8.length);
+                    text.write(utf8);
+                }
+            }
+            byte[] raw = text.toByteArray();
+            byte[] compressed = deflate(raw);
+            writeVarint(out, raw.length);
+            writeVarint(out, compressed.length);
+            out.write(compressed);
+            break;
+        }
+    }
+
+    private static void readColumn(DataInputStream in, int type, String name, ContentValues[] rows)
+            throws IOException {
+        boolean[] present = readBits(in, rows.length);
+        int count = 0;
+        for (boolean p : present) {
+            if (p) {
+                count++;
+            }
+        }
+
+        switch (type) {
+        case DELTA:
+        case NUMBER:
+            long previous = 0;
+            for (int i = 0; i < rows.length; i++) {
+                if (present[i]) {
+                    long value = previous + unzigzag(readVarint(in));
+                    rows[i].put(name, value);
+                    if (type == DELTA) {
+                        previous = value;
+                    }
+                }
+            }
+            break;
+
+        case FLAG:
+            boolean[] bits = readBits(in, count);
+            for (int i = 0, j = 0; i < rows.length; i++) {
+                if (present[i]) {
+                    rows[i].put(name, bits[j++] ? 1 : 0);
+                }
+            }
+            break;
+
+        case TEXT:
+            byte[] raw = new byte[length(in)];
+            byte[] compressed = new byte[length(in)];
+            in.readFully(compressed);
+            inflate(compressed, raw);
+            DataInputStream text = new DataInputStream(new ByteArrayInputStream(raw));
+            for (int i = 0; i < rows.length; i++) {
+                if (present[i]) {
+                    byte[] utf8 = new byte[length(text)];
+                    text.readFully(utf8);
+                    rows[i].put(name, new String(utf8, "UTF-8"));
+                }
+            }
+            break;
+        }
+
+        for (int i = 0; i < rows.length; i++) {
+            if (!present[i]) {
+                rows[i].putNull(name);
+            }
+        }
+    }
+
+    static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 16);
+            byte[] buf = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static void inflate(byte[] compressed, byte[] raw) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int n = 0;
+            while (n < raw.length) {
+                int got = inflater.inflate(raw, n, raw.length - n);
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Backup is damaged");
+                }
+                n += got;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Backup is damaged");
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static void writeBits(ByteArrayOutputStream out, boolean[] bits) {
+        for (int i = 0; i < bits.length; i += 8) {
+            int b = 0;
+            for (int j = 0; j < 8 && i + j < bits.length; j++) {
+                if (bits[i + j]) {
+                    b |= 1 << j;
+                }
+            }
+            out.write(b);
+        }
+    }
+
+    static boolean[] readBits(DataInputStream in, int count) throws IOException {
+        boolean[] bits = new boolean[count];
+        for (int i = 0; i < count; i += 8) {
+            int b = in.readUnsignedByte();
+            for (int j = 0; j < 8 && i + j < count; j++) {
+                bits[i + j] = (b & (1 << j)) != 0;
+            }
+        }
+        return bits;
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static int length(DataInputStream in) throws IOException {
+        long length = readVarint(in);
+        if (length > MAX_BLOCK_BYTES) {
+            throw new IOException("Backup is damaged");
+        }
+        return (int) length;
+    }
+
+    static long readVarint(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Backup is damaged");
+    }
+}
@@ -20,6 +20,8 @@ package org.jetpad.quicktodofree;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
@@ -28,9 +30,8 @@ import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Application;
 import android.app.ProgressDialog;
-import android.content.ContentValues;
 import android.content.DialogInterface;
-import android.net.Uri;
+import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
@@ -43,10 +44,20 @@ import android.widget.Toast;
 
 public class DataManager extends Activity {
 
+
+   /** The compact backup, see {@link CompactBackup} */
+   private static final String COMPACT_BACKUP_NAME = "QuickTodo.qtb";
+
+   /** A list from elsewhere to add to ours, see {@link ImportPipeline} */
+   private static final String CSV_IMPORT_NAME = "import.csv";
+
    private Application application;
 
    private Button exportDbToSdButton;
    private Button importDbFromSdButton;
+   private Button exportCompactButton;
+   private Button importCompactButton;
+   private Button importCsvButton;
    private Button clearDbButton;
 
    @Override
@@ -108,6 +119,54 @@ public class DataManager extends Activity {
          }
       });
 
+      exportCompactButton = (Button) findViewById(R.id.exportcompactbutton);
+      exportCompactButton.setOnClickListener(new OnClickListener() {
+         public void onClick(final View v) {
+            if (isExternalStorageAvail()) {
+               new CompactBackupTask(true).execute();
+            } else {
+               Toast.makeText(DataManager.this,
+                        "External storage is not available, unable to export data.", Toast.LENGTH_SHORT)
+                        .show();
+            }
+         }
+      });
+
+      importCompactButton = (Button) findViewById(R.id.importcompactbutton);
+      importCompactButton.setOnClickListener(new OnClickListener() {
+         public void onClick(final View v) {
+            new AlertDialog.Builder(DataManager.this).setMessage(
+                     "Are you sure (this will overwrite existing current data)?").setPositiveButton("Yes",
+                     new DialogInterface.OnClickListener() {
+                        public void onClick(DialogInterface arg0, int arg1) {
+                           if (isExternalStorageAvail()) {
+                              new CompactBackupTask(false).execute();
+                           } else {
+                              Toast.makeText(DataManager.this,
+                                       "External storage is not available, unable to import data.", Toast.LENGTH_SHORT)
+                                       .show();
+                           }
+                        }
+                     }).setNegativeButton("No", new DialogInterface.OnClickListener() {
+               public void onClick(DialogInterface arg0, int arg1) {
+               }
+            }).show();
+         }
+      });
+
+      importCsvButton = (Button) findViewById(R.id.importcsvbutton);
+      importCsvButton.setOnClickListener(new OnClickListener() {
+         public void onClick(final View v) {
+            if (isExternalStorageAvail()) {
+               new ImportCsvTask().execute();
+            } else {
+               Toast.makeText(DataManager.this,
+                        "External storage is not available, unable to import data.", Toast.LENGTH_SHORT)
+                        .show();
+            }
+         }
+      });
+
       clearDbButton = (Button) findViewById(R.id.cleardbutton);
       clearDbButton.setOnClickListener(new OnClickListener() {
          public void onClick(final View v) {
@@ -154,14 +213,8 @@ public class DataManager extends Activity {
          }
          File file = new File(exportDir, dbFile.getName());
 
-         try {
-            file.createNewFile();
-            FileUtil.copyFile(dbFile, file);
-            return true;
-         } catch (IOException e) {
-            
-            return false;
-         }
+         // The provider copies the file, so that no write lands half way through
+         return TodoProvider.backupDatabase(file);
       }
 
       // can use UI thread here
@@ -178,6 +231,118 @@ public class DataManager extends Activity {
       }
    }
 
+   /**
+    * Writes or restores the compact backup. Both go through the provider,
+    * so unlike the file copy the app carries on with the data as it is.
+    */
+   private class CompactBackupTask extends AsyncTask<Void, Void, String> {
+      private final ProgressDialog dialog = new ProgressDialog(DataManager.this);
+      private final boolean export;
+
+      CompactBackupTask(boolean export) {
+         this.export = export;
+      }
+
+      @Override
+      protected void onPreExecute() {
+         dialog.setMessage(export ? "Exporting backup..." : "Importing backup...");
+         dialog.show();
+      }
+
+      @Override
+      protected String doInBackground(final Void... args) {
+         File dir = new File(Environment.getExternalStorageDirectory(), "QuickTodo");
+         File file = new File(dir, COMPACT_BACKUP_NAME);
+         try {
+            if (export) {
+               dir.mkdirs();
+               CompactBackup.backup(getContentResolver(), file);
+            } else {
+               if (!file.canRead()) {
+                  return "Backup file does not exist or is not readable, cannot import.";
+               }
+               CompactBackup.restore(getContentResolver(), file);
+               startService(new Intent("org.jetpad.quicktodofree.UPDATE_ALARM", QuickTodo.Todo.CONTENT_URI)
+                        .putExtra(AlarmService.EXTRA_RESET, true));
+            }
+            return null;
+         } catch (IOException e) {
+            return e.getMessage();
+         }
+      }
+
+      @Override
+      protected void onPostExecute(final String errMsg) {
+         if (dialog.isShowing()) {
+            dialog.dismiss();
+         }
+         String what = export ? "Export" : "Import";
+         if (errMsg == null) {
+            Toast.makeText(DataManager.this, what + " successful!", Toast.LENGTH_SHORT).show();
+         } else {
+            Toast.makeText(DataManager.this, what + " failed - " + errMsg, Toast.LENGTH_SHORT).show();
+         }
+      }
+   }
+
+   /**
+    * Adds the todos in the CSV file to the ones we have.
+    */
+   private class ImportCsvTask extends AsyncTask<Void, Integer, String> {
+      private final ProgressDialog dialog = new ProgressDialog(DataManager.this);
+
+      @Override
+      protected void onPreExecute() {
+         dialog.setMessage("Importing todos...");
+         dialog.show();
+      }
+
+      @Override
+      protected String doInBackground(final Void... args) {
+         File file = new File(new File(Environment.getExternalStorageDirectory(), "QuickTodo"), CSV_IMPORT_NAME);
+         if (!file.canRead()) {
+            return "QuickTodo/" + CSV_IMPORT_NAME + " does not exist or is not readable, cannot import.";
+         }
+         try {
+            Reader csv = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            ImportPipeline.Result result;
+            try {
+               result = new ImportPipeline(getContentResolver(), Runtime.getRuntime().availableProcessors())
+                        .run(csv, new ImportPipeline.Listener() {
+                  public void onProgress(int read, int imported, int failed) {
+                     publishProgress(imported, failed);
+                  }
+               });
+            } finally {
+               csv.close();
+            }
+            StringBuilder message = new StringBuilder();
+            message.append(result.imported).append(" todos imported");
+            if (result.failed > 0) {
+               message.append(", ").append(result.failed).append(" skipped");
+               // The first one is usually enough to see what is wrong with the file
+               message.append(" (line ").append(result.errors.get(0)).append(")");
+            }
+            return message.toString();
+         } catch (IOException e) {
+            return "Import failed - " + e.getMessage();
+         }
+      }
+
+      @Override
+      protected void onProgressUpdate(final Integer... progress) {
+         dialog.setMessage("Importing todos... " + progress[0] + " done");
+      }
+
+      @Override
+      protected void onPostExecute(final String message) {
+         if (dialog.isShowing()) {
+            dialog.dismiss();
+         }
+         Toast.makeText(DataManager.this, message, Toast.LENGTH_LONG).show();
+      }
+   }
+
    private class ImportDatabaseTask extends AsyncTask<Void, Void, String> {
       private final ProgressDialog dialog = new ProgressDialog(DataManager.this);
 
@@ -198,21 +363,15 @@ public class DataManager extends Activity {
             return "Database backup file exists, but is not readable, cannot import.";
          }
 
-         File dbFile = new File(Environment.getDataDirectory() + "/data/org.jetpad.quicktodofree/databases/QuickTodo.db");
-         if (dbFile.exists()) {
-            dbFile.delete();
-         }
-
-         try {
-            dbFile.createNewFile();
-            FileUtil.copyFile(dbBackupFile, dbFile);
-            getContentResolver().insert(Uri.parse("content://" + QuickTodo.AUTHORITY + "/reset"), new ContentValues());
-            //DataManager.this.application.getDataHelper().resetDbConnection();
-            return null;
-         } catch (IOException e) {
-            
-            return e.getMessage();
+         // The provider closes the database while it swaps the file in
+         if (!TodoProvider.restoreDatabase(dbBackupFile)) {
+            return "Database backup file could not be copied, nothing was imported.";
          }
+         // The imported alarm state describes another AlarmManager, rebuild it
+         startService(new Intent("org.jetpad.quicktodofree.UPDATE_ALARM", QuickTodo.Todo.CONTENT_URI)
+                  .putExtra(AlarmService.EXTRA_RESET, true));
+         //DataManager.this.application.getDataHelper().resetDbConnection();
+         return null;
       }
 
 
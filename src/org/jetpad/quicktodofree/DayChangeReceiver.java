@@ -0,0 +1,62 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.util.Calendar;
+
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Moves todos into the right agenda bucket when the day changes: at local
+ * midnight, and whenever the clock or the timezone is changed.
+ */
+public class DayChangeReceiver extends BroadcastReceiver {
+    private static final String ACTION_MIDNIGHT = "org.jetpad.quicktodofree.MIDNIGHT";
+
+    /**
+     * Sets the alarm for the coming midnight, replacing any earlier one.
+     */
+    public static void schedule(Context context) {
+        Calendar c = Calendar.getInstance();
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 1);
+        c.set(Calendar.MILLISECOND, 0);
+        c.add(Calendar.DAY_OF_MONTH, 1);
+
+        // Not a wakeup alarm, if the phone is asleep nobody is looking at the list
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        am.set(AlarmManager.RTC, c.getTimeInMillis(), PendingIntent.getBroadcast(context, 0,
+                new Intent(ACTION_MIDNIGHT, null, context, DayChangeReceiver.class),
+                PendingIntent.FLAG_UPDATE_CURRENT));
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        // The provider only does the work if the local day really changed
+        context.getContentResolver().update(Todo.BUCKETS_URI, null, null, null);
+        schedule(context);
+    }
+}
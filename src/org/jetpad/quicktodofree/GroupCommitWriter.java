@@ -0,0 +1,256 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+/**
+ * Runs every write to the database on one thread. Writes that queue up
+ * while a group is being committed are committed together as the next
+ * group, in one transaction and so with one sync to disk, and each caller
+ * still waits for and gets back its own result. A lone writer never waits
+ * for company. What a write does outside the database, such as telling
+ * observers, is put off with {@link #afterCommit} until its group has
+ * committed.
+ */
+final class GroupCommitWriter implements Runnable {
+    private static final String TAG = "GroupCommitWriter";
+
+    /** The most writes that share one transaction */
+    private static final int MAX_GROUP = 64;
+
+    interface Write<T> {
+        T run();
+    }
+
+    private static final class Task<T> {
+        final Write<T> write;
+        final boolean alone;
+        final CountDownLatch done = new CountDownLatch(1);
+        /** What the write left to do once it is committed */
+        final List<Runnable> effects = new ArrayList<Runnable>();
+        T result;
+        Throwable error;
+
+        Task(Write<T> write, boolean alone) {
+            this.write = write;
+            this.alone = alone;
+        }
+
+        /**
+         * Runs the write, keeping its result or error for the caller.
+         *
+         * @return false if the write failed
+         */
+        boolean execute() {
+            // A retried write asks for its effects again
+            effects.clear();
+            try {
+                result = write.run();
+                error = null;
+                return true;
+            } catch (Throwable e) {
+                result = null;
+                error = e;
+                return false;
+            }
+        }
+
+        T get() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // The write is under way whatever happens, wait it out
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            if (error instanceof Error) {
+                throw (Error) error;
+            }
+            return result;
+        }
+    }
+
+    private final SQLiteOpenHelper mHelper;
+    private final Runnable mOnCommit;
+    private final Runnable mOnRollback;
+    private final LinkedBlockingQueue<Task<?>> mQueue = new LinkedBlockingQueue<Task<?>>();
+    private final Thread mThread;
+    /** The write running now, only touched on the writer thread */
+    private Task<?> mCurrent;
+
+    /**
+     * @param onCommit run on the writer once writes are in, before their
+     *            effects and before their callers get their results, to drop
+     *            anything cached from before them
+     * @param onRollback run on the writer when a group had to be rolled
+     *            back, to drop anything cached from the writes in it
+     */
+    GroupCommitWriter(SQLiteOpenHelper helper, Runnable onCommit, Runnable onRollback) {
+        mHelper = helper;
+        mOnCommit = onCommit;
+        mOnRollback = onRollback;
+        mThread = new Thread(this, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Runs write on the writer thread and returns its result once it is
+     * committed. A write that must not share a transaction, because it
+     * manages the database itself, is run alone.
+     */
+    <T> T submit(Write<T> write, boolean alone) {
+        if (Thread.currentThread() == mThread) {
+            // A write that writes through the provider again
+            return write.run();
+        }
+        Task<T> task = new Task<T>(write, alone);
+        mQueue.add(task);
+        return task.get();
+    }
+
+    /**
+     * Runs effect once the write that is running now has committed, or
+     * never if it is rolled back. Outside of a write it runs straight away.
+     */
+    void afterCommit(Runnable effect) {
+        if (Thread.currentThread() == mThread && mCurrent != null) {
+            mCurrent.effects.add(effect);
+        } else {
+            effect.run();
+        }
+    }
+
+    public void run() {
+        List<Task<?>> group = new ArrayList<Task<?>>();
+        Task<?> next = null;
+        while (true) {
+            if (next == null) {
+                try {
+                    next = mQueue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            group.add(next);
+            next = null;
+            if (!group.get(0).alone) {
+                // Everything that queued up while the last group committed
+                while (group.size() < MAX_GROUP && (next = mQueue.poll()) != null && !next.alone) {
+                    group.add(next);
+                    next = null;
+                }
+            }
+            commit(group);
+            group.clear();
+        }
+    }
+
+    private void commit(List<Task<?>> group) {
+        if (group.size() == 1) {
+            finish(group.get(0));
+            return;
+        }
+
+        boolean failed = false;
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Task<?> task : group) {
+                mCurrent = task;
+                if (!task.execute()) {
+                    failed = true;
+                    break;
+                }
+            }
+            if (!failed) {
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            mCurrent = null;
+            try {
+                db.endTransaction();
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Group commit failed", e);
+                failed = true;
+            }
+        }
+
+        if (failed) {
+            // One bad write must not take the others down with it, run them
+            // again each in a transaction of its own
+            mOnRollback.run();
+            for (Task<?> task : group) {
+                finish(task);
+            }
+        } else {
+            mOnCommit.run();
+            for (Task<?> task : group) {
+                runEffects(task);
+                task.done.countDown();
+            }
+        }
+    }
+
+    private void finish(Task<?> task) {
+        mCurrent = task;
+        try {
+            task.execute();
+        } finally {
+            mCurrent = null;
+        }
+        // A write on its own manages its own transactions, and may have
+        // committed some of them before it failed
+        mOnCommit.run();
+        if (task.error == null) {
+            runEffects(task);
+        }
+        task.done.countDown();
+    }
+
+    private static void runEffects(Task<?> task) {
+        for (Runnable effect : task.effects) {
+            try {
+                effect.run();
+            } catch (RuntimeException e) {
+                // The write is in, one observer failing must not undo that
+                Log.w(TAG, "After commit", e);
+            }
+        }
+        task.effects.clear();
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+/**
+ * A set of row ids stored as a bitmap. Only the 64 bit words that have a
+ * bit set are kept, sorted by their position, so a tag on a handful of
+ * todos stays a handful of words however large the ids get.
+ */
+final class IdBitmap {
+    private int[] mKeys;
+    private long[] mWords;
+    private int mSize;
+
+    IdBitmap() {
+        this(4);
+    }
+
+    private IdBitmap(int capacity) {
+        mKeys = new int[capacity];
+        mWords = new long[capacity];
+    }
+
+    private int find(int key) {
+        int lo = 0;
+        int hi = mSize - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mKeys[mid] < key) {
+                lo = mid + 1;
+            } else if (mKeys[mid] > key) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return ~lo;
+    }
+
+    boolean contains(long id) {
+        int i = find((int) (id >>> 6));
+        return i >= 0 && (mWords[i] & (1L << id)) != 0;
+    }
+
+    void add(long id) {
+        int key = (int) (id >>> 6);
+        int i = find(key);
+        if (i < 0) {
+            i = ~i;
+            if (mSize == mKeys.length) {
+                int[] keys = new int[mSize * 2];
+                long[] words = new long[mSize * 2];
+                System.arraycopy(mKeys, 0, keys, 0, mSize);
+                System.arraycopy(mWords, 0, words, 0, mSize);
+                mKeys = keys;
+                mWords = words;
+            }
+            System.arraycopy(mKeys, i, mKeys, i + 1, mSize - i);
+            System.arraycopy(mWords, i, mWords, i + 1, mSize - i);
+            mKeys[i] = key;
+            mWords[i] = 0;
+            mSize++;
+        }
+        mWords[i] |= 1L << id;
+    }
+
+    void remove(long id) {
+        int i = find((int) (id >>> 6));
+        if (i < 0) {
+            return;
+        }
+        mWords[i] &= ~(1L << id);
+        if (mWords[i] == 0) {
+            System.arraycopy(mKeys, i + 1, mKeys, i, mSize - i - 1);
+            System.arraycopy(mWords, i + 1, mWords, i, mSize - i - 1);
+            mSize--;
+        }
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    int cardinality() {
+        int count = 0;
+        for (int i = 0; i < mSize; i++) {
+            count += Long.bitCount(mWords[i]);
+        }
+        return count;
+    }
+
+    /**
+     * The ids in both this and other.
+     */
+    IdBitmap and(IdBitmap other) {
+        IdBitmap result = new IdBitmap(Math.max(1, Math.min(mSize, other.mSize)));
+        int i = 0;
+        int j = 0;
+        while (i < mSize && j < other.mSize) {
+            if (mKeys[i] < other.mKeys[j]) {
+                i++;
+            } else if (mKeys[i] > other.mKeys[j]) {
+                j++;
+            } else {
+                result.append(mKeys[i], mWords[i] & other.mWords[j]);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The ids in this but not in other.
+     */
+    IdBitmap andNot(IdBitmap other) {
+        IdBitmap result = new IdBitmap(Math.max(1, mSize));
+        int j = 0;
+        for (int i = 0; i < mSize; i++) {
+            while (j < other.mSize && other.mKeys[j] < mKeys[i]) {
+                j++;
+            }
+            long word = mWords[i];
+            if (j < other.mSize && other.mKeys[j] == mKeys[i]) {
+                word &= ~other.mWords[j];
+            }
+            result.append(mKeys[i], word);
+        }
+        return result;
+    }
+
+    /**
+     * The ids in either this or other.
+     */
+    IdBitmap or(IdBitmap other) {
+        IdBitmap result = new IdBitmap(Math.max(1, mSize + other.mSize));
+        int i = 0;
+        int j = 0;
+        while (i < mSize || j < other.mSize) {
+            if (j == other.mSize || (i < mSize && mKeys[i] < other.mKeys[j])) {
+                result.append(mKeys[i], mWords[i]);
+                i++;
+            } else if (i == mSize || mKeys[i] > other.mKeys[j]) {
+                result.append(other.mKeys[j], other.mWords[j]);
+                j++;
+            } else {
+                result.append(mKeys[i], mWords[i] | other.mWords[j]);
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds a word past the current last one. Results are built in key order
+     * so they never need the search in {@link #add(long)}.
+     */
+    private void append(int key, long word) {
+        if (word == 0) {
+            return;
+        }
+        if (mSize == mKeys.length) {
+            int[] keys = new int[mSize * 2];
+            long[] words = new long[mSize * 2];
+            System.arraycopy(mKeys, 0, keys, 0, mSize);
+            System.arraycopy(mWords, 0, words, 0, mSize);
+            mKeys = keys;
+            mWords = words;
+        }
+        mKeys[mSize] = key;
+        mWords[mSize] = word;
+        mSize++;
+    }
+
+    /**
+     * The ids in ascending order.
+     */
+    long[] toArray() {
+        long[] ids = new long[cardinality()];
+        int n = 0;
+        for (int i = 0; i < mSize; i++) {
+            long word = mWords[i];
+            long base = ((long) mKeys[i]) << 6;
+            while (word != 0) {
+                ids[n++] = base + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return ids;
+    }
+}
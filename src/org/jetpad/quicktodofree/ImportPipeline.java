@@ -0,0 +1,495 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jetpad.quicktodofree;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+
+/**
+ * Imports todos from a CSV file with a header row naming the columns:
+ * title, note, duedate, completed, priority, tags and rrule. Reading,
+ * parsing and writing overlap. One thread splits the file into records,
+ * several workers turn records into todos, and the calling thread puts
+ * them back in file order and writes them with bulk inserts, one
+ * transaction per batch. The queues between the stages are bounded, so a
+ * slow stage holds up the ones before it rather than letting records pile
+ * up in memory.
+ * <p>
+ * Rows that cannot be imported are skipped and reported in
+ * {@link Result#errors}, the rest still go in.
+ */
+final class ImportPipeline {
+    /** Todos per bulk insert, and so per transaction */
+    static final int BATCH_SIZE = 200;
+
+    /** Records or todos each queue holds before its producer waits */
+    private static final int QUEUE_SIZE = 4 * BATCH_SIZE;
+
+    /** How long the writer waits for a batch to fill before writing it anyway */
+    private static final long FLUSH_MILLIS = 500;
+
+    /** The most errors kept, a wrong file would otherwise fail every row */
+    private static final int MAX_ERRORS = 100;
+
+    private static final Record END = new Record(-1, 0, null);
+    private static final Row DONE = new Row(-1, 0, null);
+
+    /**
+     * Told how far the import has got, on the writing thread after every
+     * batch.
+     */
+    interface Listener {
+        void onProgress(int read, int imported, int failed);
+    }
+
+    static final class Result {
+        int imported;
+        int failed;
+        /** "line: problem" for the first {@link #MAX_ERRORS} rows that failed */
+        final List<String> errors = new ArrayList<String>();
+    }
+
+    private static final class Record {
+        /** Where it is in the file, counting records from 0 */
+        final int index;
+        final int line;
+        final String text;
+
+        Record(int index, int line, String text) {
+            this.index = index;
+            this.line = line;
+            this.text = text;
+        }
+    }
+
+    /**
+     * What a worker made of a record: the values of a todo, or null if the
+     * record failed. Every record gives one, so the writer can tell when
+     * the next in file order has come.
+     */
+    private static final class Row {
+        final int index;
+        final int line;
+        final ContentValues values;
+
+        Row(int index, int line, ContentValues values) {
+            this.index = index;
+            this.line = line;
+            this.values = values;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final int mWorkers;
+    private final BlockingQueue<Record> mRecords = new ArrayBlockingQueue<Record>(QUEUE_SIZE);
+    private final BlockingQueue<Row> mTodos = new ArrayBlockingQueue<Row>(QUEUE_SIZE);
+    private final Result mResult = new Result();
+    private volatile int mRead;
+    private volatile IOException mReadError;
+
+    /** Set when the writer failed, the other stages then stop */
+    private volatile boolean mAborted;
+
+    /**
+     * @param workers how many threads parse records, the device's cores
+     *            are a good start
+     */
+    ImportPipeline(ContentResolver resolver, int workers) {
+        mResolver = resolver;
+        mWorkers = Math.max(1, workers);
+    }
+
+    /**
+     * Imports everything in csv, returning once it is all written.
+     */
+    Result run(final Reader csv, Listener listener) throws IOException {
+        String[] header = parseFields(readRecord(csv));
+        if (header == null) {
+            throw new IOException("The file is empty");
+        }
+        final String[] columns;
+        try {
+            columns = columns(header);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage());
+        }
+
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                read(csv);
+            }
+        }, "ImportReader");
+        reader.start();
+        for (int i = 0; i < mWorkers; i++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    parse(columns);
+                }
+            }, "ImportWorker" + i).start();
+        }
+
+        try {
+            write(listener);
+        } finally {
+            mAborted = true;
+        }
+        if (mReadError != null) {
+            throw mReadError;
+        }
+        return mResult;
+    }
+
+    /**
+     * The reader stage, hands out records in file order.
+     */
+    private void read(Reader csv) {
+        try {
+            int line = 2;
+            String record;
+            while ((record = readRecord(csv)) != null) {
+                put(mRecords, new Record(mRead, line, record));
+                mRead++;
+                line += lines(record);
+            }
+        } catch (IOException e) {
+            mReadError = e;
+        } finally {
+            // One for each worker
+            for (int i = 0; i < mWorkers; i++) {
+                put(mRecords, END);
+            }
+        }
+    }
+
+    /**
+     * A worker, turns records into todos until the reader is done.
+     */
+    private void parse(String[] columns) {
+        // SimpleDateFormat is not thread safe, every worker has its own
+        SimpleDateFormat dateTime = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd");
+        dateTime.setLenient(false);
+        date.setLenient(false);
+        long now = System.currentTimeMillis();
+        try {
+            Record record;
+            while ((record = take(mRecords)) != END && record != null) {
+                ContentValues values = null;
+                try {
+                    values = todo(columns, parseFields(record.text), dateTime, date, now);
+                } catch (IllegalArgumentException e) {
+                    failed(record.line + ": " + e.getMessage());
+                }
+                put(mTodos, new Row(record.index, record.line, values));
+            }
+        } finally {
+            put(mTodos, DONE);
+        }
+    }
+
+    /**
+     * The writer stage, on the calling thread. Puts the todos back in file
+     * order, and writes a batch as soon as it is full, or once the workers
+     * have had nothing more for {@link #FLUSH_MILLIS}.
+     */
+    private void write(Listener listener) {
+        List<Row> batch = new ArrayList<Row>(BATCH_SIZE);
+        // Rows that came in ahead of one still being parsed
+        HashMap<Integer, Row> early = new HashMap<Integer, Row>();
+        int next = 0;
+        int working = mWorkers;
+        while (working > 0) {
+            Row row = batch.isEmpty() ? take(mTodos) : poll(mTodos, FLUSH_MILLIS);
+            if (row == null && mAborted) {
+                return;
+            }
+            if (row == DONE) {
+                working--;
+            } else if (row != null) {
+                early.put(row.index, row);
+                for (Row ready; (ready = early.remove(next)) != null; next++) {
+                    if (ready.values != null) {
+                        batch.add(ready);
+                    }
+                    if (batch.size() == BATCH_SIZE) {
+                        insert(batch, listener);
+                    }
+                }
+            }
+            // Nothing came for a while, or nothing more will
+            if ((row == null || working == 0) && !batch.isEmpty()) {
+                insert(batch, listener);
+            }
+        }
+    }
+
+    /**
+     * Writes batch in one transaction and empties it. A batch the provider
+     * turns down is written again a row at a time, so that only the rows
+     * that really fail are lost.
+     */
+    private void insert(List<Row> batch, Listener listener) {
+        ContentValues[] values = new ContentValues[batch.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = batch.get(i).values;
+        }
+        int count;
+        try {
+            count = mResolver.bulkInsert(Todo.CONTENT_URI, values);
+        } catch (RuntimeException e) {
+            count = 0;
+            for (Row row : batch) {
+                try {
+                    if (mResolver.insert(Todo.CONTENT_URI, row.values) != null) {
+                        count++;
+                    } else {
+                        failed(row.line + ": Could not be written");
+                    }
+                } catch (RuntimeException rowError) {
+                    failed(row.line + ": " + rowError.getMessage());
+                }
+            }
+        }
+        batch.clear();
+
+        int imported;
+        int failed;
+        synchronized (mResult) {
+            mResult.imported += count;
+            imported = mResult.imported;
+            failed = mResult.failed;
+        }
+        if (listener != null) {
+            listener.onProgress(mRead, imported, failed);
+        }
+    }
+
+    private void failed(String error) {
+        synchronized (mResult) {
+            mResult.failed++;
+            if (mResult.errors.size() < MAX_ERRORS) {
+                mResult.errors.add(error);
+            }
+        }
+    }
+
+    /**
+     * Which todo column each CSV column goes to, null for ones we ignore.
+     */
+    static String[] columns(String[] header) {
+        String[] known = {
+            Todo.TITLE, Todo.NOTE, Todo.DUE_DATE, Todo.COMPLETED, Todo.PRIORITY, Todo.TAGS, Todo.RRULE,
+        };
+        String[] columns = new String[header.length];
+        boolean title = false;
+        for (int i = 0; i < header.length; i++) {
+            String name = header[i].trim().toLowerCase();
+            for (String column : known) {
+                if (column.equals(name)) {
+                    columns[i] = column;
+                    title |= column.equals(Todo.TITLE);
+                }
+            }
+        }
+        if (!title) {
+            throw new IllegalArgumentException("The file has no title column");
+        }
+        return columns;
+    }
+
+    /**
+     * Validates and normalizes one row into the values for a new todo.
+     *
+     * @throws IllegalArgumentException saying what is wrong with the row
+     */
+    private static ContentValues todo(String[] columns, String[] fields, SimpleDateFormat dateTime,
+            SimpleDateFormat date, long now) {
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < columns.length && i < fields.length; i++) {
+            String column = columns[i];
+            String field = fields[i].trim();
+            if (column == null || field.length() == 0) {
+                continue;
+            }
+            if (column.equals(Todo.DUE_DATE)) {
+                values.put(Todo.DUE_DATE, parseDate(field, dateTime, date));
+                values.put(Todo.HAS_DUE_DATE, 1);
+            } else if (column.equals(Todo.COMPLETED)) {
+                String flag = field.toLowerCase();
+                values.put(Todo.COMPLETED, flag.equals("1") || flag.equals("true") || flag.equals("yes")
+                        || flag.equals("x") ? 1 : 0);
+            } else if (column.equals(Todo.PRIORITY)) {
+                try {
+                    values.put(Todo.PRIORITY, Integer.parseInt(field));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Priority \"" + field + "\" is not a number");
+                }
+            } else if (column.equals(Todo.RRULE)) {
+                // Throws for a rule the provider could not advance
+                Recurrence.parse(field);
+                values.put(Todo.RRULE, field);
+            } else {
+                values.put(column, field);
+            }
+        }
+        if (values.getAsString(Todo.TITLE) == null) {
+            throw new IllegalArgumentException("No title");
+        }
+        TodoProvider.putDefaults(values, now);
+        return values;
+    }
+
+    private static long parseDate(String field, SimpleDateFormat dateTime, SimpleDateFormat date) {
+        try {
+            return dateTime.parse(field).getTime();
+        } catch (ParseException e) {
+            // Try the day alone
+        }
+        try {
+            return date.parse(field).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Due date \"" + field + "\" is not yyyy-MM-dd [HH:mm]");
+        }
+    }
+
+    /**
+     * The next record, which runs on over line breaks inside quotes, or
+     * null at the end of the file.
+     */
+    static String readRecord(Reader in) throws IOException {
+        StringBuilder record = new StringBuilder();
+        boolean quoted = false;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '"') {
+                quoted = !quoted;
+            } else if ((c == '\n' || c == '\r') && !quoted) {
+                if (record.length() == 0) {
+                    // The \n of a \r\n, or a blank line
+                    continue;
+                }
+                return record.toString();
+            }
+            record.append((char) c);
+        }
+        return record.length() > 0 ? record.toString() : null;
+    }
+
+    static int lines(String record) {
+        int lines = 1;
+        for (int i = 0; i < record.length(); i++) {
+            if (record.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Splits a record into fields, "" inside quotes being a quote.
+     */
+    static String[] parseFields(String record) {
+        if (record == null) {
+            return null;
+        }
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < record.length() && record.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    /**
+     * Waits for room in queue, unless the import was given up.
+     */
+    private <T> void put(BlockingQueue<T> queue, T item) {
+        while (!mAborted) {
+            try {
+                if (queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                // Nobody else could pass the item on, keep trying
+            }
+        }
+    }
+
+    /**
+     * The next item in queue, or null if none comes within millis.
+     */
+    private static <T> T poll(BlockingQueue<T> queue, long millis) {
+        try {
+            return queue.poll(millis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the next item in queue, or returns null if the import was
+     * given up.
+     */
+    private <T> T take(BlockingQueue<T> queue) {
+        while (!mAborted) {
+            try {
+                T item = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (item != null) {
+                    return item;
+                }
+            } catch (InterruptedException e) {
+                // As above
+            }
+        }
+        return null;
+    }
+}
@@ -18,22 +18,41 @@
 
 package org.jetpad.quicktodofree;
 
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
+import org.jetpad.quicktodofree.QuickTodo.Archive;
+import org.jetpad.quicktodofree.QuickTodo.Folders;
+import org.jetpad.quicktodofree.QuickTodo.Reminders;
+import org.jetpad.quicktodofree.QuickTodo.Tags;
 import org.jetpad.quicktodofree.QuickTodo.Todo;
 
+import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.ContextMenu;
+import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -41,24 +60,63 @@ import android.view.ContextMenu.ContextMenuInfo;
 import android.view.View.OnClickListener;
 import android.widget.AdapterView;
 import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.ListAdapter;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
+import android.widget.Toast;
 
 /**
  * Displays a list of notes. Will display notes from the {@link Uri}
  * provided in the intent if there is one, otherwise defaults to displaying the
  * contents of the {@link TodoProvider}
  */
-public class ItemsList extends ListActivity {
+public class ItemsList extends ListActivity implements TitleSearch.Listener {
     private static final String TAG = "TodoList";
-    private static final String DATE_FORMAT = "EEE, dd MMM yyyy HH:mm";
 
     // Menu item ids
     public static final int MENU_ITEM_DELETE = Menu.FIRST;
     public static final int MENU_ITEM_INSERT = Menu.FIRST + 1;
 	private static final int MENU_ITEM_SETTINGS = Menu.FIRST + 2;
 	private static final int MENU_ITEM_DATA = Menu.FIRST + 3;
+	private static final int MENU_ITEM_ARCHIVE = Menu.FIRST + 4;
+	private static final int MENU_ITEM_FOLDERS = Menu.FIRST + 5;
+	private static final int MENU_ITEM_MOVE = Menu.FIRST + 6;
+	private static final int MENU_ITEM_FILTER = Menu.FIRST + 7;
+	private static final int MENU_ITEM_SEARCH = Menu.FIRST + 8;
+	private static final int MENU_ITEM_SELECT = Menu.FIRST + 9;
+	private static final int MENU_ITEM_BULK_COMPLETE = Menu.FIRST + 10;
+	private static final int MENU_ITEM_BULK_DELETE = Menu.FIRST + 11;
+	private static final int MENU_ITEM_BULK_MOVE = Menu.FIRST + 12;
+	private static final int MENU_ITEM_SELECT_DONE = Menu.FIRST + 13;
+	private static final int MENU_ITEM_UNDO = Menu.FIRST + 14;
+
+    // Menu groups, the selection group replaces the list's own items while selecting
+    private static final int GROUP_LIST = 0;
+    private static final int GROUP_SELECTION = 1;
+    private static final int GROUP_UNDO = 2;
+
+    // What the undo snapshot was taken for
+    private static final int UNDO_COMPLETE = 1;
+    private static final int UNDO_DELETE = 2;
+    private static final int UNDO_MOVE = 3;
+
+    private static final String PREF_SORT_MODE = "sortMode";
+
+    /** Values of the sortMode preference and the order each stands for */
+    private static final String[] SORT_MODES = { "due", "priority", "created", "modified", "title", "agenda" };
+    private static final String[] SORT_ORDERS = { Todo.SORT_BY_DUE_DATE, Todo.SORT_BY_PRIORITY,
+            Todo.SORT_BY_CREATED, Todo.SORT_BY_MODIFIED, Todo.SORT_BY_TITLE, Todo.SORT_BY_BUCKET };
+
+    /** The sort mode that shows the list grouped into agenda sections */
+    private static final String SORT_MODE_AGENDA = "agenda";
+
+    private static final String[] FOLDER_PROJECTION = new String[] {
+            Folders._ID, // 0
+            Folders.NAME, // 1
+            Folders.PENDING_COUNT, // 2
+    };
 
     /**
      * The columns we are interested in from the database
@@ -69,20 +127,78 @@ public class ItemsList extends ListActivity {
             Todo.DUE_DATE, //2
             Todo.COMPLETED, //3
             Todo.HAS_DUE_DATE, //4
+            Todo.DISPLAY_STATE, //5
+            Todo.DUE_DAY, //6
+    };
+
+    /** What a bulk complete changes, so that it can be put back */
+    static final String[] COMPLETE_PROJECTION = new String[] {
+            Todo._ID, Todo.COMPLETED, Todo.DUE_DATE, Todo.RRULE, Todo.SERIES_START,
+    };
+
+    /** The most arguments SQLite binds to one statement */
+    static final int MAX_IDS = 999;
+
+    static final String[] MOVE_PROJECTION = new String[] {
+            Todo._ID, Todo.FOLDER,
+    };
+
+    /**
+     * Everything a deleted todo needs to be inserted again. The provider
+     * works out its bucket, and its reminder columns once the reminders
+     * are back.
+     */
+    static final String[] DELETE_PROJECTION = new String[] {
+            Todo._ID, Todo.TITLE, Todo.NOTE, Todo.CREATED_DATE, Todo.MODIFIED_DATE, Todo.DUE_DATE,
+            Todo.HAS_DUE_DATE, Todo.COMPLETED, Todo.FOLDER, Todo.PRIORITY, Todo.RRULE, Todo.TAGS,
+            Todo.HAS_REMINDER, Todo.SERIES_START, Todo.CONTEXT, Todo.ICON, Todo.INBOX,
+            Todo.IS_SCHEDULED, Todo.SCHEDULE_DATE,
     };
 
     /** The index of the title column */
     private static final int COLUMN_INDEX_TITLE = 1;
     private static final int COLUMN_INDEX_DUEDATE = 2;
     private static final int COLUMN_INDEX_COMPLETED = 3;
-    private static final int COLUMN_INDEX_HASDATE = 4;
+    private static final int COLUMN_INDEX_DISPLAY_STATE = 5;
+    private static final int COLUMN_INDEX_DUE_DAY = 6;
 
+    /** Whether we are showing the archive rather than the todo list */
+    private boolean mArchive;
+
+    /** The folder being shown, or -1 when showing every todo */
+    private long mFolderId = -1;
+
+
+    /** The sort mode the list is shown in, one of SORT_MODES */
+    private String mSortMode;
+
+    /** Tags every shown todo must carry */
+    private final Set<String> mFilterTags = new TreeSet<String>();
+    private boolean mHideCompleted;
+
+    private EditText mSearchText;
+    private TitleSearch mSearch;
+
+    /** Shows search results while there are any, and the list it stands in for */
+    private SimpleCursorAdapter mSearchAdapter;
+    private ListAdapter mListBeforeSearch;
+
+    /** Todos picked for a bulk action, while selecting */
+    private boolean mSelecting;
+    private final HashSet<Long> mSelected = new HashSet<Long>();
+    private CharSequence mTitleBeforeSelecting;
+
+    /** The todos as they were before the last bulk action, one of UNDO_* */
+    private int mUndoAction;
+    private ContentValues[] mUndoRows;
+    private ContentValues[] mUndoReminders;
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         setDefaultKeyMode(DEFAULT_KEYS_SHORTCUT);
+        setContentView(R.layout.items_list);
 
         // If no data was given in the intent (because we were started
         // as a MAIN activity), then use our default content provider.
@@ -90,15 +206,168 @@ public class ItemsList extends ListActivity {
         if (intent.getData() == null) {
             intent.setData(Todo.CONTENT_URI);
         }
+        mArchive = Archive.CONTENT_TYPE.equals(getContentResolver().getType(intent.getData()));
+        if (mArchive) {
+            setTitle("Archive");
+        } else {
+            ArchiveService.schedule(this);
+            MaintenanceService.schedule(this);
+            DayChangeReceiver.schedule(this);
+        }
+        List<String> segments = intent.getData().getPathSegments();
+        if (segments.size() == 3 && Folders.TODOS_DIRECTORY.equals(segments.get(2))) {
+            mFolderId = Long.parseLong(segments.get(1));
+            Cursor folder = getContentResolver().query(ContentUris.withAppendedId(Folders.CONTENT_URI, mFolderId),
+                    FOLDER_PROJECTION, null, null, null);
+            if (folder != null) {
+                if (folder.moveToFirst()) {
+                    setTitle(folder.getString(1));
+                }
+                folder.close();
+            }
+        }
 
         // Inform the list we provide context menus for items
         getListView().setOnCreateContextMenuListener(this);
         
-        // Perform a managed query. The Activity will handle closing and requerying the cursor
-        // when needed.
-        Cursor cursor = managedQuery(getIntent().getData(), PROJECTION, null, null,
-                Todo.DEFAULT_SORT_ORDER);
+        mSortMode = PreferenceManager.getDefaultSharedPreferences(this).getString(PREF_SORT_MODE, SORT_MODES[0]);
+        setListAdapter(createListAdapter());
+
+        mSearch = new TitleSearch(getContentResolver(), this);
+        mSearchText = (EditText) findViewById(R.id.search);
+        mSearchText.addTextChangedListener(new TextWatcher() {
+            public void afterTextChanged(Editable s) {
+                runSearch();
+            }
+
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mSearch.quit();
+    }
+
+    @Override
+    public boolean onSearchRequested() {
+        if (mArchive) {
+            // The title index only covers the todo list
+            return false;
+        }
+        mSearchText.setVisibility(View.VISIBLE);
+        mSearchText.requestFocus();
+        return true;
+    }
+
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        if (keyCode == KeyEvent.KEYCODE_BACK && mSelecting) {
+            endSelection();
+            return true;
+        }
+        if (keyCode == KeyEvent.KEYCODE_BACK && mSearchText.getVisibility() == View.VISIBLE) {
+            mSearchText.setText("");
+            mSearchText.setVisibility(View.GONE);
+            return true;
+        }
+        return super.onKeyDown(keyCode, event);
+    }
+
+    /**
+     * Searches for whatever is in the search box. The work happens on the
+     * search thread, the list changes when {@link #onSearchResults(Cursor)}
+     * is called back.
+     */
+    private void runSearch() {
+        if (mSearchText.getText().toString().trim().length() == 0) {
+            mSearch.cancel();
+            endSearchResults();
+            return;
+        }
+        mSearch.search(listUri(), PROJECTION, mArchive ? null : sortOrder(mSortMode),
+                mSearchText.getText().toString());
+    }
+
+    public void onSearchResults(Cursor results) {
+        startManagingCursor(results);
+        if (mSearchAdapter == null) {
+            mListBeforeSearch = getListAdapter();
+            mSearchAdapter = createAdapter(results);
+            setListAdapter(mSearchAdapter);
+        } else {
+            stopManagingCursor(mSearchAdapter.getCursor());
+            mSearchAdapter.changeCursor(results);
+        }
+    }
 
+    /**
+     * Puts the list back the way it was before searching.
+     *
+     * @return whether search results were showing
+     */
+    private boolean endSearchResults() {
+        if (mSearchAdapter == null) {
+            return false;
+        }
+        stopManagingCursor(mSearchAdapter.getCursor());
+        mSearchAdapter.changeCursor(null);
+        mSearchAdapter = null;
+        setListAdapter(mListBeforeSearch);
+        mListBeforeSearch = null;
+        return true;
+    }
+
+    /**
+     * The list as it should be shown now, with the current filter
+     */
+    private Uri listUri() {
+        Uri.Builder builder = getIntent().getData().buildUpon();
+        if (!mFilterTags.isEmpty()) {
+            builder.appendQueryParameter(Tags.PARAM_ALL, TextUtils.join(",", mFilterTags));
+        }
+        if (mHideCompleted) {
+            builder.appendQueryParameter(Tags.PARAM_STATUS, Tags.STATUS_OPEN);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Perform a managed query for the list and wrap it for display. The
+     * Activity will handle closing and requerying the cursor when needed.
+     */
+    private ListAdapter createListAdapter() {
+        Uri uri = listUri();
+        SimpleCursorAdapter adapter = createAdapter(managedQuery(uri, PROJECTION, null, null,
+                mArchive ? null : sortOrder(mSortMode)));
+        if (!mArchive && SORT_MODE_AGENDA.equals(mSortMode)) {
+            return new SectionedAdapter(this, adapter, uri);
+        }
+        return adapter;
+    }
+
+    private static SimpleCursorAdapter cursorAdapter(ListAdapter adapter) {
+        if (adapter instanceof SectionedAdapter) {
+            return (SimpleCursorAdapter) ((SectionedAdapter) adapter).getWrappedAdapter();
+        }
+        return (SimpleCursorAdapter) adapter;
+    }
+
+    private static String sortOrder(String mode) {
+        for (int i = 0; i < SORT_MODES.length; i++) {
+            if (SORT_MODES[i].equals(mode)) {
+                return SORT_ORDERS[i];
+            }
+        }
+        return Todo.DEFAULT_SORT_ORDER;
+    }
+
+    private SimpleCursorAdapter createAdapter(Cursor cursor) {
         // Used to map notes entries from the database to views
         SimpleCursorAdapter adapter = new SimpleCursorAdapter(this, R.layout.noteslist_item, cursor,
                 new String[] { Todo.TITLE,Todo.DUE_DATE,Todo.COMPLETED }, new int[] { android.R.id.text1,R.id.duedate,R.id.cb1 });
@@ -107,8 +376,14 @@ public class ItemsList extends ListActivity {
 
 			public void onClick(View v) {
 				int id = Integer.parseInt((String)v.getTag());
-				Uri uri = ContentUris.withAppendedId(getIntent().getData(), id);
-				completeTask(uri);
+				Uri uri = itemUri(id);
+				if (mSelecting) {
+					toggleSelected(id);
+				} else if (mArchive) {
+					restoreTask(uri);
+				} else {
+					completeTask(uri);
+				}
 			}
         };
         
@@ -117,26 +392,25 @@ public class ItemsList extends ListActivity {
                 public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
                         if(columnIndex == COLUMN_INDEX_COMPLETED) {
                                 CheckBox cb = (CheckBox) view;
-                                boolean bChecked = (cursor.getInt(COLUMN_INDEX_COMPLETED) != 0);
+                                // While selecting the box shows the selection instead
+                                boolean bChecked = mSelecting ? mSelected.contains(cursor.getLong(0))
+                                        : (cursor.getInt(COLUMN_INDEX_COMPLETED) != 0);
                                 cb.setChecked(bChecked);
                                 cb.setTag(String.valueOf(cursor.getInt(0)));
                                 cb.setOnClickListener(c);
                                 return true;
                         } else
                         if(columnIndex == COLUMN_INDEX_DUEDATE) {
+                        	// The provider has done the date math, just show it
                         	TextView dt = (TextView)view;
-                        	dt.setTextColor(Color.WHITE);
-                        	if(cursor.getInt(COLUMN_INDEX_HASDATE) != 0 && cursor.getInt(COLUMN_INDEX_COMPLETED) == 0) {
-                            	Calendar c = Calendar.getInstance();
-                            	c.setTimeInMillis(cursor.getLong(COLUMN_INDEX_DUEDATE));
-                        		dt.setText((new SimpleDateFormat(DATE_FORMAT)).format(c.getTime()));
-                        		if(c.before(Calendar.getInstance())) {
-                        			dt.setTextColor(Color.RED);
-                        		}
-                        	} else if(cursor.getInt(COLUMN_INDEX_COMPLETED) != 0) {
+                        	int state = cursor.getInt(COLUMN_INDEX_DISPLAY_STATE);
+                        	dt.setTextColor(state == Todo.DISPLAY_OVERDUE ? Color.RED : Color.WHITE);
+                        	if(state == Todo.DISPLAY_COMPLETED) {
                         		dt.setText("Completed");
-                        	} else {
+                        	} else if(state == Todo.DISPLAY_NO_DATE) {
                         		dt.setText("No due date");
+                        	} else {
+                        		dt.setText(cursor.getString(COLUMN_INDEX_DUE_DAY));
                         	}
                         	return true;
                         }
@@ -144,7 +418,96 @@ public class ItemsList extends ListActivity {
                 }
         });
 
-        setListAdapter(adapter);
+        return adapter;
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // Sort and filter changes apply to the list under the search results
+        boolean searching = endSearchResults();
+        String mode = PreferenceManager.getDefaultSharedPreferences(this).getString(PREF_SORT_MODE, SORT_MODES[0]);
+        if (!mArchive && !mode.equals(mSortMode)) {
+            switchSortMode(mode);
+        } else if (isFiltered()) {
+            // A filtered cursor requeries the ids it was given, pick up todos
+            // that were tagged or completed since.
+            applyFilter();
+        }
+        if (searching) {
+            runSearch();
+        }
+    }
+
+    /**
+     * Shows the list in another sort mode. Going back to a mode shown
+     * before costs no sort, the provider's QueryCache still has its rows
+     * unless something has been written since.
+     */
+    private void switchSortMode(String mode) {
+        mSortMode = mode;
+        applyFilter();
+    }
+
+    private boolean isFiltered() {
+        return !mFilterTags.isEmpty() || mHideCompleted;
+    }
+
+    /**
+     * Swaps the list over to the todos matching the current filter, in
+     * the current sort mode.
+     */
+    private void applyFilter() {
+        SimpleCursorAdapter adapter = cursorAdapter(getListAdapter());
+        stopManagingCursor(adapter.getCursor());
+        setListAdapter(createListAdapter());
+        adapter.changeCursor(null);
+    }
+
+    private void showFilter() {
+        Cursor c = getContentResolver().query(Tags.CONTENT_URI, new String[] { Tags.NAME }, null, null,
+                Tags.DEFAULT_SORT_ORDER);
+        final String[] tags = new String[c.getCount()];
+        final String[] labels = new String[tags.length + 1];
+        final boolean[] checked = new boolean[labels.length];
+        labels[0] = "Hide completed";
+        checked[0] = mHideCompleted;
+        while (c.moveToNext()) {
+            tags[c.getPosition()] = c.getString(0);
+            labels[c.getPosition() + 1] = "@" + c.getString(0);
+            checked[c.getPosition() + 1] = mFilterTags.contains(c.getString(0));
+        }
+        c.close();
+
+        new AlertDialog.Builder(this).setTitle("Filter")
+                .setMultiChoiceItems(labels, checked, new DialogInterface.OnMultiChoiceClickListener() {
+                    public void onClick(DialogInterface dialog, int which, boolean isChecked) {
+                        checked[which] = isChecked;
+                    }
+                }).setPositiveButton("OK", new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        mHideCompleted = checked[0];
+                        mFilterTags.clear();
+                        for (int i = 0; i < tags.length; i++) {
+                            if (checked[i + 1]) {
+                                mFilterTags.add(tags[i]);
+                            }
+                        }
+                        boolean searching = endSearchResults();
+                        applyFilter();
+                        if (searching) {
+                            runSearch();
+                        }
+                    }
+                }).setNegativeButton("Cancel", null).show();
+    }
+
+    /**
+     * Items are always addressed through their own table, whichever folder
+     * we are showing.
+     */
+    private Uri itemUri(long id) {
+        return ContentUris.withAppendedId(mArchive ? Archive.CONTENT_URI : Todo.CONTENT_URI, id);
     }
 
     private void completeTask(Uri mUri) {
@@ -164,10 +527,399 @@ public class ItemsList extends ListActivity {
         }
     }
 
+    /**
+     * Moves an archived item back to the todo list.
+     */
+    private void restoreTask(Uri mUri) {
+        getContentResolver().insert(Uri.withAppendedPath(mUri, Archive.RESTORE_DIRECTORY), null);
+        Toast.makeText(this, "Item restored", Toast.LENGTH_SHORT).show();
+    }
+
+    private void startSelection() {
+        endSearchResults();
+        mSearchText.setText("");
+        mSearchText.setVisibility(View.GONE);
+        mSelecting = true;
+        mSelected.clear();
+        mTitleBeforeSelecting = getTitle();
+        showSelectionCount();
+    }
+
+    private void endSelection() {
+        mSelecting = false;
+        mSelected.clear();
+        setTitle(mTitleBeforeSelecting);
+        getListView().invalidateViews();
+    }
+
+    private void toggleSelected(long id) {
+        if (!mSelected.remove(id)) {
+            mSelected.add(id);
+        }
+        showSelectionCount();
+        getListView().invalidateViews();
+    }
+
+    private void showSelectionCount() {
+        setTitle(mSelected.size() + " selected");
+    }
+
+    /**
+     * A where clause for count todos by id, the ids being bound from
+     * {@link #idsArgs(Collection)}. The same count always gives the same
+     * statement. SQLite binds no more than {@link #MAX_IDS}, more ids go
+     * through {@link #idChunks(Collection)}.
+     */
+    static String idsWhere(int count) {
+        StringBuilder where = new StringBuilder(Todo._ID).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            where.append(i == 0 ? "?" : ",?");
+        }
+        return where.append(')').toString();
+    }
+
+    static String[] idsArgs(Collection<Long> ids) {
+        String[] args = new String[ids.size()];
+        int i = 0;
+        for (Long id : ids) {
+            args[i++] = String.valueOf(id);
+        }
+        return args;
+    }
+
+    /**
+     * The ids in runs of at most {@link #MAX_IDS}, each of which can be
+     * bound to one statement.
+     */
+    static List<List<Long>> idChunks(Collection<Long> ids) {
+        List<List<Long>> chunks = new ArrayList<List<Long>>();
+        List<Long> chunk = null;
+        for (Long id : ids) {
+            if (chunk == null || chunk.size() == MAX_IDS) {
+                chunk = new ArrayList<Long>(Math.min(MAX_IDS, ids.size()));
+                chunks.add(chunk);
+            }
+            chunk.add(id);
+        }
+        return chunks;
+    }
+
+    /**
+     * Sets values on every todo in ids, one update per chunk of them.
+     */
+    static int updateIds(ContentResolver cr, ContentValues values, Collection<Long> ids) {
+        int count = 0;
+        for (List<Long> chunk : idChunks(ids)) {
+            count += cr.update(Todo.CONTENT_URI, values, idsWhere(chunk.size()), idsArgs(chunk));
+        }
+        return count;
+    }
+
+    static int deleteIds(ContentResolver cr, Collection<Long> ids) {
+        int count = 0;
+        for (List<Long> chunk : idChunks(ids)) {
+            count += cr.delete(Todo.CONTENT_URI, idsWhere(chunk.size()), idsArgs(chunk));
+        }
+        return count;
+    }
+
+    /**
+     * Reads the columns a bulk action is about to change in the todos in
+     * ids, for undo.
+     */
+    static ContentValues[] snapshot(ContentResolver cr, String[] projection, Collection<Long> ids) {
+        ArrayList<ContentValues> rows = new ArrayList<ContentValues>(ids.size());
+        for (List<Long> chunk : idChunks(ids)) {
+            snapshot(cr, projection, idsWhere(chunk.size()), idsArgs(chunk), rows);
+        }
+        return rows.toArray(new ContentValues[rows.size()]);
+    }
+
+    private static void snapshot(ContentResolver cr, String[] projection, String where,
+            String[] whereArgs, List<ContentValues> rows) {
+        Cursor c = cr.query(Todo.CONTENT_URI, projection, where, whereArgs, null);
+        try {
+            while (c.moveToNext()) {
+                ContentValues row = new ContentValues();
+                for (int i = 0; i < c.getColumnCount(); i++) {
+                    String column = c.getColumnName(i);
+                    boolean text = column.equals(Todo.TITLE) || column.equals(Todo.NOTE)
+                            || column.equals(Todo.RRULE) || column.equals(Todo.TAGS);
+                    if (c.isNull(i)) {
+                        if (!text) {
+                            row.putNull(column);
+                        }
+                    } else if (text) {
+                        row.put(column, c.getString(i));
+                    } else {
+                        row.put(column, c.getLong(i));
+                    }
+                }
+                rows.add(row);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private void keepForUndo(int action, ContentValues[] rows, ContentValues[] reminders) {
+        mUndoAction = action;
+        mUndoRows = rows;
+        mUndoReminders = reminders;
+    }
+
+    /**
+     * Completes every selected todo, or reopens them if they are all
+     * completed already, in one update.
+     */
+    private void completeSelected() {
+        List<Long> ids = new ArrayList<Long>(mSelected);
+        ContentValues[] rows = snapshot(getContentResolver(), COMPLETE_PROJECTION, ids);
+        boolean allDone = true;
+        for (ContentValues row : rows) {
+            allDone &= row.getAsLong(Todo.COMPLETED) != null && row.getAsLong(Todo.COMPLETED) != 0;
+        }
+        keepForUndo(UNDO_COMPLETE, rows, null);
+        endSelection();
+
+        ContentValues values = new ContentValues();
+        values.put(Todo.COMPLETED, allDone ? 0 : 1);
+        updateIds(getContentResolver(), values, ids);
+        Toast.makeText(this, (allDone ? "Reopened " : "Completed ") + rows.length
+                + " items, Undo is in the menu", Toast.LENGTH_SHORT).show();
+    }
+
+    private void deleteSelected() {
+        List<Long> ids = new ArrayList<Long>(mSelected);
+        ContentValues[] rows = snapshot(getContentResolver(), DELETE_PROJECTION, ids);
+        keepForUndo(UNDO_DELETE, rows, snapshotReminders(getContentResolver(), rows));
+        endSelection();
+
+        deleteIds(getContentResolver(), ids);
+        Toast.makeText(this, "Deleted " + rows.length + " items, Undo is in the menu",
+                Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * The reminders of the todos in a snapshot of {@link #DELETE_PROJECTION},
+     * as rows for a bulk insert into {@link Reminders#CONTENT_URI}. Takes
+     * {@link Todo#HAS_REMINDER} out of the snapshot, the provider sets it
+     * again when the reminders go back.
+     */
+    static ContentValues[] snapshotReminders(ContentResolver cr, ContentValues[] rows) {
+        ArrayList<ContentValues> reminders = new ArrayList<ContentValues>();
+        for (ContentValues row : rows) {
+            Long hasReminder = row.getAsLong(Todo.HAS_REMINDER);
+            row.remove(Todo.HAS_REMINDER);
+            if (hasReminder == null || hasReminder == 0) {
+                continue;
+            }
+            long id = row.getAsLong(Todo._ID);
+            Cursor c = cr.query(Uri.withAppendedPath(ContentUris.withAppendedId(Todo.CONTENT_URI, id),
+                    Reminders.CONTENT_DIRECTORY), new String[] { Reminders.MINUTES_BEFORE }, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    ContentValues reminder = new ContentValues();
+                    reminder.put(Reminders.TODO_ID, id);
+                    reminder.put(Reminders.MINUTES_BEFORE, c.getInt(0));
+                    reminders.add(reminder);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return reminders.toArray(new ContentValues[reminders.size()]);
+    }
+
+    /**
+     * Puts the todos touched by the last bulk action back the way they were,
+     * from the snapshot taken before it.
+     */
+    private void undo() {
+        ContentValues[] rows = mUndoRows;
+        ContentValues[] reminders = mUndoReminders;
+        int action = mUndoAction;
+        keepForUndo(0, null, null);
+
+        switch (action) {
+        case UNDO_DELETE:
+            getContentResolver().bulkInsert(Todo.CONTENT_URI, rows);
+            if (reminders.length > 0) {
+                getContentResolver().bulkInsert(Reminders.CONTENT_URI, reminders);
+            }
+            break;
+
+        case UNDO_COMPLETE:
+            undoComplete(getContentResolver(), rows);
+            break;
+
+        case UNDO_MOVE:
+            restoreColumn(getContentResolver(), Arrays.asList(rows), Todo.FOLDER);
+            break;
+        }
+    }
+
+    /**
+     * Puts back the completed state, and due date where it moved, of the
+     * todos in a snapshot of {@link #COMPLETE_PROJECTION}.
+     */
+    static void undoComplete(ContentResolver cr, ContentValues[] rows) {
+        ArrayList<ContentValues> grouped = new ArrayList<ContentValues>();
+        for (ContentValues row : rows) {
+            Long completed = row.getAsLong(Todo.COMPLETED);
+            if (row.getAsString(Todo.RRULE) != null && (completed == null || completed == 0)) {
+                // Completing a repeating todo moved it on to its next
+                // occurrence, so its due date has to go back too
+                ContentValues values = new ContentValues();
+                values.put(Todo.COMPLETED, 0);
+                values.put(Todo.DUE_DATE, row.getAsLong(Todo.DUE_DATE));
+                // Or the series would start over from the old due date
+                values.put(Todo.SERIES_START, row.getAsLong(Todo.SERIES_START));
+                cr.update(ContentUris.withAppendedId(Todo.CONTENT_URI, row.getAsLong(Todo._ID)), values,
+                        null, null);
+            } else {
+                grouped.add(row);
+            }
+        }
+        restoreColumn(cr, grouped, Todo.COMPLETED);
+    }
+
+    /**
+     * Sets column back to the value each todo had in rows, with one update
+     * per distinct value rather than one per todo.
+     */
+    static void restoreColumn(ContentResolver cr, List<ContentValues> rows, String column) {
+        HashMap<Long, List<Long>> groups = new HashMap<Long, List<Long>>();
+        for (ContentValues row : rows) {
+            Long value = row.getAsLong(column);
+            List<Long> ids = groups.get(value);
+            if (ids == null) {
+                ids = new ArrayList<Long>();
+                groups.put(value, ids);
+            }
+            ids.add(row.getAsLong(Todo._ID));
+        }
+        for (Map.Entry<Long, List<Long>> group : groups.entrySet()) {
+            ContentValues values = new ContentValues();
+            if (group.getKey() == null) {
+                values.putNull(column);
+            } else {
+                values.put(column, group.getKey());
+            }
+            updateIds(cr, values, group.getValue());
+        }
+    }
+
+    /**
+     * Reads the folder list. Pending counts are kept by the provider so this
+     * never has to look at the todos themselves.
+     */
+    private Cursor queryFolders() {
+        return getContentResolver().query(Folders.CONTENT_URI, FOLDER_PROJECTION, null, null,
+                Folders.DEFAULT_SORT_ORDER);
+    }
+
+    /**
+     * Lets the user jump to another folder, back to every todo, or create a folder.
+     */
+    private void showFolders() {
+        Cursor c = queryFolders();
+        final long[] ids = new long[c.getCount()];
+        final String[] labels = new String[ids.length + 2];
+        labels[0] = "All items";
+        while (c.moveToNext()) {
+            ids[c.getPosition()] = c.getLong(0);
+            labels[c.getPosition() + 1] = c.getString(1) + " (" + c.getInt(2) + ")";
+        }
+        c.close();
+        labels[labels.length - 1] = "New folder...";
+
+        new AlertDialog.Builder(this).setTitle("Folders")
+                .setItems(labels, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (which == 0) {
+                            openList(Todo.CONTENT_URI);
+                        } else if (which == labels.length - 1) {
+                            newFolder();
+                        } else {
+                            openList(Uri.withAppendedPath(ContentUris.withAppendedId(Folders.CONTENT_URI,
+                                    ids[which - 1]), Folders.TODOS_DIRECTORY));
+                        }
+                    }
+                }).show();
+    }
+
+    private void openList(Uri uri) {
+        if (uri.equals(getIntent().getData())) {
+            return;
+        }
+        startActivity(new Intent(Intent.ACTION_VIEW, uri, this, ItemsList.class));
+        if (mFolderId != -1) {
+            // Don't stack up one list per folder visited
+            finish();
+        }
+    }
+
+    private void newFolder() {
+        final EditText name = new EditText(this);
+        new AlertDialog.Builder(this).setTitle("New folder").setView(name)
+                .setPositiveButton("OK", new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (name.getText().length() == 0) {
+                            return;
+                        }
+                        ContentValues values = new ContentValues();
+                        values.put(Folders.NAME, name.getText().toString());
+                        Uri folder = getContentResolver().insert(Folders.CONTENT_URI, values);
+                        openList(Uri.withAppendedPath(folder, Folders.TODOS_DIRECTORY));
+                    }
+                }).setNegativeButton("Cancel", null).show();
+    }
+
+    /**
+     * Moves the todo at mUri, or the todos in todoIds, into a folder or out
+     * of all folders. A move of todoIds is a bulk move and can be undone.
+     */
+    private void moveToFolder(final Uri mUri, final List<Long> todoIds) {
+        Cursor c = queryFolders();
+        final long[] ids = new long[c.getCount()];
+        final String[] labels = new String[ids.length + 1];
+        labels[0] = "No folder";
+        while (c.moveToNext()) {
+            ids[c.getPosition()] = c.getLong(0);
+            labels[c.getPosition() + 1] = c.getString(1);
+        }
+        c.close();
+
+        new AlertDialog.Builder(this).setTitle("Move to folder")
+                .setItems(labels, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        ContentValues values = new ContentValues();
+                        if (which == 0) {
+                            values.putNull(Todo.FOLDER);
+                        } else {
+                            values.put(Todo.FOLDER, ids[which - 1]);
+                        }
+                        if (todoIds != null) {
+                            keepForUndo(UNDO_MOVE, snapshot(getContentResolver(), MOVE_PROJECTION, todoIds),
+                                    null);
+                            updateIds(getContentResolver(), values, todoIds);
+                        } else {
+                            getContentResolver().update(mUri, values, null, null);
+                        }
+                    }
+                }).show();
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         super.onCreateOptionsMenu(menu);
 
+        if (mArchive) {
+            // Nothing can be added to the archive directly
+            return true;
+        }
+
         // Insert the "insert" menu into the list 
         menu.add(0, MENU_ITEM_INSERT, 0, R.string.menu_insert)
                 .setShortcut('3', 'a')
@@ -187,6 +939,27 @@ public class ItemsList extends ListActivity {
                 .setIcon(android.R.drawable.ic_menu_preferences);
         menu.add(0, MENU_ITEM_DATA, 0, "Manage Data")
         .setIcon(android.R.drawable.ic_menu_manage);
+        menu.add(0, MENU_ITEM_FOLDERS, 0, "Folders")
+        .setIcon(android.R.drawable.ic_menu_more);
+        menu.add(0, MENU_ITEM_SEARCH, 0, "Search")
+        .setIcon(android.R.drawable.ic_menu_search);
+        menu.add(0, MENU_ITEM_FILTER, 0, "Filter")
+        .setIcon(android.R.drawable.ic_menu_view);
+        menu.add(0, MENU_ITEM_ARCHIVE, 0, "Archive")
+        .setIcon(android.R.drawable.ic_menu_agenda);
+        menu.add(0, MENU_ITEM_SELECT, 0, "Select")
+        .setIcon(android.R.drawable.ic_menu_edit);
+
+        menu.add(GROUP_SELECTION, MENU_ITEM_BULK_COMPLETE, 0, "Complete")
+        .setIcon(android.R.drawable.checkbox_on_background);
+        menu.add(GROUP_SELECTION, MENU_ITEM_BULK_DELETE, 0, R.string.menu_delete)
+        .setIcon(android.R.drawable.ic_menu_delete);
+        menu.add(GROUP_SELECTION, MENU_ITEM_BULK_MOVE, 0, "Move to folder")
+        .setIcon(android.R.drawable.ic_menu_more);
+        menu.add(GROUP_SELECTION, MENU_ITEM_SELECT_DONE, 0, "Done")
+        .setIcon(android.R.drawable.ic_menu_close_clear_cancel);
+        menu.add(GROUP_UNDO, MENU_ITEM_UNDO, 0, "Undo")
+        .setIcon(android.R.drawable.ic_menu_revert);
 
         return true;
     }
@@ -196,9 +969,18 @@ public class ItemsList extends ListActivity {
         super.onPrepareOptionsMenu(menu);
         final boolean haveItems = getListAdapter().getCount() > 0;
 
-        if (haveItems) {
+        if (!mArchive) {
+            menu.setGroupVisible(GROUP_LIST, !mSelecting);
+            menu.setGroupVisible(Menu.CATEGORY_ALTERNATIVE, !mSelecting);
+            menu.setGroupVisible(GROUP_SELECTION, mSelecting);
+            menu.setGroupEnabled(GROUP_SELECTION, !mSelected.isEmpty());
+            menu.findItem(MENU_ITEM_SELECT_DONE).setEnabled(true);
+            menu.setGroupVisible(GROUP_UNDO, !mSelecting && mUndoRows != null);
+        }
+
+        if (haveItems && !mSelecting) {
             // This is the selected item.
-            Uri uri = ContentUris.withAppendedId(getIntent().getData(), getSelectedItemId());
+            Uri uri = itemUri(getSelectedItemId());
 
             // Build menu...  always starts with the EDIT action...
             Intent[] specifics = new Intent[1];
@@ -235,6 +1017,38 @@ public class ItemsList extends ListActivity {
 		case MENU_ITEM_DATA:
     		startActivity(new Intent(this,DataManager.class));
     		return true; 
+		case MENU_ITEM_ARCHIVE:
+    		startActivity(new Intent(Intent.ACTION_VIEW, Archive.CONTENT_URI, this, ItemsList.class));
+    		return true; 
+		case MENU_ITEM_FOLDERS:
+    		showFolders();
+    		return true; 
+		case MENU_ITEM_FILTER:
+    		showFilter();
+    		return true; 
+		case MENU_ITEM_SEARCH:
+    		onSearchRequested();
+    		return true; 
+		case MENU_ITEM_SELECT:
+    		startSelection();
+    		return true; 
+		case MENU_ITEM_BULK_COMPLETE:
+    		completeSelected();
+    		return true; 
+		case MENU_ITEM_BULK_DELETE:
+    		deleteSelected();
+    		return true; 
+		case MENU_ITEM_BULK_MOVE:
+    		List<Long> ids = new ArrayList<Long>(mSelected);
+    		endSelection();
+    		moveToFolder(Todo.CONTENT_URI, ids);
+    		return true; 
+		case MENU_ITEM_SELECT_DONE:
+    		endSelection();
+    		return true; 
+		case MENU_ITEM_UNDO:
+    		undo();
+    		return true; 
         }
         return super.onOptionsItemSelected(item);
     }
@@ -260,6 +1074,9 @@ public class ItemsList extends ListActivity {
 
         // Add a menu item to delete the note
         menu.add(0, MENU_ITEM_DELETE, 0, R.string.menu_delete);
+        if (!mArchive) {
+            menu.add(0, MENU_ITEM_MOVE, 0, "Move to folder");
+        }
     }
         
     @Override
@@ -275,23 +1092,31 @@ public class ItemsList extends ListActivity {
         switch (item.getItemId()) {
             case MENU_ITEM_DELETE: {
                 // Delete the note that the context menu is for
-                Uri noteUri = ContentUris.withAppendedId(getIntent().getData(), info.id);
+                Uri noteUri = itemUri(info.id);
                 getContentResolver().delete(noteUri, null, null);
                 return true;
             }
+            case MENU_ITEM_MOVE: {
+                moveToFolder(itemUri(info.id), null);
+                return true;
+            }
         }
         return false;
     }
 
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
-        Uri uri = ContentUris.withAppendedId(getIntent().getData(), id);
+        Uri uri = itemUri(id);
         
         String action = getIntent().getAction();
-        if (Intent.ACTION_PICK.equals(action) || Intent.ACTION_GET_CONTENT.equals(action)) {
+        if (mSelecting) {
+            toggleSelected(id);
+        } else if (Intent.ACTION_PICK.equals(action) || Intent.ACTION_GET_CONTENT.equals(action)) {
             // The caller is waiting for us to return a note selected by
             // the user.  The have clicked on one, so return it now.
             setResult(RESULT_OK, new Intent().setData(uri));
+        } else if (mArchive) {
+            restoreTask(uri);
         } else {
             // Launch activity to view/edit the currently selected item
             startActivity(new Intent(Intent.ACTION_EDIT, uri));
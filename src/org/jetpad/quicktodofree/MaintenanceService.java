@@ -0,0 +1,137 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Background job that keeps the database file in shape: it refreshes the
+ * query planner's statistics, gives free pages back to the file system and
+ * folds the write-ahead log into the file. It runs at most once a day and
+ * only while the phone is charging. Every step is a small write of its own
+ * so the app is never kept waiting for long, but for the one rebuild of the
+ * file that an upgrade can leave.
+ */
+public class MaintenanceService extends IntentService {
+    private static final String TAG = "MaintenanceService";
+
+    private static final Uri ANALYZE_URI = Uri.parse("content://" + QuickTodo.AUTHORITY + "/maintenance/analyze");
+    private static final Uri VACUUM_URI = Uri.parse("content://" + QuickTodo.AUTHORITY + "/maintenance/vacuum");
+    private static final Uri REBUILD_URI = Uri.parse("content://" + QuickTodo.AUTHORITY + "/maintenance/rebuild");
+    private static final Uri CHECKPOINT_URI = Uri.parse("content://" + QuickTodo.AUTHORITY + "/checkpoint");
+
+    /** Free pages given back per step */
+    private static final int VACUUM_PAGES = 32;
+
+    /** Pause between steps so other writers get a look in */
+    private static final long STEP_PAUSE_MILLIS = 50;
+
+    // What the last run did, kept in the default preferences
+    static final String PREF_LAST_RUN = "maintenanceLastRun";
+    static final String PREF_ANALYZE_MILLIS = "maintenanceAnalyzeMillis";
+    static final String PREF_VACUUM_MILLIS = "maintenanceVacuumMillis";
+    static final String PREF_VACUUM_BYTES = "maintenanceVacuumBytes";
+    static final String PREF_CHECKPOINT_MILLIS = "maintenanceCheckpointMillis";
+
+    public MaintenanceService() {
+        super("MaintenanceService");
+    }
+
+    /**
+     * Makes sure the job is looked at every few hours. Cheap to call
+     * repeatedly. The alarm does not wake the phone, so the job only
+     * runs when something else has.
+     */
+    public static void schedule(Context context) {
+        Intent intent = new Intent(context, MaintenanceService.class);
+        if (PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        am.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR, AlarmManager.INTERVAL_HOUR * 3,
+                PendingIntent.getService(context, 0, intent, 0));
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        long now = System.currentTimeMillis();
+        if (now - prefs.getLong(PREF_LAST_RUN, 0) < AlarmManager.INTERVAL_DAY || !isCharging()) {
+            return;
+        }
+
+        long start = SystemClock.uptimeMillis();
+        for (int step = 0; getContentResolver().update(ANALYZE_URI.buildUpon()
+                .appendQueryParameter("step", String.valueOf(step)).build(), null, null, null) > 0; step++) {
+            SystemClock.sleep(STEP_PAUSE_MILLIS);
+        }
+        long analyzeMillis = SystemClock.uptimeMillis() - start;
+
+        // Once after the upgrade that turned on incremental vacuum, the only
+        // step that rewrites the whole file
+        start = SystemClock.uptimeMillis();
+        if (getContentResolver().update(REBUILD_URI, null, null, null) > 0) {
+            Log.i(TAG, "Rebuild " + (SystemClock.uptimeMillis() - start) + "ms");
+        }
+
+        start = SystemClock.uptimeMillis();
+        Uri vacuum = VACUUM_URI.buildUpon().appendQueryParameter("pages", String.valueOf(VACUUM_PAGES)).build();
+        long reclaimed = 0;
+        int bytes;
+        while ((bytes = getContentResolver().update(vacuum, null, null, null)) > 0) {
+            reclaimed += bytes;
+            SystemClock.sleep(STEP_PAUSE_MILLIS);
+        }
+        long vacuumMillis = SystemClock.uptimeMillis() - start;
+
+        start = SystemClock.uptimeMillis();
+        getContentResolver().update(CHECKPOINT_URI, null, null, null);
+        long checkpointMillis = SystemClock.uptimeMillis() - start;
+
+        Log.i(TAG, "Analyze " + analyzeMillis + "ms, vacuum " + vacuumMillis + "ms reclaiming "
+                + reclaimed + " bytes, checkpoint " + checkpointMillis + "ms");
+        prefs.edit()
+                .putLong(PREF_LAST_RUN, now)
+                .putLong(PREF_ANALYZE_MILLIS, analyzeMillis)
+                .putLong(PREF_VACUUM_MILLIS, vacuumMillis)
+                .putLong(PREF_VACUUM_BYTES, reclaimed)
+                .putLong(PREF_CHECKPOINT_MILLIS, checkpointMillis)
+                .commit();
+    }
+
+    /**
+     * Whether the phone is plugged in, from the battery broadcast the
+     * system keeps around.
+     */
+    private boolean isCharging() {
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra("plugged", 0) != 0;
+    }
+}
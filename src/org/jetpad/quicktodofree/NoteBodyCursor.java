@@ -0,0 +1,135 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+/**
+ * Wraps a todo cursor whose note column comes from the note body table.
+ * Large note bodies are stored Deflate compressed in a hidden trailing
+ * column; they are only inflated when {@link Todo#NOTE} is actually read.
+ */
+class NoteBodyCursor extends CursorWrapper {
+    /** The hidden column holding compressed note bodies */
+    static final String COMPRESSED_NOTE = "note_zbody";
+
+    /** Note bodies longer than this many characters are compressed */
+    static final int COMPRESS_THRESHOLD = 1024;
+
+    private final int mNoteIndex;
+    private final int mCompressedIndex;
+    private final String[] mColumnNames;
+
+    NoteBodyCursor(Cursor cursor) {
+        super(cursor);
+        mNoteIndex = cursor.getColumnIndex(Todo.NOTE);
+        mCompressedIndex = cursor.getColumnIndex(COMPRESSED_NOTE);
+
+        // Hide the compressed column, it is always the last one
+        String[] names = cursor.getColumnNames();
+        mColumnNames = new String[names.length - 1];
+        System.arraycopy(names, 0, mColumnNames, 0, mColumnNames.length);
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        String s = super.getString(columnIndex);
+        if (columnIndex == mNoteIndex && s == null) {
+            byte[] compressed = super.getBlob(mCompressedIndex);
+            if (compressed != null) {
+                return inflate(compressed);
+            }
+        }
+        return s;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return mColumnNames.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    /**
+     * Returns the compressed form of a note body, or null if it isn't worth
+     * compressing.
+     */
+    static byte[] compress(String body) {
+        if (body.length() <= COMPRESS_THRESHOLD) {
+            return null;
+        }
+        byte[] input = utf8(body);
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2);
+            byte[] buf = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.size() < input.length ? out.toByteArray() : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static String inflate(byte[] compressed) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 3);
+            byte[] buf = new byte[4096];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), "UTF-8");
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt note body", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
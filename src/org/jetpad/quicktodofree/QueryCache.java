@@ -0,0 +1,489 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jetpad.quicktodofree;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.database.AbstractCursor;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Results of recent queries, kept in memory so that the same list asked
+ * for again is not run and sorted again. Every entry is stamped with the
+ * generation of the database it was read from, and any write moves the
+ * generation on, so an entry is only ever served while nothing has been
+ * written since. Results that compare against the clock also expire at
+ * the next minute, as due dates are whole minutes. The entries together
+ * are kept under {@link #MAX_BYTES}, and a result too big to keep is
+ * handed back as the database's own cursor rather than copied. Either way
+ * a requery runs the {@link Source} again, never just the SQL it ran last
+ * time, which may spell out what the source worked out then.
+ */
+final class QueryCache {
+    private static final String TAG = "QueryCache";
+
+    /** Roughly how much memory the cached rows may take */
+    static final int MAX_BYTES = 256 * 1024;
+
+    /** Results bigger than this would push out everything else, so are never kept */
+    private static final int MAX_ENTRY_BYTES = MAX_BYTES / 4;
+
+    /** How many lookups go by between reports in the log */
+    private static final int REPORT_INTERVAL = 256;
+
+    /**
+     * Runs the query a cached result stands in for, working out afresh
+     * anything the query depends on.
+     */
+    interface Source {
+        Cursor query();
+    }
+
+    private static final class Entry {
+        final String[] columns;
+        /** Each value a Long, Double, String, byte[] or null, as the database had it */
+        final Object[][] rows;
+        final long generation;
+        /** Wall clock time the result goes stale by itself, or Long.MAX_VALUE */
+        final long expires;
+        final int bytes;
+
+        Entry(String[] columns, Object[][] rows, long generation, long expires, int bytes) {
+            this.columns = columns;
+            this.rows = rows;
+            this.generation = generation;
+            this.expires = expires;
+            this.bytes = bytes;
+        }
+    }
+
+    // Least recently used first
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long mGeneration;
+    private int mBytes;
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * The key for a query, all of whose parts can change its result.
+     */
+    static String key(String uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        StringBuilder key = new StringBuilder(uri);
+        key.append('\0');
+        if (projection != null) {
+            for (String column : projection) {
+                key.append(column).append(',');
+            }
+        }
+        key.append('\0').append(selection).append('\0');
+        if (selectionArgs != null) {
+            for (String arg : selectionArgs) {
+                key.append(arg).append('\0');
+            }
+        }
+        return key.append('\0').append(sortOrder).toString();
+    }
+
+    /**
+     * Forgets every result read before now. Called on the writer after each
+     * write has committed, never before: a query that ran before the commit
+     * must not be kept under the new generation. And before observers are
+     * told of the write, so that their requery can't get the old rows.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+    }
+
+    /**
+     * A cursor over the result of source, which is only run if there is no
+     * result for key from the current generation. Requerying the cursor
+     * looks the result up again. A result too big to keep comes back as
+     * source's own cursor, wrapped so that requerying runs source again.
+     *
+     * @param clock whether the result depends on the time the query runs
+     */
+    Cursor query(String key, Source source, boolean clock) {
+        Object rows = rows(key, source, clock, false);
+        if (rows instanceof Cursor) {
+            return new SourceCursor(source, (Cursor) rows);
+        }
+        return new CachedCursor(this, key, source, clock, (Entry) rows);
+    }
+
+    /**
+     * The result for key, from memory or else read from source.
+     *
+     * @param whole whether a result too big to keep is still read into
+     *            memory rather than handed back as source's cursor
+     * @return the Entry, or the Cursor from source if it was too big
+     */
+    private Object rows(String key, Source source, boolean clock, boolean whole) {
+        long generation;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry != null && entry.generation == mGeneration && now < entry.expires) {
+                mHits++;
+                report();
+                return entry;
+            }
+            mMisses++;
+            report();
+            generation = mGeneration;
+        }
+
+        Cursor c = source.query();
+        Entry entry = read(c, generation, clock ? (now / 60000 + 1) * 60000 : Long.MAX_VALUE,
+                whole ? Integer.MAX_VALUE : MAX_ENTRY_BYTES);
+        if (entry == null) {
+            c.moveToPosition(-1);
+            return c;
+        }
+        synchronized (this) {
+            // A write since we started means the result may already be stale
+            if (entry.bytes <= MAX_ENTRY_BYTES && generation == mGeneration) {
+                Entry old = mEntries.put(key, entry);
+                if (old != null) {
+                    mBytes -= old.bytes;
+                }
+                mBytes += entry.bytes;
+                Iterator<Entry> it = mEntries.values().iterator();
+                while (mBytes > MAX_BYTES && it.hasNext()) {
+                    mBytes -= it.next().bytes;
+                    it.remove();
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Copies the rows of c into an entry and closes c, unless they come to
+     * more than maxBytes. Then c is left open for the caller.
+     *
+     * @return the entry, or null if it would have been too big
+     */
+    private static Entry read(Cursor c, long generation, long expires, int maxBytes) {
+        boolean keep = false;
+        try {
+            String[] columns = c.getColumnNames();
+            Object[][] rows = new Object[c.getCount()][];
+            int bytes = 64 * columns.length;
+            for (int i = 0; c.moveToNext(); i++) {
+                Object[] row = new Object[columns.length];
+                for (int j = 0; j < row.length; j++) {
+                    row[j] = value(c, j);
+                    bytes += size(row[j]);
+                }
+                rows[i] = row;
+                bytes += 16;
+                if (bytes > maxBytes) {
+                    keep = true;
+                    return null;
+                }
+            }
+            return new Entry(columns, rows, generation, expires, bytes);
+        } finally {
+            if (!keep) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * The value in column of the current row, of the type the database
+     * stored it as. Cursors that don't say are read as text.
+     */
+    private static Object value(Cursor c, int column) {
+        if (c.isNull(column)) {
+            return null;
+        }
+        if (c instanceof AbstractWindowedCursor) {
+            AbstractWindowedCursor w = (AbstractWindowedCursor) c;
+            if (w.isBlob(column)) {
+                return c.getBlob(column);
+            }
+            if (w.isLong(column)) {
+                return c.getLong(column);
+            }
+            if (w.isFloat(column)) {
+                return c.getDouble(column);
+            }
+        }
+        return c.getString(column);
+    }
+
+    /**
+     * Roughly the memory a value takes.
+     */
+    private static int size(Object value) {
+        if (value == null) {
+            return 4;
+        }
+        if (value instanceof String) {
+            return 40 + 2 * ((String) value).length();
+        }
+        if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        }
+        return 24;
+    }
+
+    /**
+     * Logs the hit ratio and the memory used now and then, for anyone
+     * tuning the size with "adb shell setprop log.tag.QueryCache DEBUG".
+     */
+    private void report() {
+        long lookups = mHits + mMisses;
+        if (lookups % REPORT_INTERVAL == 0 && Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, mHits + " hits in " + lookups + " lookups (" + (100 * mHits / lookups) + "%), "
+                    + mEntries.size() + " results in " + mBytes + " bytes");
+        }
+    }
+
+    /**
+     * Rows held in memory. The getters convert between types the way a
+     * database cursor would.
+     */
+    private static final class CachedCursor extends AbstractCursor {
+        // The values of Cursor.FIELD_TYPE_*, which came in with API 11
+        private static final int FIELD_TYPE_NULL = 0;
+        private static final int FIELD_TYPE_INTEGER = 1;
+        private static final int FIELD_TYPE_FLOAT = 2;
+        private static final int FIELD_TYPE_STRING = 3;
+        private static final int FIELD_TYPE_BLOB = 4;
+
+        private final QueryCache mCache;
+        private final String mKey;
+        private final Source mSource;
+        private final boolean mClock;
+        private Entry mEntry;
+
+        CachedCursor(QueryCache cache, String key, Source source, boolean clock, Entry entry) {
+            mCache = cache;
+            mKey = key;
+            mSource = source;
+            mClock = clock;
+            mEntry = entry;
+        }
+
+        @Override
+        public boolean requery() {
+            // This cursor is already handed out, so keep the result whatever its size
+            mEntry = (Entry) mCache.rows(mKey, mSource, mClock, true);
+            mPos = -1;
+            return super.requery();
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mEntry.columns;
+        }
+
+        @Override
+        public int getCount() {
+            return mEntry.rows.length;
+        }
+
+        private Object get(int column) {
+            return mEntry.rows[mPos][column];
+        }
+
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return FIELD_TYPE_BLOB;
+            }
+            return FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            if (value instanceof byte[]) {
+                return new String((byte[]) value);
+            }
+            return value != null ? value.toString() : null;
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = get(column);
+            if (value instanceof byte[]) {
+                return (byte[]) value;
+            }
+            return value != null ? value.toString().getBytes() : null;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            String s = getString(column);
+            if (s == null) {
+                return 0;
+            }
+            try {
+                return Long.parseLong(s);
+            } catch (NumberFormatException e) {
+                return (long) getDouble(column);
+            }
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = get(column);
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            String s = getString(column);
+            if (s == null) {
+                return 0;
+            }
+            try {
+                return Double.parseDouble(s);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * A result too big to keep, read straight from the database. Requerying
+     * runs the source again rather than the cursor's own SQL.
+     */
+    private static final class SourceCursor extends AbstractCursor {
+        private final Source mSource;
+        private Cursor mCursor;
+
+        SourceCursor(Source source, Cursor cursor) {
+            mSource = source;
+            mCursor = cursor;
+        }
+
+        @Override
+        public boolean requery() {
+            Cursor c = mSource.query();
+            mCursor.close();
+            mCursor = c;
+            mPos = -1;
+            return super.requery();
+        }
+
+        @Override
+        public void deactivate() {
+            super.deactivate();
+            mCursor.deactivate();
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            mCursor.close();
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            return mCursor.moveToPosition(newPosition);
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mCursor.getColumnNames();
+        }
+
+        @Override
+        public int getCount() {
+            return mCursor.getCount();
+        }
+
+        @Override
+        public String getString(int column) {
+            return mCursor.getString(column);
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return mCursor.getBlob(column);
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return mCursor.isNull(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return mCursor.getShort(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return mCursor.getInt(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            return mCursor.getLong(column);
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return mCursor.getFloat(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            return mCursor.getDouble(column);
+        }
+    }
+}
@@ -57,6 +57,30 @@ public final class QuickTodo {
          */
         public static final String DEFAULT_SORT_ORDER = "completed,hasduedate DESC,duedate";
 
+        /**
+         * The sort orders the todo list can be shown in. The provider only
+         * accepts these, each has an index of its own.
+         */
+        public static final String SORT_BY_DUE_DATE = DEFAULT_SORT_ORDER;
+        public static final String SORT_BY_PRIORITY = "completed,priority DESC,hasduedate DESC,duedate";
+        public static final String SORT_BY_CREATED = "completed,created DESC";
+        public static final String SORT_BY_MODIFIED = "completed,modified DESC";
+        public static final String SORT_BY_TITLE = "completed,title COLLATE NOCASE";
+        public static final String SORT_BY_BUCKET = "bucket,duedate";
+
+        /**
+         * Refreshing this {@link Uri} with an update works the day buckets
+         * out again, for when the day or the timezone changed.
+         */
+        public static final Uri BUCKETS_URI = Uri.parse("content://" + AUTHORITY + "/todos/buckets");
+
+        /**
+         * Query parameter on a todo list: group the rows by this column,
+         * only {@link #BUCKET} is supported. Ask for {@link #_COUNT} to get
+         * the size of each group.
+         */
+        public static final String PARAM_GROUP_BY = "group_by";
+
         /**
          * The title of the note
          * <P>Type: TEXT</P>
@@ -93,6 +117,294 @@ public final class QuickTodo {
 		public static final String PRIORITY = "priority";
 		public static final String SCHEDULE_DATE = "scheduledate";
 		public static final String INBOX = "inbox";
+
+		/**
+		 * The recurrence rule of a repeating todo, see {@link Recurrence}
+		 * <P>Type: TEXT</P>
+		 */
+		public static final String RRULE = "rrule";
+
+		/**
+		 * The due date of the first occurrence of a repeating todo. Every
+		 * later occurrence is worked out from it, so that a todo due on the
+		 * 31st comes back on the 31st after a short month. Set by the
+		 * provider whenever the due date or the rule is changed.
+		 * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+		 */
+		public static final String SERIES_START = "seriesstart";
+
+		/**
+		 * The tags of the todo as "@work @phone". Not stored in the items
+		 * table, writing it replaces all of the todo's tags.
+		 * <P>Type: TEXT</P>
+		 */
+		public static final String TAGS = "tags";
+
+		/**
+		 * Which part of the agenda the todo falls in, one of the BUCKET_
+		 * constants. Worked out in local time when the todo is written and
+		 * again when the day changes.
+		 * <P>Type: INTEGER</P>
+		 */
+		public static final String BUCKET = "bucket";
+		public static final int BUCKET_OVERDUE = 0;
+		public static final int BUCKET_TODAY = 1;
+		public static final int BUCKET_TOMORROW = 2;
+		public static final int BUCKET_THIS_WEEK = 3;
+		public static final int BUCKET_LATER = 4;
+		public static final int BUCKET_NO_DATE = 5;
+		public static final int BUCKET_COMPLETED = 6;
+
+		/**
+		 * Query parameter on todo queries: the time, in milliseconds, that
+		 * the display columns below compare due dates against. Without it
+		 * they use the time each query or requery runs.
+		 */
+		public static final String PARAM_NOW = "now";
+
+		/**
+		 * Whether an open todo with a due date is past it. Worked out by
+		 * the provider, not stored.
+		 * <P>Type: INTEGER (0 or 1)</P>
+		 */
+		public static final String IS_OVERDUE = "is_overdue";
+
+		/**
+		 * The due date of an open todo as the list shows it, like
+		 * "Mon, 07 Jun 2010 09:30". Null when no due date is shown.
+		 * Worked out by the provider, not stored.
+		 * <P>Type: TEXT</P>
+		 */
+		public static final String DUE_DAY = "due_day";
+
+		/**
+		 * How the list shows the todo's date, one of the DISPLAY_
+		 * constants. Worked out by the provider, not stored.
+		 * <P>Type: INTEGER</P>
+		 */
+		public static final String DISPLAY_STATE = "display_state";
+		public static final int DISPLAY_DUE = 0;
+		public static final int DISPLAY_OVERDUE = 1;
+		public static final int DISPLAY_COMPLETED = 2;
+		public static final int DISPLAY_NO_DATE = 3;
 		
     }
+
+    /**
+     * Tags that todos can carry, and the query parameters that filter the
+     * todo list by them.
+     */
+    public static final class Tags implements BaseColumns {
+        // This class cannot be instantiated
+        private Tags() {}
+
+        /**
+         * The content:// style URL for this table
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/tags");
+
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a directory of tags.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.jetpad.tag";
+
+        /**
+         * The default sort order for this table
+         */
+        public static final String DEFAULT_SORT_ORDER = "name";
+
+        /**
+         * The name of the tag, lower case and without the leading @
+         * <P>Type: TEXT</P>
+         */
+        public static final String NAME = "name";
+
+        /**
+         * Query parameter on {@link Todo#CONTENT_URI}: comma separated tags
+         * that every returned todo must carry
+         */
+        public static final String PARAM_ALL = "tags";
+
+        /**
+         * Query parameter on {@link Todo#CONTENT_URI}: comma separated tags
+         * that no returned todo may carry
+         */
+        public static final String PARAM_NONE = "exclude_tags";
+
+        /**
+         * Query parameter on {@link Todo#CONTENT_URI}: {@link #STATUS_OPEN}
+         * or {@link #STATUS_DONE}
+         */
+        public static final String PARAM_STATUS = "status";
+        public static final String STATUS_OPEN = "open";
+        public static final String STATUS_DONE = "done";
+    }
+
+    /**
+     * Folders table. Todos point at their folder through {@link Todo#FOLDER}.
+     */
+    public static final class Folders implements BaseColumns {
+        // This class cannot be instantiated
+        private Folders() {}
+
+        /**
+         * The content:// style URL for this table
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/folders");
+
+        /**
+         * The sub-directory of a folder {@link Uri} holding its todos
+         */
+        public static final String TODOS_DIRECTORY = "todos";
+
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a directory of folders.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.jetpad.folder";
+
+        /**
+         * The MIME type of a {@link #CONTENT_URI} sub-directory of a single folder.
+         */
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.jetpad.folder";
+
+        /**
+         * The default sort order for this table
+         */
+        public static final String DEFAULT_SORT_ORDER = "name COLLATE NOCASE";
+
+        /**
+         * The name of the folder
+         * <P>Type: TEXT</P>
+         */
+        public static final String NAME = "name";
+
+        /**
+         * How many todos in the folder are not completed, kept up to date by the database
+         * <P>Type: INTEGER</P>
+         */
+        public static final String PENDING_COUNT = "pending";
+    }
+
+    /**
+     * Archive of completed todos. Rows have all the columns of
+     * {@link Todo} plus the time they were archived, and keep their
+     * original {@link Todo#_ID}.
+     */
+    public static final class Archive implements BaseColumns {
+        // This class cannot be instantiated
+        private Archive() {}
+
+        /**
+         * The content:// style URL for this table
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/archive");
+
+        /**
+         * Updating this URL moves one batch of completed todos matching the
+         * where clause into the archive and returns how many were moved.
+         * The batch size may be given as a "limit" query parameter.
+         */
+        public static final Uri SWEEP_URI = Uri.parse("content://" + AUTHORITY + "/archive/sweep");
+
+        /**
+         * Inserting into this sub-directory of an archived todo's {@link Uri}
+         * moves it back to the todo list.
+         */
+        public static final String RESTORE_DIRECTORY = "restore";
+
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a directory of archived todos.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.jetpad.todof.archive";
+
+        /**
+         * The MIME type of a {@link #CONTENT_URI} sub-directory of a single archived todo.
+         */
+        public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.jetpad.todof.archive";
+
+        /**
+         * The default sort order for this table
+         */
+        public static final String DEFAULT_SORT_ORDER = "archived DESC";
+
+        /**
+         * The timestamp for when the todo was archived
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String ARCHIVED_DATE = "archived";
+    }
+
+    /**
+     * Alarm state table. Records what was last handed to the AlarmManager
+     * for each todo so that rescheduling only touches items that changed.
+     * The {@link #_ID} of a row is the id of the todo it belongs to.
+     */
+    public static final class AlarmState implements BaseColumns {
+        // This class cannot be instantiated
+        private AlarmState() {}
+
+        /**
+         * The content:// style URL for this table
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/alarmstate");
+
+        /**
+         * The time the alarm was set to go off
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String FIRE_DATE = "fire_date";
+
+        /**
+         * Whether an alarm is currently set with the AlarmManager
+         * <P>Type: INTEGER (0 or 1)</P>
+         */
+        public static final String ARMED = "armed";
+    }
+
+    /**
+     * Reminders table. A todo may have any number of reminders, each one
+     * going off a fixed number of minutes before the todo is due.
+     */
+    public static final class Reminders implements BaseColumns {
+        // This class cannot be instantiated
+        private Reminders() {}
+
+        /**
+         * The content:// style URL for this table
+         */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/reminders");
+
+        /**
+         * The sub-directory of a todo {@link Uri} holding its reminders
+         */
+        public static final String CONTENT_DIRECTORY = "reminders";
+
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a directory of reminders.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.jetpad.reminder";
+
+        /**
+         * The default sort order for this table
+         */
+        public static final String DEFAULT_SORT_ORDER = "fire_date";
+
+        /**
+         * The todo this reminder belongs to
+         * <P>Type: INTEGER (long)</P>
+         */
+        public static final String TODO_ID = "todo_id";
+
+        /**
+         * How long before the due date the reminder goes off
+         * <P>Type: INTEGER (minutes)</P>
+         */
+        public static final String MINUTES_BEFORE = "minutes_before";
+
+        /**
+         * When the reminder goes off, kept in step with the todo's due date
+         * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
+         */
+        public static final String FIRE_DATE = "fire_date";
+    }
 }
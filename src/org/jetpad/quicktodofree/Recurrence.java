@@ -0,0 +1,177 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * A recurrence rule for a todo, using the subset of the iCalendar RRULE
+ * syntax we support: FREQ=DAILY|WEEKLY|MONTHLY, INTERVAL=n and UNTIL=date.
+ * Only the current occurrence of a series is ever stored; the next one is
+ * computed from it when it is completed.
+ */
+public final class Recurrence {
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    private static final String UNTIL_FORMAT = "yyyyMMdd'T'HHmmss'Z'";
+
+    public static final int DAILY = 0;
+    public static final int WEEKLY = 1;
+    public static final int MONTHLY = 2;
+
+    private static final String[] FREQ_NAMES = { "DAILY", "WEEKLY", "MONTHLY" };
+
+    private final int mFreq;
+    private final int mInterval;
+    private final long mUntil;
+
+    public Recurrence(int freq, int interval, long until) {
+        if (freq < DAILY || freq > MONTHLY || interval < 1) {
+            throw new IllegalArgumentException("Bad recurrence " + freq + "/" + interval);
+        }
+        mFreq = freq;
+        mInterval = interval;
+        mUntil = until;
+    }
+
+    /**
+     * Parses a rule such as "FREQ=WEEKLY;INTERVAL=2". Returns null for an
+     * empty rule.
+     */
+    public static Recurrence parse(String rule) {
+        if (rule == null || rule.length() == 0) {
+            return null;
+        }
+        int freq = -1;
+        int interval = 1;
+        long until = 0;
+        for (String part : rule.split(";")) {
+            int eq = part.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Bad recurrence rule " + rule);
+            }
+            String name = part.substring(0, eq).trim().toUpperCase();
+            String value = part.substring(eq + 1).trim().toUpperCase();
+            if (name.equals("FREQ")) {
+                for (int i = 0; i < FREQ_NAMES.length; i++) {
+                    if (FREQ_NAMES[i].equals(value)) {
+                        freq = i;
+                    }
+                }
+            } else if (name.equals("INTERVAL")) {
+                try {
+                    interval = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Bad recurrence rule " + rule);
+                }
+            } else if (name.equals("UNTIL")) {
+                try {
+                    until = (value.length() == 8 ? new SimpleDateFormat("yyyyMMdd")
+                            : untilFormat()).parse(value).getTime();
+                } catch (ParseException e) {
+                    throw new IllegalArgumentException("Bad recurrence rule " + rule);
+                }
+            }
+            // Anything else is outside the supported subset and ignored
+        }
+        if (freq < 0) {
+            throw new IllegalArgumentException("Bad recurrence rule " + rule);
+        }
+        return new Recurrence(freq, interval, until);
+    }
+
+    /**
+     * Returns the first occurrence of the series that starts at start and
+     * falls strictly after the given time, or 0 if the series has ended by
+     * then. The occurrence is computed directly rather than by walking the
+     * series, so a long overdue todo costs the same as one that is on time.
+     */
+    public long nextAfter(long start, long after) {
+        int field = (mFreq == MONTHLY) ? Calendar.MONTH : Calendar.DATE;
+        int step = (mFreq == WEEKLY) ? 7 * mInterval : mInterval;
+
+        Calendar c = Calendar.getInstance();
+        long k = 1;
+        if (after > start) {
+            if (mFreq == MONTHLY) {
+                Calendar a = Calendar.getInstance();
+                a.setTimeInMillis(after);
+                c.setTimeInMillis(start);
+                long months = (a.get(Calendar.YEAR) - c.get(Calendar.YEAR)) * 12L
+                        + a.get(Calendar.MONTH) - c.get(Calendar.MONTH);
+                k = Math.max(1, months / step);
+            } else {
+                k = Math.max(1, (after - start) / (step * DAY_MILLIS));
+            }
+        }
+
+        // The estimate can be short by a step or two around month ends and
+        // daylight saving changes. Always add from the start so that the
+        // 31st of a month doesn't drift after a short month.
+        long next;
+        while (true) {
+            c.setTimeInMillis(start);
+            c.add(field, (int) (k * step));
+            next = c.getTimeInMillis();
+            if (next > after) {
+                break;
+            }
+            k++;
+        }
+
+        if (mUntil != 0 && next > mUntil) {
+            return 0;
+        }
+        return next;
+    }
+
+    /**
+     * A short human readable description, e.g. "Every 2 weeks".
+     */
+    public String describe() {
+        String unit = (mFreq == DAILY) ? "day" : (mFreq == WEEKLY) ? "week" : "month";
+        String s = (mInterval == 1) ? "Every " + unit : "Every " + mInterval + " " + unit + "s";
+        if (mUntil != 0) {
+            s += " until " + DateFormat.getDateInstance().format(new Date(mUntil));
+        }
+        return s;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("FREQ=").append(FREQ_NAMES[mFreq]);
+        if (mInterval != 1) {
+            sb.append(";INTERVAL=").append(mInterval);
+        }
+        if (mUntil != 0) {
+            sb.append(";UNTIL=").append(untilFormat().format(new Date(mUntil)));
+        }
+        return sb.toString();
+    }
+
+    private static SimpleDateFormat untilFormat() {
+        SimpleDateFormat f = new SimpleDateFormat(UNTIL_FORMAT);
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return f;
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import org.jetpad.quicktodo.R;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * What tapping a reminder's notification brings up: open the todo,
+ * complete it or snooze it. Notifications only take buttons of their own
+ * from API 11, so the choices are offered here over whatever was showing,
+ * and carried out by {@link ReminderReceiver}.
+ */
+public class ReminderActions extends Activity {
+    private static final int OPEN = 0;
+    private static final int COMPLETE = 1;
+    private static final int SNOOZE_SHORT = 2;
+    private static final int SNOOZE_LONG = 3;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        CharSequence[] labels = new CharSequence[] {
+                getString(R.string.reminder_open), getString(R.string.reminder_complete),
+                getString(R.string.reminder_snooze_short), getString(R.string.reminder_snooze_long),
+        };
+        new AlertDialog.Builder(this).setTitle(getIntent().getStringExtra("title"))
+                .setItems(labels, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        choose(which);
+                        finish();
+                    }
+                })
+                .setOnCancelListener(new DialogInterface.OnCancelListener() {
+                    public void onCancel(DialogInterface dialog) {
+                        finish();
+                    }
+                })
+                .show();
+    }
+
+    private void choose(int which) {
+        Intent intent = getIntent();
+        Uri uri = intent.getData();
+        if (which == OPEN) {
+            Intent view = new Intent("org.jetpad.quicktodofree.VIEW_REMINDER", uri);
+            view.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP | Intent.FLAG_ACTIVITY_NEW_TASK);
+            startActivity(view);
+            return;
+        }
+        String title = intent.getStringExtra("title");
+        String notifyText = intent.getStringExtra("notifyText");
+        long duedate = intent.getLongExtra("duedate", System.currentTimeMillis());
+        if (which == COMPLETE) {
+            sendBroadcast(ReminderReceiver.actionIntent(this, ReminderReceiver.ACTION_COMPLETE, 0,
+                    uri, title, notifyText, duedate));
+        } else {
+            sendBroadcast(ReminderReceiver.actionIntent(this, ReminderReceiver.ACTION_SNOOZE,
+                    which == SNOOZE_SHORT ? 10 : 60, uri, title, notifyText, duedate));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jetpad.quicktodofree;
+
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.app.AlarmManager;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+
+/**
+ * Puts up the notification for a due todo, and completes or snoozes it
+ * when that is picked in {@link ReminderActions}. Completing is one update
+ * of the todo, which reschedules that todo's alarm as any update does.
+ * Snoozing only arms an alarm.
+ */
+public class ReminderReceiver extends BroadcastReceiver {
+    static final String ACTION_SHOW = "org.jetpad.quicktodofree.SHOW_REMINDER";
+    static final String ACTION_COMPLETE = "org.jetpad.quicktodofree.COMPLETE_REMINDER";
+    static final String ACTION_SNOOZE = "org.jetpad.quicktodofree.SNOOZE_REMINDER";
+
+    static final String EXTRA_MINUTES = "minutes";
+
+    // Each todo has a due alarm and a snooze alarm, told apart by request code
+    private static final int REQUEST_DUE = 0;
+    private static final int REQUEST_SNOOZE = 1;
+
+    /**
+     * The alarm that shows the notification for the todo at uri when it is
+     * due. Arming it again replaces the earlier one.
+     */
+    static PendingIntent dueIntent(Context context, Uri uri, String title, String notifyText, long duedate) {
+        return showIntent(context, REQUEST_DUE, uri, title, notifyText, duedate);
+    }
+
+    /**
+     * The alarm that shows the notification again after a snooze.
+     */
+    static PendingIntent snoozeIntent(Context context, Uri uri, String title, String notifyText, long duedate) {
+        return showIntent(context, REQUEST_SNOOZE, uri, title, notifyText, duedate);
+    }
+
+    private static PendingIntent showIntent(Context context, int request, Uri uri,
+            String title, String notifyText, long duedate) {
+        Intent show = new Intent(ACTION_SHOW, uri, context, ReminderReceiver.class);
+        show.putExtra("title", title);
+        show.putExtra("notifyText", notifyText);
+        show.putExtra("duedate", duedate);
+        return PendingIntent.getBroadcast(context, request, show, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * The broadcast that completes or snoozes the todo at uri, with the
+     * details needed to show its notification again.
+     */
+    static Intent actionIntent(Context context, String action, int minutes, Uri uri,
+            String title, String notifyText, long duedate) {
+        Intent i = new Intent(action, uri, context, ReminderReceiver.class);
+        i.putExtra(EXTRA_MINUTES, minutes);
+        i.putExtra("title", title);
+        i.putExtra("notifyText", notifyText);
+        i.putExtra("duedate", duedate);
+        return i;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Uri uri = intent.getData();
+        String action = intent.getAction();
+        String title = intent.getStringExtra("title");
+        String notifyText = intent.getStringExtra("notifyText");
+        long duedate = intent.getLongExtra("duedate", System.currentTimeMillis());
+
+        if (ACTION_SHOW.equals(action)) {
+            TodoAlarm.showNotification(context, uri, title, notifyText, duedate);
+            return;
+        }
+
+        NotificationManager nman = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        nman.cancel(uri.hashCode());
+        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent snooze = snoozeIntent(context, uri, title, notifyText, duedate);
+
+        if (ACTION_COMPLETE.equals(action)) {
+            am.cancel(snooze);
+            ContentValues values = new ContentValues();
+            values.put(Todo.COMPLETED, 1);
+            context.getContentResolver().update(uri, values, null, null);
+        } else if (ACTION_SNOOZE.equals(action)) {
+            long minutes = intent.getIntExtra(EXTRA_MINUTES, 10);
+            am.set(AlarmManager.RTC_WAKEUP, System.currentTimeMillis() + minutes * 60 * 1000, snooze);
+        }
+    }
+}
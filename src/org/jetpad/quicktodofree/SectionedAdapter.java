@@ -0,0 +1,179 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ListAdapter;
+import android.widget.TextView;
+
+/**
+ * Shows a todo list sorted by {@link Todo#SORT_BY_BUCKET} with a header
+ * above each agenda bucket. Where the headers go comes from one grouped
+ * count query, the rows themselves are never looked at.
+ */
+class SectionedAdapter extends BaseAdapter {
+    private final Context mContext;
+    private final ListAdapter mAdapter;
+    private final Uri mCountsUri;
+    private final String[] mTitles;
+
+    /** Position of each header in this adapter, ascending */
+    private int[] mHeaderPositions = new int[0];
+    private String[] mHeaderTitles = new String[0];
+
+    /**
+     * @param adapter the rows, sorted by bucket
+     * @param listUri the list the rows were queried from, with any filters
+     */
+    SectionedAdapter(Context context, ListAdapter adapter, Uri listUri) {
+        mContext = context;
+        mAdapter = adapter;
+        mCountsUri = listUri.buildUpon().appendQueryParameter(Todo.PARAM_GROUP_BY, Todo.BUCKET).build();
+        mTitles = context.getResources().getStringArray(R.array.bucket_titles);
+        loadSections();
+
+        mAdapter.registerDataSetObserver(new DataSetObserver() {
+            @Override
+            public void onChanged() {
+                loadSections();
+                notifyDataSetChanged();
+            }
+
+            @Override
+            public void onInvalidated() {
+                notifyDataSetInvalidated();
+            }
+        });
+    }
+
+    ListAdapter getWrappedAdapter() {
+        return mAdapter;
+    }
+
+    private void loadSections() {
+        Cursor c = mContext.getContentResolver().query(mCountsUri,
+                new String[] { Todo.BUCKET, Todo._COUNT }, null, null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            int[] positions = new int[c.getCount()];
+            String[] titles = new String[positions.length];
+            int position = 0;
+            while (c.moveToNext()) {
+                int bucket = c.getInt(0);
+                positions[c.getPosition()] = position;
+                titles[c.getPosition()] = (bucket >= 0 && bucket < mTitles.length ? mTitles[bucket] : "")
+                        + " (" + c.getInt(1) + ")";
+                position += 1 + c.getInt(1);
+            }
+            if (position - positions.length != mAdapter.getCount()) {
+                // Written to in between the two queries, show no headers
+                // rather than misplaced ones until the next change
+                positions = new int[0];
+                titles = new String[0];
+            }
+            mHeaderPositions = positions;
+            mHeaderTitles = titles;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * The number of headers at or before position
+     */
+    private int headersUpTo(int position) {
+        int lo = 0;
+        int hi = mHeaderPositions.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mHeaderPositions[mid] <= position) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private boolean isHeader(int position) {
+        int headers = headersUpTo(position);
+        return headers > 0 && mHeaderPositions[headers - 1] == position;
+    }
+
+    public int getCount() {
+        return mAdapter.getCount() + mHeaderPositions.length;
+    }
+
+    public Object getItem(int position) {
+        return isHeader(position) ? null : mAdapter.getItem(position - headersUpTo(position));
+    }
+
+    public long getItemId(int position) {
+        return isHeader(position) ? -1 : mAdapter.getItemId(position - headersUpTo(position));
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return mAdapter.hasStableIds();
+    }
+
+    @Override
+    public boolean areAllItemsEnabled() {
+        return false;
+    }
+
+    @Override
+    public boolean isEnabled(int position) {
+        return !isHeader(position);
+    }
+
+    @Override
+    public int getViewTypeCount() {
+        return mAdapter.getViewTypeCount() + 1;
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return isHeader(position) ? mAdapter.getViewTypeCount()
+                : mAdapter.getItemViewType(position - headersUpTo(position));
+    }
+
+    public View getView(int position, View convertView, ViewGroup parent) {
+        if (!isHeader(position)) {
+            return mAdapter.getView(position - headersUpTo(position), convertView, parent);
+        }
+        TextView header = (TextView) convertView;
+        if (header == null) {
+            header = (TextView) LayoutInflater.from(mContext).inflate(R.layout.list_section, parent, false);
+        }
+        header.setText(mHeaderTitles[headersUpTo(position) - 1]);
+        return header;
+    }
+}
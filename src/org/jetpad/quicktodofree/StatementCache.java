@@ -0,0 +1,193 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jetpad.quicktodofree;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+/**
+ * Compiled statements for the writes the provider makes over and over,
+ * so that SQLite parses and plans each shape of insert, update and delete
+ * once instead of on every write. Statements are keyed by their SQL, which
+ * only ever carries column names and placeholders; every value, ids
+ * included, is bound.
+ */
+final class StatementCache {
+    /** Enough for the editor's saves, toggles, deletes and inserts */
+    private static final int MAX_STATEMENTS = 24;
+
+    private final LinkedHashMap<String, SQLiteStatement> mStatements =
+            new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+            if (size() > MAX_STATEMENTS) {
+                eldest.getValue().close();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /** The database the statements were compiled against */
+    private SQLiteDatabase mDb;
+
+    private SQLiteStatement get(SQLiteDatabase db, String sql) {
+        if (db != mDb) {
+            // Reopened behind our back, whatever we had went with the old one
+            mStatements.clear();
+            mDb = db;
+        }
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            mStatements.put(sql, statement);
+        } else {
+            statement.clearBindings();
+        }
+        return statement;
+    }
+
+    /**
+     * Closes every statement. Must be called before the database is closed.
+     */
+    synchronized void clear() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+        mDb = null;
+    }
+
+    /**
+     * The same as {@link SQLiteDatabase#insert}.
+     */
+    synchronized long insert(SQLiteDatabase db, String table, ContentValues values) {
+        TreeMap<String, Object> columns = sorted(values);
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        StringBuilder params = new StringBuilder();
+        for (String column : columns.keySet()) {
+            if (params.length() > 0) {
+                sql.append(',');
+                params.append(',');
+            }
+            sql.append(column);
+            params.append('?');
+        }
+        sql.append(") VALUES (").append(params).append(')');
+
+        SQLiteStatement statement = get(db, sql.toString());
+        bind(statement, 1, columns.values().toArray());
+        return statement.executeInsert();
+    }
+
+    /**
+     * The same as {@link SQLiteDatabase#update}, values must not be empty.
+     */
+    synchronized int update(SQLiteDatabase db, String table, ContentValues values, String where,
+            String[] whereArgs) {
+        TreeMap<String, Object> columns = sorted(values);
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        boolean first = true;
+        for (String column : columns.keySet()) {
+            if (!first) {
+                sql.append(',');
+            }
+            sql.append(column).append("=?");
+            first = false;
+        }
+        if (!TextUtils.isEmpty(where)) {
+            sql.append(" WHERE ").append(where);
+        }
+
+        SQLiteStatement statement = get(db, sql.toString());
+        int index = bind(statement, 1, columns.values().toArray());
+        bind(statement, index, whereArgs);
+        statement.execute();
+        return changes(db);
+    }
+
+    /**
+     * The same as {@link SQLiteDatabase#delete}.
+     */
+    synchronized int delete(SQLiteDatabase db, String table, String where, String[] whereArgs) {
+        execute(db, "DELETE FROM " + table + (!TextUtils.isEmpty(where) ? " WHERE " + where : ""), whereArgs);
+        return changes(db);
+    }
+
+    /**
+     * Runs a statement that returns nothing.
+     */
+    synchronized void execute(SQLiteDatabase db, String sql, Object[] args) {
+        SQLiteStatement statement = get(db, sql);
+        bind(statement, 1, args);
+        statement.execute();
+    }
+
+    /**
+     * How many rows the last statement changed, SQLiteStatement itself
+     * only says so from Honeycomb on.
+     */
+    private int changes(SQLiteDatabase db) {
+        return (int) get(db, "SELECT changes()").simpleQueryForLong();
+    }
+
+    private static TreeMap<String, Object> sorted(ContentValues values) {
+        // The same columns always make the same SQL, whatever order they were put in
+        TreeMap<String, Object> columns = new TreeMap<String, Object>();
+        for (Map.Entry<String, Object> e : values.valueSet()) {
+            columns.put(e.getKey(), e.getValue());
+        }
+        return columns;
+    }
+
+    /**
+     * Binds args from index on.
+     *
+     * @return the index after the last one bound
+     */
+    private static int bind(SQLiteStatement statement, int index, Object[] args) {
+        if (args == null) {
+            return index;
+        }
+        for (Object arg : args) {
+            if (arg == null) {
+                statement.bindNull(index);
+            } else if (arg instanceof byte[]) {
+                statement.bindBlob(index, (byte[]) arg);
+            } else if (arg instanceof Boolean) {
+                statement.bindLong(index, ((Boolean) arg) ? 1 : 0);
+            } else if (arg instanceof Float || arg instanceof Double) {
+                statement.bindDouble(index, ((Number) arg).doubleValue());
+            } else if (arg instanceof Number) {
+                statement.bindLong(index, ((Number) arg).longValue());
+            } else {
+                statement.bindString(index, arg.toString());
+            }
+            index++;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,233 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.io.File;
+import java.lang.reflect.Method;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * How the database file is laid out and journaled, picked with the
+ * storageProfile preference. The write-ahead log lets the list read while
+ * the alarm service or an import is writing. Reads only run beside a write
+ * on a connection of their own, which Android hands out from API 11, so
+ * older platforms keep their rollback journal and just take the cache
+ * settings.
+ */
+final class StorageProfile {
+    private static final String TAG = "StorageProfile";
+
+    static final String PREF_STORAGE_PROFILE = "storageProfile";
+
+    /** Followed by the file name, set while the file awaits its rebuild */
+    private static final String PREF_REBUILD_PENDING = "storageRebuildPending:";
+
+    /** Rollback journal and SQLite's defaults, as the app always had */
+    static final StorageProfile COMPATIBLE = new StorageProfile("compatible", "DELETE", "FULL", 1024, 0, 0, 0);
+
+    /** Readers never wait for writers, syncs only at checkpoints */
+    static final StorageProfile CONCURRENT = new StorageProfile("concurrent", "WAL", "NORMAL", 4096, 500, 0, 1000);
+
+    /** As concurrent, with a larger cache and reads through memory mapped I/O */
+    static final StorageProfile FAST = new StorageProfile("fast", "WAL", "NORMAL", 4096, 2000, 8 * 1024 * 1024, 1000);
+
+    private static final StorageProfile[] PROFILES = { COMPATIBLE, CONCURRENT, FAST };
+
+    final String name;
+    final String journalMode;
+    final String synchronous;
+    final int pageSize;
+    /** Pages to cache, 0 for SQLite's default */
+    final int cacheSize;
+    /** Bytes to memory map, 0 for none */
+    final long mmapSize;
+    /** Log pages that trigger an automatic checkpoint */
+    final int autoCheckpoint;
+
+    private StorageProfile(String name, String journalMode, String synchronous, int pageSize,
+            int cacheSize, long mmapSize, int autoCheckpoint) {
+        this.name = name;
+        this.journalMode = journalMode;
+        this.synchronous = synchronous;
+        this.pageSize = pageSize;
+        this.cacheSize = cacheSize;
+        this.mmapSize = mmapSize;
+        this.autoCheckpoint = autoCheckpoint;
+    }
+
+    static StorageProfile get(Context context) {
+        String name = PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(PREF_STORAGE_PROFILE, CONCURRENT.name);
+        for (StorageProfile profile : PROFILES) {
+            if (profile.name.equals(name)) {
+                return profile;
+            }
+        }
+        return CONCURRENT;
+    }
+
+    /**
+     * Sets the page size of a new database, and has it give free pages back
+     * a few at a time. Android has made its metadata table by now, so the
+     * file isn't empty and both only take once it is rebuilt. A file in WAL
+     * mode by then keeps SQLite's page size.
+     */
+    void create(Context context, SQLiteDatabase db) {
+        db.execSQL("PRAGMA page_size=" + pageSize);
+        db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+        requestRebuild(context, db);
+    }
+
+    /**
+     * Records that db is to be rebuilt, for MaintenanceService to do through
+     * {@link #rebuildIfPending(Context, SQLiteDatabase)} once the phone is
+     * idle. Kept per file name, the tests open files of their own.
+     */
+    static void requestRebuild(Context context, SQLiteDatabase db) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putBoolean(rebuildKey(db), true).commit();
+    }
+
+    static boolean isRebuildPending(Context context, SQLiteDatabase db) {
+        return PreferenceManager.getDefaultSharedPreferences(context).getBoolean(rebuildKey(db), false);
+    }
+
+    /**
+     * Rewrites the whole file if it was asked for, so that incremental
+     * vacuum takes. Holds the lock for as long as that takes, which is why
+     * it waits for MaintenanceService. Must be called outside a transaction.
+     *
+     * @return false if there was nothing to do
+     */
+    static boolean rebuildIfPending(Context context, SQLiteDatabase db) {
+        if (!isRebuildPending(context, db)) {
+            return false;
+        }
+        // The upgrade only set the mode on the connection it ran on
+        db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+        long start = System.currentTimeMillis();
+        db.execSQL("VACUUM");
+        // Only once it worked, a failed rebuild is tried again next time
+        PreferenceManager.getDefaultSharedPreferences(context).edit().remove(rebuildKey(db)).commit();
+        Log.i(TAG, "Rebuilt in " + (System.currentTimeMillis() - start) + "ms, auto_vacuum "
+                + pragma(db, "auto_vacuum"));
+        return true;
+    }
+
+    private static String rebuildKey(SQLiteDatabase db) {
+        return PREF_REBUILD_PENDING + new File(db.getPath()).getName();
+    }
+
+    /**
+     * Sets db up for this profile. Must be called outside a transaction, as
+     * the journal mode can't change inside one.
+     */
+    void apply(SQLiteDatabase db) {
+        String mode;
+        if ("WAL".equalsIgnoreCase(journalMode) && enableWriteAheadLogging(db)) {
+            mode = pragma(db, "journal_mode");
+        } else {
+            // A file left in WAL mode by a newer profile goes back too
+            mode = pragma(db, "journal_mode=DELETE");
+        }
+        if (!journalMode.equalsIgnoreCase(mode)) {
+            Log.i(TAG, "Journal mode " + journalMode + " not available, using " + mode);
+        }
+        db.execSQL("PRAGMA synchronous=" + synchronous);
+        if (cacheSize > 0) {
+            db.execSQL("PRAGMA cache_size=" + cacheSize);
+        }
+        if ("WAL".equalsIgnoreCase(mode)) {
+            pragma(db, "wal_autocheckpoint=" + autoCheckpoint);
+        }
+        // Unknown pragmas are ignored by builds without memory mapping
+        pragma(db, "mmap_size=" + mmapSize);
+    }
+
+    /**
+     * Turns on the write-ahead log through the platform, which also gives
+     * readers connections of their own. SQLiteDatabase has no way to do it
+     * before API 11.
+     *
+     * @return false if the log could not be turned on
+     */
+    private static boolean enableWriteAheadLogging(SQLiteDatabase db) {
+        if (Integer.parseInt(Build.VERSION.SDK) < 11) {
+            return false;
+        }
+        try {
+            Method enable = SQLiteDatabase.class.getMethod("enableWriteAheadLogging");
+            return (Boolean) enable.invoke(db);
+        } catch (Exception e) {
+            Log.w(TAG, "Could not turn on the write-ahead log", e);
+            return false;
+        }
+    }
+
+    /**
+     * Copies everything in the write-ahead log into the database file and
+     * empties the log, so that the file alone is a complete copy. Does
+     * nothing without a log. SQLite builds without TRUNCATE still copy the
+     * log, they just leave the file of it behind.
+     *
+     * @return false if a reader kept part of the log from being copied
+     */
+    static boolean checkpoint(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null);
+        try {
+            // busy, pages in the log, pages copied
+            return !c.moveToFirst() || (c.getInt(0) == 0 && c.getInt(1) == c.getInt(2));
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Gives back up to pages free pages to the file system. Does nothing
+     * for a file that was never rebuilt with incremental vacuum on.
+     *
+     * @return how many bytes the file shrank by
+     */
+    static int incrementalVacuum(SQLiteDatabase db, int pages) {
+        long before = Long.parseLong(pragma(db, "page_count"));
+        db.execSQL("PRAGMA incremental_vacuum(" + pages + ")");
+        long after = Long.parseLong(pragma(db, "page_count"));
+        return (int) ((before - after) * Long.parseLong(pragma(db, "page_size")));
+    }
+
+    /**
+     * Runs a pragma that may answer with a row, which execSQL refuses.
+     *
+     * @return the first column of the answer, or null if there is none
+     */
+    private static String pragma(SQLiteDatabase db, String pragma) {
+        Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * In memory bitmaps of which todos carry each tag and which are open or
+ * completed, so that tag filters are intersections instead of joins. The
+ * index is read from the database the first time a filter needs it and
+ * is then kept up to date by {@link TodoProvider} as it writes.
+ */
+final class TagIndex {
+    static final int STATUS_ANY = 0;
+    static final int STATUS_OPEN = 1;
+    static final int STATUS_DONE = 2;
+
+    private final HashMap<String, IdBitmap> mTags = new HashMap<String, IdBitmap>();
+    private IdBitmap mOpen = new IdBitmap();
+    private IdBitmap mDone = new IdBitmap();
+    private boolean mLoaded;
+
+    /**
+     * Splits user input like "@work, @phone" into tag names.
+     */
+    static Set<String> parse(String text) {
+        Set<String> tags = new TreeSet<String>();
+        if (text == null) {
+            return tags;
+        }
+        for (String tag : text.split("[\\s,]+")) {
+            while (tag.startsWith("@")) {
+                tag = tag.substring(1);
+            }
+            if (tag.length() > 0) {
+                tags.add(tag.toLowerCase());
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * Forgets everything, the next filter reloads from the database.
+     */
+    synchronized void invalidate() {
+        mLoaded = false;
+        mTags.clear();
+        mOpen = new IdBitmap();
+        mDone = new IdBitmap();
+    }
+
+    private void load(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("SELECT _id, ifnull(completed,0) FROM items", null);
+        try {
+            while (c.moveToNext()) {
+                (c.getInt(1) != 0 ? mDone : mOpen).add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        c = db.rawQuery("SELECT todo_tags.todo_id, tags.name FROM todo_tags"
+                + " INNER JOIN tags ON tags._id=todo_tags.tag_id"
+                + " INNER JOIN items ON items._id=todo_tags.todo_id", null);
+        try {
+            while (c.moveToNext()) {
+                bitmap(c.getString(1)).add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        mLoaded = true;
+    }
+
+    private IdBitmap bitmap(String tag) {
+        IdBitmap ids = mTags.get(tag);
+        if (ids == null) {
+            ids = new IdBitmap();
+            mTags.put(tag, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * Records a todo's status after a write that committed.
+     */
+    synchronized void setCompleted(long id, boolean completed) {
+        if (!mLoaded) {
+            return;
+        }
+        (completed ? mDone : mOpen).add(id);
+        (completed ? mOpen : mDone).remove(id);
+    }
+
+    /**
+     * Records a todo's new tags after a write that committed.
+     */
+    synchronized void setTags(long id, Collection<String> tags) {
+        if (!mLoaded) {
+            return;
+        }
+        Iterator<IdBitmap> it = mTags.values().iterator();
+        while (it.hasNext()) {
+            IdBitmap ids = it.next();
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                it.remove();
+            }
+        }
+        for (String tag : tags) {
+            bitmap(tag).add(id);
+        }
+    }
+
+    /**
+     * Drops a todo that left the items table.
+     */
+    synchronized void remove(long id) {
+        if (!mLoaded) {
+            return;
+        }
+        mOpen.remove(id);
+        mDone.remove(id);
+        setTags(id, new TreeSet<String>());
+    }
+
+    /**
+     * Finds the todos that carry every tag in all, none of the tags in none,
+     * and have the given status.
+     */
+    synchronized long[] select(SQLiteDatabase db, Collection<String> all, Collection<String> none, int status) {
+        if (!mLoaded) {
+            load(db);
+        }
+        IdBitmap ids = status == STATUS_OPEN ? mOpen : status == STATUS_DONE ? mDone : mOpen.or(mDone);
+        for (String tag : all) {
+            IdBitmap tagged = mTags.get(tag);
+            if (tagged == null) {
+                return new long[0];
+            }
+            ids = ids.and(tagged);
+        }
+        for (String tag : none) {
+            IdBitmap tagged = mTags.get(tag);
+            if (tagged != null) {
+                ids = ids.andNot(tagged);
+            }
+        }
+        return ids.toArray();
+    }
+}
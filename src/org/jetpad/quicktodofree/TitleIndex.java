@@ -0,0 +1,200 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+/**
+ * Prefix index over the words of every todo title. Words are kept in one
+ * sorted array, so all the titles with a word starting with a prefix are a
+ * single range found by binary search.
+ */
+final class TitleIndex {
+    private static final String[] PROJECTION = new String[] { Todo._ID, Todo.TITLE };
+
+    private final String[] mWords;
+    private final long[] mIds;
+    private final HashMap<Long, String[]> mTitles;
+
+    private TitleIndex(String[] words, long[] ids, HashMap<Long, String[]> titles) {
+        mWords = words;
+        mIds = ids;
+        mTitles = titles;
+    }
+
+    /**
+     * Splits text into lower case words, the same way for titles and queries.
+     */
+    static String[] words(String text) {
+        ArrayList<String> words = new ArrayList<String>();
+        for (String word : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (word.length() > 0) {
+                words.add(word);
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    /**
+     * Reads every title. Slow, call it off the main thread.
+     */
+    static TitleIndex load(ContentResolver resolver) {
+        long[] ids = new long[0];
+        String[] titles = new String[0];
+        Cursor c = resolver.query(Todo.CONTENT_URI, PROJECTION, null, null, null);
+        if (c != null) {
+            try {
+                ids = new long[c.getCount()];
+                titles = new String[ids.length];
+                while (c.moveToNext()) {
+                    ids[c.getPosition()] = c.getLong(0);
+                    titles[c.getPosition()] = c.getString(1);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return build(ids, titles);
+    }
+
+    /**
+     * Indexes the titles of the todos with the given ids, a null title
+     * having no words.
+     */
+    static TitleIndex build(long[] todoIds, String[] todoTitles) {
+        final ArrayList<String> words = new ArrayList<String>();
+        ArrayList<Long> ids = new ArrayList<Long>();
+        HashMap<Long, String[]> titles = new HashMap<Long, String[]>();
+        for (int i = 0; i < todoIds.length; i++) {
+            Long id = Long.valueOf(todoIds[i]);
+            String[] title = words(todoTitles[i] != null ? todoTitles[i] : "");
+            titles.put(id, title);
+            for (String word : title) {
+                words.add(word);
+                ids.add(id);
+            }
+        }
+
+        // Sort the positions by word, then lay both arrays out in that order
+        Integer[] order = new Integer[words.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = Integer.valueOf(i);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return words.get(a.intValue()).compareTo(words.get(b.intValue()));
+            }
+        });
+        String[] sortedWords = new String[order.length];
+        long[] sortedIds = new long[order.length];
+        for (int i = 0; i < order.length; i++) {
+            sortedWords[i] = words.get(order[i].intValue());
+            sortedIds[i] = ids.get(order[i].intValue()).longValue();
+        }
+        return new TitleIndex(sortedWords, sortedIds, titles);
+    }
+
+    /**
+     * First position whose word is not less than key
+     */
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = mWords.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mWords[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * The ids, ascending, of todos with a title word starting with each of
+     * the query words.
+     */
+    long[] find(String[] query) {
+        if (query.length == 0) {
+            return new long[0];
+        }
+        // Only the rarest looking prefix is looked up, the rest are checked per title
+        String longest = query[0];
+        for (String word : query) {
+            if (word.length() > longest.length()) {
+                longest = word;
+            }
+        }
+        int from = lowerBound(longest);
+        int to = lowerBound(longest + Character.MAX_VALUE);
+        long[] candidates = new long[to - from];
+        System.arraycopy(mIds, from, candidates, 0, candidates.length);
+        Arrays.sort(candidates);
+        return narrow(candidates, query);
+    }
+
+    /**
+     * Keeps the ids, from an earlier result, whose titles match every query
+     * word. A query that only adds to the previous one can only lose matches,
+     * so this is all the work needed for the next keystroke.
+     */
+    long[] narrow(long[] ids, String[] query) {
+        long[] matches = new long[ids.length];
+        int n = 0;
+        long last = -1;
+        for (long id : ids) {
+            if (id == last) {
+                continue;
+            }
+            last = id;
+            String[] title = mTitles.get(Long.valueOf(id));
+            if (title != null && matches(title, query)) {
+                matches[n++] = id;
+            }
+        }
+        long[] result = new long[n];
+        System.arraycopy(matches, 0, result, 0, n);
+        return result;
+    }
+
+    private static boolean matches(String[] title, String[] query) {
+        for (String prefix : query) {
+            boolean found = false;
+            for (String word : title) {
+                if (word.startsWith(prefix)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
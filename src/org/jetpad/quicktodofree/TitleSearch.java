@@ -0,0 +1,255 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+
+/**
+ * Runs title searches as the user types, on a thread of its own. Keystrokes
+ * that come in quick succession are folded into one search, and a search
+ * whose text has since changed is dropped wherever it has got to. Results
+ * come back to the main thread as a cursor that is ready to show.
+ * <p>
+ * The {@link TitleIndex} is built on another thread when the first search
+ * comes in, and rebuilt there as soon as the todos change rather than on
+ * the next keystroke. Searches made while it is out of date scan the
+ * titles with LIKE instead of waiting for it.
+ */
+final class TitleSearch implements Handler.Callback {
+    interface Listener {
+        void onSearchResults(Cursor results);
+    }
+
+    private static final int MSG_SEARCH = 1;
+    private static final int MSG_REBUILD = 2;
+
+    /** How long typing has to pause before we search */
+    private static final long DEBOUNCE_MILLIS = 100;
+
+    /** How long the todos have to stay unchanged before the index is rebuilt */
+    private static final long REBUILD_DELAY_MILLIS = 500;
+
+    /** Above this many matches the ids are not worth spelling out in SQL */
+    private static final int MAX_ID_LIST = 1000;
+
+    private static final class Request {
+        final int generation;
+        final Uri uri;
+        final String[] projection;
+        final String sortOrder;
+        final String text;
+
+        Request(int generation, Uri uri, String[] projection, String sortOrder, String text) {
+            this.generation = generation;
+            this.uri = uri;
+            this.projection = projection;
+            this.sortOrder = sortOrder;
+            this.text = text;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final Listener mListener;
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final HandlerThread mIndexThread;
+    private final Handler mIndexHandler;
+    private final Handler mMainHandler = new Handler();
+    private final ContentObserver mObserver;
+
+    /** Bumped for every new search, anything older is stale */
+    private volatile int mGeneration;
+
+    /** The latest index, and whether the todos changed after it was read */
+    private volatile TitleIndex mIndex;
+    private volatile boolean mIndexStale = true;
+    /** Set by the first search, there is no index to keep up before that */
+    private volatile boolean mIndexWanted;
+
+    // Only touched on the search thread
+    private TitleIndex mLastIndex;
+    private String mLastText;
+    private long[] mLastIds;
+
+    TitleSearch(ContentResolver resolver, Listener listener) {
+        mResolver = resolver;
+        mListener = listener;
+        mThread = new HandlerThread("TitleSearch");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper(), this);
+        mIndexThread = new HandlerThread("TitleIndex");
+        mIndexThread.start();
+        mIndexHandler = new Handler(mIndexThread.getLooper(), this);
+
+        mObserver = new ContentObserver(mIndexHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mIndexStale = true;
+                if (mIndexWanted) {
+                    // Once a burst of changes is over
+                    mIndexHandler.removeMessages(MSG_REBUILD);
+                    mIndexHandler.sendEmptyMessageDelayed(MSG_REBUILD, REBUILD_DELAY_MILLIS);
+                }
+            }
+        };
+        mResolver.registerContentObserver(Todo.CONTENT_URI, true, mObserver);
+    }
+
+    /**
+     * Searches the titles of the todos in uri for text, replacing any search
+     * still under way. Call from the main thread.
+     */
+    void search(Uri uri, String[] projection, String sortOrder, String text) {
+        if (!mIndexWanted) {
+            mIndexWanted = true;
+            mIndexHandler.sendEmptyMessage(MSG_REBUILD);
+        }
+        int generation = ++mGeneration;
+        mHandler.removeMessages(MSG_SEARCH);
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_SEARCH,
+                new Request(generation, uri, projection, sortOrder, text)), DEBOUNCE_MILLIS);
+    }
+
+    /**
+     * Drops any search under way, its results will never be delivered.
+     */
+    void cancel() {
+        ++mGeneration;
+        mHandler.removeMessages(MSG_SEARCH);
+    }
+
+    void quit() {
+        cancel();
+        mResolver.unregisterContentObserver(mObserver);
+        mThread.quit();
+        mIndexThread.quit();
+    }
+
+    public boolean handleMessage(Message msg) {
+        if (msg.what == MSG_REBUILD) {
+            // Cleared first, a change while we read makes for another rebuild
+            mIndexStale = false;
+            mIndex = TitleIndex.load(mResolver);
+            return true;
+        }
+
+        final Request r = (Request) msg.obj;
+        if (r.generation != mGeneration) {
+            return true;
+        }
+
+        String text = r.text.toLowerCase();
+        String[] words = TitleIndex.words(text);
+        // Null while the index is out of date, the titles are scanned instead
+        long[] ids = null;
+        TitleIndex index = mIndex;
+        if (words.length == 0) {
+            ids = new long[0];
+        } else if (index != null && !mIndexStale) {
+            ids = index == mLastIndex && mLastText != null && text.startsWith(mLastText)
+                    ? index.narrow(mLastIds, words) : index.find(words);
+        }
+        // Only the index's own result is a base to narrow from, and text
+        // without any words matches nothing, which is none either
+        mLastIndex = index;
+        mLastText = ids != null && words.length > 0 ? text : null;
+        mLastIds = ids;
+        if (r.generation != mGeneration) {
+            return true;
+        }
+
+        final Cursor c = mResolver.query(r.uri, r.projection, selection(ids, words),
+                selectionArgs(ids, words), r.sortOrder);
+        if (c == null) {
+            return true;
+        }
+        // Fill the cursor window here, not on the main thread
+        c.getCount();
+        if (r.generation != mGeneration) {
+            c.close();
+            return true;
+        }
+        mMainHandler.post(new Runnable() {
+            public void run() {
+                if (r.generation == mGeneration) {
+                    mListener.onSearchResults(c);
+                } else {
+                    c.close();
+                }
+            }
+        });
+        return true;
+    }
+
+    private static String selection(long[] ids, String[] words) {
+        StringBuilder sb = new StringBuilder();
+        if (ids != null && ids.length <= MAX_ID_LIST) {
+            sb.append(Todo._ID).append(" IN (");
+            for (int i = 0; i < ids.length; i++) {
+                if (i > 0) sb.append(',');
+                sb.append(ids[i]);
+            }
+            return sb.append(')').toString();
+        }
+        // A short prefix matches much of the list, scanning is cheaper, and
+        // there may be no index to ask while it is rebuilt. LIKE
+        // can't tell where TitleIndex.words splits a title, so each word is
+        // looked for anywhere in it: every title the index matched, and a
+        // few with the word inside another.
+        for (int i = 0; i < words.length; i++) {
+            if (i > 0) sb.append(" AND ");
+            sb.append(Todo.TITLE).append(" LIKE ? ESCAPE '\\'");
+        }
+        return sb.toString();
+    }
+
+    private static String[] selectionArgs(long[] ids, String[] words) {
+        if (ids != null && ids.length <= MAX_ID_LIST) {
+            return null;
+        }
+        String[] args = new String[words.length];
+        for (int i = 0; i < words.length; i++) {
+            args[i] = "%" + escapeLike(words[i]) + "%";
+        }
+        return args;
+    }
+
+    /**
+     * text for a LIKE pattern with ESCAPE '\', matching only itself.
+     */
+    static String escapeLike(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '%' || c == '_' || c == '\\') {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
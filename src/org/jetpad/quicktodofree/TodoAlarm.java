@@ -24,8 +24,10 @@ import android.app.Activity;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
@@ -40,25 +42,39 @@ public class TodoAlarm extends Activity {
         final String title = intent.getStringExtra("title");
         final String notifyText = intent.getStringExtra("notifyText");
         final long duedate = intent.getLongExtra("duedate", System.currentTimeMillis());
+        showNotification(this, intent.getData(), title, notifyText, duedate);
+        this.finish();
+    }
+
+	/**
+	 * Posts the notification for a todo, replacing any earlier one for it.
+	 * Tapping it offers to open, complete or snooze the todo, see
+	 * {@link ReminderActions}.
+	 */
+	static void showNotification(Context context, Uri uri, String title, String notifyText, long when) {
         Notification notification = new Notification(R.drawable.app_todo, title,
-            duedate);
-        Intent i = new Intent("org.jetpad.quicktodofree.VIEW_REMINDER",intent.getData());
-        i.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP|Intent.FLAG_ACTIVITY_NEW_TASK);
-        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, i, 0);
-        notification.setLatestEventInfo(this, title, notifyText, contentIntent);
-        NotificationManager nman = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
+            when);
+        // Buttons in the notification itself only work from API 11
+        Intent i = new Intent(context, ReminderActions.class);
+        i.setData(uri);
+        i.putExtra("title", title);
+        i.putExtra("notifyText", notifyText);
+        i.putExtra("duedate", when);
+        i.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        PendingIntent contentIntent = PendingIntent.getActivity(context, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
+        notification.setLatestEventInfo(context, title, notifyText, contentIntent);
+        NotificationManager nman = (NotificationManager)context.getSystemService(NOTIFICATION_SERVICE);
 		notification.flags |= Notification.FLAG_AUTO_CANCEL|Notification.FLAG_SHOW_LIGHTS;
 		notification.ledARGB = (Build.DEVICE.equals("dream")) ? 0xff080800 : 0xfffb2a0c;;
 		notification.ledOffMS = 1000;
 		notification.ledOnMS = 1000;
 		
-    	SharedPreferences mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
+    	SharedPreferences mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
 
 		if(mPrefs.getBoolean("notifySound", false)) notification.defaults |= Notification.DEFAULT_SOUND;
 		if(mPrefs.getBoolean("notifyVibrate",false)) notification.defaults |= Notification.DEFAULT_VIBRATE;
 		
-        nman.notify(intent.getData().hashCode(), notification);
-        this.finish();
+        nman.notify(uri.hashCode(), notification);
     }
 
 }
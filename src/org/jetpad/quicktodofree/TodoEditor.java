@@ -21,23 +21,32 @@ package org.jetpad.quicktodofree;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 
+import org.jetpad.quicktodofree.QuickTodo.Reminders;
 import org.jetpad.quicktodofree.QuickTodo.Todo;
 
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.DatePickerDialog;
 import android.app.Dialog;
 import android.app.TimePickerDialog;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Intent.ShortcutIconResource;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -46,6 +55,7 @@ import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.DatePicker;
 import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.TimePicker;
 import android.widget.Toast;
 
@@ -98,6 +108,8 @@ public class TodoEditor extends Activity {
 			Todo.SCHEDULE_DATE, // 10
 			Todo.PRIORITY, // 11
 			Todo.CONTEXT, // 12
+			Todo.RRULE, // 13
+			Todo.TAGS, // 14
 	};
 	/** The index of the note column */
 	private static final int COLUMN_INDEX_NOTE = 1;
@@ -105,6 +117,8 @@ public class TodoEditor extends Activity {
 	private static final int COLUMN_INDEX_TITLE = 3;
 	private static final int COLUMN_INDEX_CHECKED = 4;
 	private static final int COLUMN_INDEX_HASDATE = 5;
+	private static final int COLUMN_INDEX_RRULE = 13;
+	private static final int COLUMN_INDEX_TAGS = 14;
 
 
 	private static final int DISCARD_ID = Menu.FIRST;
@@ -113,21 +127,86 @@ public class TodoEditor extends Activity {
 	// Dialogs
 	private static final int TIME_DIALOG_ID = 0;
 	private static final int DATE_DIALOG_ID = 1;
+	private static final int REMINDERS_DIALOG_ID = 2;
+	private static final int REPEAT_DIALOG_ID = 3;
+
+	/** Minutes before the due date for each of R.array.reminder_choices */
+	private static final int[] REMINDER_MINUTES = { 0, 5, 15, 60, 1440, 10080 };
+
+	/** How long typing has to pause before the text is saved */
+	private static final long AUTOSAVE_DELAY_MILLIS = 2000;
+
+	/** Recurrence rules for each of R.array.repeat_choices */
+	private static final String[] REPEAT_RULES = { null, "FREQ=DAILY", "FREQ=WEEKLY",
+			"FREQ=WEEKLY;INTERVAL=2", "FREQ=MONTHLY", "FREQ=MONTHLY;INTERVAL=12" };
 
 	private Uri mUri;
 	private Cursor mCursor;
 	private EditText mText;
 	private EditText mTitle;
+	private EditText mTags;
 
 	private Button mTimeButton;
 	private Button mDateButton;
 	private CheckBox mHasDueDate;
+	private Button mRemindersButton;
+	private Button mRepeatButton;
 
 	private long duedate = 0;
 	private long reminder = 0;
 	private Calendar cDuedate = Calendar.getInstance();
 	private Calendar cReminddate = Calendar.getInstance();
 	private Boolean checked;
+	private final boolean[] mReminders = new boolean[REMINDER_MINUTES.length];
+	private boolean mRemindersChanged;
+	private String mRrule;
+	private String mOriginalTags;
+	private AutosaveQueue mAutosave;
+
+	/** Whether mUri is a new todo not yet in the provider */
+	private boolean mDraft;
+
+	/** Set when the todo changed under us, it is read again on resume */
+	private boolean mStale;
+	private ContentObserver mObserver;
+	private Uri mWatched;
+
+	/** Set while the todo is being read and shown, which is not an edit */
+	private boolean mLoading;
+	private boolean mDestroyed;
+
+	/** What survives a configuration change, so nothing is read again */
+	private static final class Retained {
+		Uri uri;
+		boolean draft;
+		Cursor cursor;
+		boolean stale;
+		long duedate;
+		String rrule;
+		boolean[] reminders;
+		boolean remindersChanged;
+		String originalTags;
+	}
+
+	/** Saves the title and note as the user types */
+	private final TextWatcher mAutosaveWatcher = new TextWatcher() {
+		public void afterTextChanged(Editable s) {
+			if (mLoading) {
+				return;
+			}
+			ContentValues values = new ContentValues();
+			values.put(Todo.MODIFIED_DATE, System.currentTimeMillis());
+			values.put(Todo.TITLE, mTitle.getText().toString());
+			values.put(Todo.NOTE, mText.getText().toString());
+			mAutosave.save(mUri, values, AUTOSAVE_DELAY_MILLIS);
+		}
+
+		public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+		}
+
+		public void onTextChanged(CharSequence s, int start, int before, int count) {
+		}
+	};
 	
 	/**
 	 * A custom EditText that draws lines between each line of text that is
@@ -135,13 +214,17 @@ public class TodoEditor extends Activity {
 	 */
 	public static class LinedEditText extends EditText {
 		private Rect mRect;
+		private Rect mClip;
 		private Paint mPaint;
+		/** x0, y0, x1, y1 of each ruled line, reused from frame to frame */
+		private float[] mLines = new float[0];
 
 		// we need this constructor for LayoutInflater
 		public LinedEditText(Context context, AttributeSet attrs) {
 			super(context, attrs);
 
 			mRect = new Rect();
+			mClip = new Rect();
 			mPaint = new Paint();
 			mPaint.setStyle(Paint.Style.STROKE);
 			mPaint.setColor(0x80AAAAFF);
@@ -149,15 +232,35 @@ public class TodoEditor extends Activity {
 
 		@Override
 		protected void onDraw(Canvas canvas) {
-			int count = getLineCount();
 			Rect r = mRect;
-			Paint paint = mPaint;
+			Layout layout = getLayout();
+			int first = 0;
+			int last = getLineCount() - 1;
+
+			// Only rule the lines that can be seen, a long note has
+			// thousands of lines off the screen. An empty clip shows none.
+			if (!canvas.getClipBounds(mClip)) {
+				last = -1;
+			} else if (layout != null) {
+				int top = getExtendedPaddingTop();
+				first = layout.getLineForVertical(mClip.top - top);
+				last = Math.min(last, layout.getLineForVertical(mClip.bottom - top));
+			}
 
+			int count = Math.max(0, last - first + 1);
+			if (mLines.length < count * 4) {
+				mLines = new float[count * 4];
+			}
+			float[] lines = mLines;
 			for (int i = 0; i < count; i++) {
-				int baseline = getLineBounds(i, r) + 1;
-
-				canvas.drawLine(r.left, baseline, r.right, baseline,
-						paint);
+				int baseline = getLineBounds(first + i, r) + 1;
+				lines[i * 4] = r.left;
+				lines[i * 4 + 1] = baseline;
+				lines[i * 4 + 2] = r.right;
+				lines[i * 4 + 3] = baseline;
+			}
+			if (count > 0) {
+				canvas.drawLines(lines, 0, count * 4, mPaint);
 			}
 
 			super.onDraw(canvas);
@@ -176,18 +279,51 @@ public class TodoEditor extends Activity {
 			return new DatePickerDialog(this, mDateSetListener, 
 					c.get(Calendar.YEAR), c.get(Calendar.MONTH), 
 					c.get(Calendar.DAY_OF_MONTH));
+		case REMINDERS_DIALOG_ID:
+			return new AlertDialog.Builder(this)
+					.setTitle(R.string.title_reminders)
+					.setMultiChoiceItems(R.array.reminder_choices, mReminders,
+							new DialogInterface.OnMultiChoiceClickListener() {
+
+						public void onClick(DialogInterface dialog, int which, boolean isChecked) {
+							mReminders[which] = isChecked;
+							mRemindersChanged = true;
+							updateRemindersButton();
+						}
+					})
+					.setPositiveButton(R.string.button_ok, null)
+					.create();
+		case REPEAT_DIALOG_ID:
+			return new AlertDialog.Builder(this)
+					.setTitle(R.string.title_repeat)
+					.setItems(R.array.repeat_choices, new DialogInterface.OnClickListener() {
+
+						public void onClick(DialogInterface dialog, int which) {
+							mRrule = REPEAT_RULES[which];
+							updateRepeatButton();
+						}
+					})
+					.create();
 		}
 		return null;
 	}
 
 	@Override
-	protected void onCreate(Bundle savedInstanceState) {
-		super.onCreate(savedInstanceState);
+	protected void onPrepareDialog(int id, Dialog dialog) {
+		super.onPrepareDialog(id, dialog);
+		if (id == REMINDERS_DIALOG_ID) {
+			// The reminders may have been reloaded since the dialog was built
+			ListView list = ((AlertDialog) dialog).getListView();
+			for (int i = 0; i < mReminders.length; i++) {
+				list.setItemChecked(i, mReminders[i]);
+			}
+		}
 	}
 
 	@Override
-	protected void onResume() {
-		super.onResume();
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		mAutosave = AutosaveQueue.get(this);
 
 		final Intent intent = getIntent();
 		final String action = intent.getAction();
@@ -208,8 +344,14 @@ public class TodoEditor extends Activity {
             return;
 		}
 
+		Retained retained = (Retained) getLastNonConfigurationInstance();
 		final String mUriType = getContentResolver().getType(intent.getData());
-		if (mUriType == Todo.CONTENT_ITEM_TYPE) {
+		if (retained != null) {
+			// Recreated for a configuration change, carry on as we were
+			mUri = retained.uri;
+			mDraft = retained.draft;
+			setTitle(getText(mDraft ? R.string.title_create : R.string.title_edit));
+		} else if (mUriType == Todo.CONTENT_ITEM_TYPE) {
 
 			if ("org.jetpad.quicktodo.VIEW_REMINDER".equals(action)) {
 			}
@@ -217,24 +359,11 @@ public class TodoEditor extends Activity {
 			mUri = intent.getData();
 			setTitle(getText(R.string.title_edit));
 		} else if (mUriType == Todo.CONTENT_TYPE) {
-			// Requested to insert
-			mUri = getContentResolver().insert(intent.getData(), null);
-			
-			intent.setData(mUri);
+			// Requested to insert. Nothing is written until the first save,
+			// until then the todo is a draft in the autosave queue.
+			mUri = mAutosave.draft(intent.getData());
+			mDraft = true;
 			setTitle(getText(R.string.title_create));
-
-			// If we were unable to create a new note, then just finish
-			if (mUri == null) {
-				Toast.makeText(this, "Failed to insert new todo",
-						Toast.LENGTH_LONG);
-				finish();
-				return;
-			}
-
-			// The new entry was created, so assume all will end well and
-			// set the result to be returned.
-			setResult(RESULT_OK, (new Intent()).setAction(mUri.toString()));
-
 		} else {
 			Toast.makeText(this, "Unknown action, exiting", Toast.LENGTH_LONG).show();
 			finish();
@@ -250,6 +379,9 @@ public class TodoEditor extends Activity {
 		mDateButton = (Button) findViewById(R.id.DateButton);
 		mTimeButton = (Button) findViewById(R.id.TimeButton);
 		mHasDueDate = (CheckBox) findViewById(R.id.HasDueDate);
+		mRemindersButton = (Button) findViewById(R.id.RemindersButton);
+		mRepeatButton = (Button) findViewById(R.id.RepeatButton);
+		mTags = (EditText) findViewById(R.id.tags);
 
 		mDateButton.setOnClickListener(new View.OnClickListener() {
 
@@ -265,8 +397,188 @@ public class TodoEditor extends Activity {
 			}
 		});
 
-		// Get the data!
-		mCursor = getContentResolver().query(mUri, PROJECTION, null, null, null);
+		mRemindersButton.setOnClickListener(new View.OnClickListener() {
+
+			public void onClick(View v) {
+				showDialog(REMINDERS_DIALOG_ID);
+			}
+		});
+
+		mRepeatButton.setOnClickListener(new View.OnClickListener() {
+
+			public void onClick(View v) {
+				showDialog(REPEAT_DIALOG_ID);
+			}
+		});
+
+		if (!mDraft) {
+			watch();
+		}
+		if (retained != null) {
+			// The text fields and check boxes restore their own state
+			mCursor = retained.cursor;
+			mStale = retained.stale;
+			duedate = retained.duedate;
+			cDuedate.setTimeInMillis(duedate);
+			mRrule = retained.rrule;
+			System.arraycopy(retained.reminders, 0, mReminders, 0, mReminders.length);
+			mRemindersChanged = retained.remindersChanged;
+			mOriginalTags = retained.originalTags;
+			updateDisplay();
+			updateRepeatButton();
+			updateRemindersButton();
+		} else {
+			load();
+		}
+	}
+
+	@Override
+	protected void onPostCreate(Bundle savedInstanceState) {
+		super.onPostCreate(savedInstanceState);
+		if (mText != null) {
+			// Only now, filling in the fields and restoring them is not an edit
+			mText.addTextChangedListener(mAutosaveWatcher);
+			mTitle.addTextChangedListener(mAutosaveWatcher);
+		}
+	}
+
+	@Override
+	public Object onRetainNonConfigurationInstance() {
+		Retained retained = new Retained();
+		retained.uri = mUri;
+		retained.draft = mDraft;
+		retained.cursor = mCursor;
+		// A read still under way is shown by nobody, the next instance reads again
+		retained.stale = mStale || mLoading;
+		retained.duedate = duedate;
+		retained.rrule = mRrule;
+		retained.reminders = mReminders.clone();
+		retained.remindersChanged = mRemindersChanged;
+		retained.originalTags = mOriginalTags;
+		// The next instance owns the cursor now
+		mCursor = null;
+		return retained;
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		if (mText == null) {
+			// Finishing from onCreate
+			return;
+		}
+
+		if (mDraft) {
+			Uri created = mAutosave.created(mUri);
+			if (created != null) {
+				// Saved while we were away, from now on we are editing it
+				mAutosave.release(mUri);
+				mUri = created;
+				mDraft = false;
+				getIntent().setData(mUri);
+				setResult(RESULT_OK, (new Intent()).setAction(mUri.toString()));
+				watch();
+			}
+		}
+
+		if (mStale) {
+			// Someone else changed the todo while we were away
+			mStale = false;
+			load();
+		}
+	}
+
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+		mDestroyed = true;
+		if (mObserver != null) {
+			getContentResolver().unregisterContentObserver(mObserver);
+			mAutosave.unwatch(mWatched);
+		}
+		if (mDraft && isFinishing()) {
+			// Kept over a configuration change, otherwise nobody asks for it again
+			mAutosave.release(mUri);
+		}
+		if (mCursor != null) {
+			mCursor.close();
+		}
+	}
+
+	/**
+	 * Notices changes to the todo made anywhere but here, so that the
+	 * next resume knows to read it again.
+	 */
+	private void watch() {
+		if (mObserver != null) {
+			getContentResolver().unregisterContentObserver(mObserver);
+			mAutosave.unwatch(mWatched);
+		}
+		final Uri uri = mUri;
+		mWatched = uri;
+		// Before the observer, so that none of our writes can reach it uncounted
+		mAutosave.watch(uri);
+		mObserver = new ContentObserver(new Handler()) {
+			@Override
+			public void onChange(boolean selfChange) {
+				if (!mAutosave.takeOwnChange(uri)) {
+					mStale = true;
+				}
+			}
+		};
+		getContentResolver().registerContentObserver(mUri, false, mObserver);
+	}
+
+	/**
+	 * Reads the todo, or makes up a new one for a draft, and shows it. The
+	 * todo is read on the autosave writer, behind anything saved when we
+	 * were paused, or we would show what was there before it.
+	 */
+	private void load() {
+		if (mDraft) {
+			show(draftCursor(), new boolean[mReminders.length]);
+			return;
+		}
+		mLoading = true;
+		final Uri uri = mUri;
+		final Handler handler = new Handler();
+		mAutosave.flush(uri);
+		mAutosave.post(new Runnable() {
+			public void run() {
+				final Cursor c = getContentResolver().query(uri, PROJECTION, null, null, null);
+				final boolean[] reminders = readReminders(uri);
+				handler.post(new Runnable() {
+					public void run() {
+						if (mDestroyed) {
+							if (c != null) {
+								c.close();
+							}
+							return;
+						}
+						show(c, reminders);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Shows the todo in c, which this now owns, with the reminders set.
+	 */
+	private void show(Cursor c, boolean[] reminders) {
+		mLoading = true;
+		try {
+			showTodo(c, reminders);
+		} finally {
+			mLoading = false;
+		}
+	}
+
+	private void showTodo(Cursor c, boolean[] reminders) {
+		if (mCursor != null) {
+			mCursor.close();
+		}
+		mCursor = c;
 
 		// If we didn't have any trouble retrieving the data, it is now
 		// time to get at the stuff.
@@ -301,10 +613,21 @@ public class TodoEditor extends Activity {
 				duedate = cDuedate.getTimeInMillis();
 			}
 			
+			mRrule = mCursor.getString(COLUMN_INDEX_RRULE);
+
 			updateDisplay();
+			updateRepeatButton();
+			System.arraycopy(reminders, 0, mReminders, 0, mReminders.length);
+			mRemindersChanged = false;
+			updateRemindersButton();
 
 			mText.setTextKeepState(note);
 			mTitle.setText(title);
+			mOriginalTags = mCursor.getString(COLUMN_INDEX_TAGS);
+			if (mOriginalTags == null) {
+				mOriginalTags = "";
+			}
+			mTags.setTextKeepState(mOriginalTags);
 
 		} else {
 			setTitle(getText(R.string.error_title));
@@ -313,6 +636,95 @@ public class TodoEditor extends Activity {
 
 	}
 
+	/**
+	 * A new todo as the provider would insert it, for a draft that has
+	 * not been saved yet.
+	 */
+	private Cursor draftCursor() {
+		MatrixCursor c = new MatrixCursor(PROJECTION, 1);
+		Object[] row = new Object[PROJECTION.length];
+		row[COLUMN_INDEX_NOTE] = "";
+		row[COLUMN_INDEX_DATE] = System.currentTimeMillis() + 3600000;
+		row[COLUMN_INDEX_TITLE] = "";
+		row[COLUMN_INDEX_CHECKED] = 0;
+		row[COLUMN_INDEX_HASDATE] = 0;
+		row[COLUMN_INDEX_TAGS] = "";
+		c.addRow(row);
+		return c;
+	}
+
+	/**
+	 * Which of the reminders the todo at uri has. Runs off the UI thread.
+	 */
+	private boolean[] readReminders(Uri uri) {
+		boolean[] reminders = new boolean[REMINDER_MINUTES.length];
+		Cursor c = getContentResolver().query(Uri.withAppendedPath(uri, Reminders.CONTENT_DIRECTORY),
+				new String[] { Reminders.MINUTES_BEFORE }, null, null, null);
+		if (c != null) {
+			while (c.moveToNext()) {
+				int minutes = c.getInt(0);
+				for (int i = 0; i < REMINDER_MINUTES.length; i++) {
+					if (REMINDER_MINUTES[i] == minutes) {
+						reminders[i] = true;
+					}
+				}
+			}
+			c.close();
+		}
+		return reminders;
+	}
+
+	/**
+	 * Writes the reminders on the writer, after the todo's own save so
+	 * their fire dates go by its new due date.
+	 */
+	private void saveReminders() {
+		if (!mRemindersChanged) {
+			return;
+		}
+		final Uri uri = mUri;
+		final boolean[] set = mReminders.clone();
+		mAutosave.post(new Runnable() {
+			public void run() {
+				// A draft is only a todo once its save has been written
+				Uri todo = mAutosave.resolve(uri);
+				if (todo == null) {
+					return;
+				}
+				Uri reminders = Uri.withAppendedPath(todo, Reminders.CONTENT_DIRECTORY);
+				getContentResolver().delete(reminders, null, null);
+				for (int i = 0; i < set.length; i++) {
+					if (set[i]) {
+						ContentValues values = new ContentValues();
+						values.put(Reminders.MINUTES_BEFORE, REMINDER_MINUTES[i]);
+						getContentResolver().insert(reminders, values);
+					}
+				}
+			}
+		});
+		mRemindersChanged = false;
+	}
+
+	private void updateRemindersButton() {
+		int count = 0;
+		for (boolean set : mReminders) {
+			if (set) count++;
+		}
+		mRemindersButton.setText(count == 0 ? "No reminders"
+				: count == 1 ? "1 reminder" : count + " reminders");
+	}
+
+	private void updateRepeatButton() {
+		Recurrence recurrence = null;
+		try {
+			recurrence = Recurrence.parse(mRrule);
+		} catch (IllegalArgumentException e) {
+			// Keep whatever rule we were given, we just can't describe it
+		}
+		mRepeatButton.setText(recurrence != null ? recurrence.describe()
+				: mRrule != null ? mRrule : "Does not repeat");
+	}
+
 	private void updateDisplay() {
 		Calendar c = Calendar.getInstance();
 		c.setTimeInMillis(duedate);
@@ -324,8 +736,8 @@ public class TodoEditor extends Activity {
 	protected void onPause() {
 		super.onPause();
 		
-		// Save the changes
-		if (mCursor != null) {
+		// Save the changes, unless the fields are still waiting to be read again
+		if (mCursor != null && !mLoading) {
 
 			String text = mText.getText().toString();
 			String title = mTitle.getText().toString();
@@ -349,12 +761,31 @@ public class TodoEditor extends Activity {
 				values.put(Todo.TITLE, title);
 				values.put(Todo.COMPLETED, checked);
 				values.put(Todo.HAS_DUE_DATE, (mHasDueDate.isChecked()) ? 1 : 0);
+				values.put(Todo.RRULE, mRrule);
 
 				// Write our text back into the provider.
 				values.put(Todo.NOTE, text);
 
-				// Commit all of our changes
-				getContentResolver().update(mUri, values, null, null);
+				// Rewriting the tags touches several tables, only do it when they changed
+				String tags = mTags.getText().toString();
+				if (!tags.equals(mOriginalTags)) {
+					values.put(Todo.TAGS, tags);
+					mOriginalTags = tags;
+				}
+
+				// Commit all of our changes, on the writer so that leaving
+				// the screen does not wait for them
+				mAutosave.save(mUri, values, 0);
+				mAutosave.flush(mUri);
+				saveReminders();
+
+				// The provider moves a completed repeating todo on to its next
+				// occurrence instead, which our own write's notification won't
+				// tell us. Read it back on resume or the next pause writes the
+				// old due date over it.
+				if (checked && mRrule != null) {
+					mStale = true;
+				}
 
 			}
 		}
@@ -396,7 +827,11 @@ public class TodoEditor extends Activity {
 	private final void deleteNote() {
 		if (mCursor != null) {
 			mCursor.close();
-			getContentResolver().delete(mUri, null, null);
+			mCursor = null;
+			// Behind any save still on its way, which it makes moot
+			mText.removeTextChangedListener(mAutosaveWatcher);
+			mTitle.removeTextChangedListener(mAutosaveWatcher);
+			mAutosave.delete(mUri);
 			mText.setText("");
 			finish();
 		}
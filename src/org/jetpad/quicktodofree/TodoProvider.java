@@ -18,8 +18,21 @@
 
 package org.jetpad.quicktodofree;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
+import org.jetpad.quicktodofree.QuickTodo.AlarmState;
+import org.jetpad.quicktodofree.QuickTodo.Archive;
+import org.jetpad.quicktodofree.QuickTodo.Folders;
+import org.jetpad.quicktodofree.QuickTodo.Reminders;
+import org.jetpad.quicktodofree.QuickTodo.Tags;
 import org.jetpad.quicktodofree.QuickTodo.Todo;
 
 import android.content.ContentProvider;
@@ -27,48 +40,267 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Process;
+import android.preference.PreferenceManager;
 import android.text.TextUtils;
+import android.util.Log;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
  * itself, a creation date and a modified data.
  */
 public class TodoProvider extends ContentProvider {
+    private static final String TAG = "TodoProvider";
 
     private static final String DATABASE_NAME = "QuickTodo.db";
-    private static final int DATABASE_VERSION = 4;
+    static final int DATABASE_VERSION = 15;
     private static final String ITEMS_TABLE_NAME = "items";
+    private static final String ALARM_STATE_TABLE_NAME = "alarm_state";
+    private static final String REMINDERS_TABLE_NAME = "reminders";
+    private static final String ARCHIVE_TABLE_NAME = "items_archive";
+    private static final String NOTE_BODIES_TABLE_NAME = "note_bodies";
+    private static final String FOLDERS_TABLE_NAME = "folders";
+    private static final String TAGS_TABLE_NAME = "tags";
+    private static final String TODO_TAGS_TABLE_NAME = "todo_tags";
+    private static final String TODO_TAGS_TODO_ID = "todo_id";
+    private static final String TODO_TAGS_TAG_ID = "tag_id";
+    private static final String BACKFILLS_TABLE_NAME = "backfills";
+
+    // Columns of the backfills table, one row per backfill still to finish
+    private static final String BACKFILL_NAME = "name";
+    private static final String BACKFILL_POSITION = "position";
+
+    // Columns of the note body table, keyed by the todo's _id
+    private static final String NOTE_BODY = "body";
+    private static final String NOTE_ZBODY = "zbody";
+
+    /** How many todos a single archive sweep moves at most */
+    private static final int ARCHIVE_BATCH_SIZE = 100;
+
+    /** Tables maintenance refreshes the statistics of, one per step */
+    private static final String[] ANALYZE_TABLES = { ITEMS_TABLE_NAME, ARCHIVE_TABLE_NAME,
+            NOTE_BODIES_TABLE_NAME, REMINDERS_TABLE_NAME, TODO_TAGS_TABLE_NAME, TAGS_TABLE_NAME,
+            FOLDERS_TABLE_NAME };
+
+    /** How many rows a backfill rewrites in one transaction */
+    private static final int BACKFILL_BATCH_SIZE = 200;
+
+    /** Backfills a migration can leave behind, by the name it records */
+    private static HashMap<String, Backfill> sBackfills;
 
     private static HashMap<String, String> sNotesProjectionMap;
+    private static HashMap<String, String> sRemindersProjectionMap;
+    private static HashMap<String, String> sArchiveProjectionMap;
+    private static HashMap<String, String> sFoldersProjectionMap;
+    private static HashMap<String, String> sBucketCountsProjectionMap;
+
+    /** The sort orders todo lists accept, and the name of the index behind each */
+    private static HashMap<String, String> sSortIndexes;
 
     private static final int NOTES = 1;
     private static final int NOTE_ID = 2;
     private static final int RESET_CODE = 3;
+    private static final int ALARM_STATE = 4;
+    private static final int ALARM_STATE_ID = 5;
+    private static final int REMINDERS = 6;
+    private static final int NOTE_REMINDERS = 7;
+    private static final int ARCHIVE = 8;
+    private static final int ARCHIVE_ID = 9;
+    private static final int ARCHIVE_RESTORE = 10;
+    private static final int ARCHIVE_SWEEP = 11;
+    private static final int FOLDERS = 12;
+    private static final int FOLDER_ID = 13;
+    private static final int FOLDER_TODOS = 14;
+    private static final int TAGS = 15;
+    private static final int BUCKETS = 16;
+    private static final int CHECKPOINT = 17;
+    private static final int MAINTENANCE_ANALYZE = 18;
+    private static final int MAINTENANCE_VACUUM = 19;
+    private static final int MAINTENANCE_REBUILD = 22;
+
+    /** The files SQLite keeps beside the database in WAL mode */
+    private static final String[] JOURNAL_SUFFIXES = { "-wal", "-shm" };
+
+    /** The local day the stored buckets were worked out for */
+    private static final String PREF_BUCKET_DAY = "bucketDay";
 
     private static final UriMatcher sUriMatcher;
 
+    /**
+     * Reminders are always read along with the todo they belong to
+     */
+    private static final String REMINDERS_JOIN = REMINDERS_TABLE_NAME + " INNER JOIN " + ITEMS_TABLE_NAME
+            + " ON (" + REMINDERS_TABLE_NAME + "." + Reminders.TODO_ID + "="
+            + ITEMS_TABLE_NAME + "." + Todo._ID + ")";
+
+    /**
+     * Inserts a reminder of ?2 for ?1 minutes before its due date, working
+     * out the fire date from the todo in the same statement
+     */
+    private static final String INSERT_REMINDER = "INSERT INTO " + REMINDERS_TABLE_NAME + " ("
+            + Reminders.TODO_ID + "," + Reminders.MINUTES_BEFORE + "," + Reminders.FIRE_DATE
+            + ") SELECT " + Todo._ID + ",?1," + Todo.DUE_DATE + "-?1*60000 FROM "
+            + ITEMS_TABLE_NAME + " WHERE " + Todo._ID + "=?2";
+
+    /**
+     * The columns shared by the todo list and the archive
+     */
+    private static final String ITEM_COLUMNS = Todo._ID + "," + Todo.TITLE + "," + Todo.NOTE + ","
+            + Todo.CREATED_DATE + "," + Todo.MODIFIED_DATE + "," + Todo.DUE_DATE + ","
+            + Todo.COMPLETED + "," + Todo.FOLDER + "," + Todo.NOTIFY_DATE + "," + Todo.CONTEXT + ","
+            + Todo.ICON + "," + Todo.HAS_DUE_DATE + "," + Todo.HAS_REMINDER + ","
+            + Todo.IS_SCHEDULED + "," + Todo.PRIORITY + "," + Todo.SCHEDULE_DATE + ","
+            + Todo.INBOX + "," + Todo.RRULE + "," + Todo.BUCKET + "," + Todo.SERIES_START;
+
+    /**
+     * Note bodies are kept out of the todo rows so that list queries don't
+     * have to page through them. Only queries that ask for the note join them.
+     */
+    private static final String ITEMS_NOTES_JOIN = noteJoin(ITEMS_TABLE_NAME);
+
+    /** The current time in milliseconds, read again each time a cursor requeries */
+    private static final String SQL_NOW = "(strftime('%s','now')*1000)";
+    private static final String ARCHIVE_NOTES_JOIN = noteJoin(ARCHIVE_TABLE_NAME);
+
+    /**
+     * The tags of a todo in table as "@work @phone"
+     */
+    private static String tagsColumn(String table) {
+        return "(SELECT group_concat('@' || " + TAGS_TABLE_NAME + "." + Tags.NAME + ",' ') FROM "
+                + TODO_TAGS_TABLE_NAME + " INNER JOIN " + TAGS_TABLE_NAME + " ON " + TAGS_TABLE_NAME + "."
+                + Tags._ID + "=" + TODO_TAGS_TABLE_NAME + "." + TODO_TAGS_TAG_ID + " WHERE "
+                + TODO_TAGS_TABLE_NAME + "." + TODO_TAGS_TODO_ID + "=" + table + "." + Todo._ID
+                + ") AS " + Todo.TAGS;
+    }
+
+    /**
+     * Joined with USING so that a caller's selection on _id is not ambiguous
+     * when the note is asked for.
+     */
+    private static String noteJoin(String table) {
+        return table + " LEFT OUTER JOIN " + NOTE_BODIES_TABLE_NAME + " USING (" + Todo._ID + ")";
+    }
+
+    /**
+     * One step of the schema history. Steps run in version order, each only
+     * for databases older than its version, inside the upgrade's
+     * transaction. Rewriting every row of a large table is left to a
+     * {@link Backfill} so that the upgrade stays quick.
+     */
+    abstract static class Migration {
+        final int version;
+
+        Migration(int version) {
+            this.version = version;
+        }
+
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    /**
+     * Rewrites a table in batches after the upgrade, between the app's own
+     * writes. Where it has got to is kept in the backfills table, so it
+     * carries on from there if the process dies.
+     */
+    private abstract static class Backfill {
+        /**
+         * Rewrites the next rows after position.
+         *
+         * @return the position to carry on from, or -1 when it is done
+         */
+        abstract long run(SQLiteDatabase db, long position, int limit);
+    }
+
+    /**
+     * Moves the notes still in table's own note column over to the note
+     * bodies table. Reads fall back to the old column until it is done.
+     */
+    private static final class NoteBodiesBackfill extends Backfill {
+        private final String mTable;
+
+        NoteBodiesBackfill(String table) {
+            mTable = table;
+        }
+
+        @Override
+        long run(SQLiteDatabase db, long position, int limit) {
+            Cursor c = db.rawQuery("SELECT " + Todo._ID + " FROM " + mTable + " WHERE " + Todo._ID
+                    + ">" + position + " AND " + Todo.NOTE + " IS NOT NULL ORDER BY " + Todo._ID
+                    + " LIMIT " + limit, null);
+            long[] ids = new long[c.getCount()];
+            try {
+                while (c.moveToNext()) {
+                    ids[c.getPosition()] = c.getLong(0);
+                }
+            } finally {
+                c.close();
+            }
+            if (ids.length == 0) {
+                return -1;
+            }
+            String batch = Todo._ID + " IN (" + joinIds(ids) + ")";
+            // A body written since the upgrade is newer than the old column
+            db.execSQL("INSERT OR IGNORE INTO " + NOTE_BODIES_TABLE_NAME + " (" + Todo._ID + ","
+                    + NOTE_BODY + ") SELECT " + Todo._ID + "," + Todo.NOTE + " FROM " + mTable
+                    + " WHERE " + batch + " AND " + Todo.NOTE + "!=''");
+            db.execSQL("UPDATE " + mTable + " SET " + Todo.NOTE + "=NULL WHERE " + batch);
+            return ids[ids.length - 1];
+        }
+    }
+
     /**
      * This class helps open, create, and upgrade the database file.
      */
-    private static class DatabaseHelper extends SQLiteOpenHelper {
+    static class DatabaseHelper extends SQLiteOpenHelper {
+        private final Context mContext;
 
         DatabaseHelper(Context context) {
-            super(context, /*Environment.getExternalStorageDirectory
-            		().getAbsolutePath() + "/" +*/ DATABASE_NAME, null, DATABASE_VERSION);
+            this(context, /*Environment.getExternalStorageDirectory
+            		().getAbsolutePath() + "/" +*/ DATABASE_NAME);
+        }
+
+        /**
+         * A helper for a file other than the app's own, for the tests.
+         */
+        DatabaseHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
+            mContext = context;
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            // Read each time, a new profile applies from the next open
+            StorageProfile.get(mContext).apply(db);
         }
 
         @Override
         public void onCreate(SQLiteDatabase db) {
+            StorageProfile.get(mContext).create(mContext, db);
         	String s = 
             "CREATE TABLE " + ITEMS_TABLE_NAME + " ("
-                    + Todo._ID + " INTEGER PRIMARY KEY,"
+                    + itemColumnDefinitions()
+                    + ");";
+                    db.execSQL(s);
+            createAlarmStateTable(db);
+            createRemindersTable(db);
+            createArchiveTable(db);
+            createNoteBodiesTable(db);
+            createFoldersTable(db);
+            createTagTables(db);
+            createBackfillsTable(db);
+        }
+
+        private static String itemColumnDefinitions() {
+            return Todo._ID + " INTEGER PRIMARY KEY,"
                     + Todo.TITLE + " TEXT,"
                     + Todo.NOTE + " TEXT,"
                     + Todo.CREATED_DATE + " INTEGER,"
@@ -84,93 +316,889 @@ public class TodoProvider extends ContentProvider {
             		+ Todo.IS_SCHEDULED + " INTEGER,"
             		+ Todo.PRIORITY + " INTEGER,"
             		+ Todo.SCHEDULE_DATE + " INTEGER,"
-            		+ Todo.INBOX + " INTEGER"
-                    + ");";
-                    db.execSQL(s);
+            		+ Todo.INBOX + " INTEGER,"
+            		+ Todo.RRULE + " TEXT,"
+            		+ Todo.BUCKET + " INTEGER,"
+            		+ Todo.SERIES_START + " INTEGER";
+        }
+
+        private void createAlarmStateTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + ALARM_STATE_TABLE_NAME + " ("
+                    + AlarmState._ID + " INTEGER PRIMARY KEY,"
+                    + AlarmState.FIRE_DATE + " INTEGER,"
+                    + AlarmState.ARMED + " INTEGER"
+                    + ");");
+        }
+
+        private void createRemindersTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + REMINDERS_TABLE_NAME + " ("
+                    + Reminders._ID + " INTEGER PRIMARY KEY,"
+                    + Reminders.TODO_ID + " INTEGER,"
+                    + Reminders.MINUTES_BEFORE + " INTEGER,"
+                    + Reminders.FIRE_DATE + " INTEGER"
+                    + ");");
+            // The scheduler only ever asks for the next reminder to go off
+            db.execSQL("CREATE INDEX reminders_fire_date ON " + REMINDERS_TABLE_NAME
+                    + " (" + Reminders.FIRE_DATE + ");");
+            db.execSQL("CREATE INDEX reminders_todo_id ON " + REMINDERS_TABLE_NAME
+                    + " (" + Reminders.TODO_ID + ");");
+        }
+
+        private void createArchiveTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + ARCHIVE_TABLE_NAME + " ("
+                    + itemColumnDefinitions() + ","
+                    + Archive.ARCHIVED_DATE + " INTEGER"
+                    + ");");
+            db.execSQL("CREATE INDEX items_archive_archived ON " + ARCHIVE_TABLE_NAME
+                    + " (" + Archive.ARCHIVED_DATE + ");");
+            // Lets the archive sweep find old completed todos without a table scan
+            db.execSQL("CREATE INDEX items_completed_modified ON " + ITEMS_TABLE_NAME
+                    + " (" + Todo.COMPLETED + "," + Todo.MODIFIED_DATE + ");");
+        }
+
+        private void createNoteBodiesTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + NOTE_BODIES_TABLE_NAME + " ("
+                    + Todo._ID + " INTEGER PRIMARY KEY,"
+                    + NOTE_BODY + " TEXT,"
+                    + NOTE_ZBODY + " BLOB"
+                    + ");");
+        }
+
+        private void createFoldersTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + FOLDERS_TABLE_NAME + " ("
+                    + Folders._ID + " INTEGER PRIMARY KEY,"
+                    + Folders.NAME + " TEXT,"
+                    + Folders.PENDING_COUNT + " INTEGER DEFAULT 0"
+                    + ");");
+
+            // Opening a folder reads just its own slice of this index, already in list order
+            db.execSQL("CREATE INDEX items_folder ON " + ITEMS_TABLE_NAME + " (" + Todo.FOLDER + ","
+                    + Todo.COMPLETED + "," + Todo.HAS_DUE_DATE + "," + Todo.DUE_DATE + ");");
+
+            // Keep the pending counts up to date one todo at a time
+            String open = "ifnull(%1$s." + Todo.COMPLETED + ",0)=0";
+            String inc = "UPDATE " + FOLDERS_TABLE_NAME + " SET " + Folders.PENDING_COUNT + "="
+                    + Folders.PENDING_COUNT + "+1 WHERE " + Folders._ID + "=new." + Todo.FOLDER;
+            String dec = "UPDATE " + FOLDERS_TABLE_NAME + " SET " + Folders.PENDING_COUNT + "="
+                    + Folders.PENDING_COUNT + "-1 WHERE " + Folders._ID + "=old." + Todo.FOLDER;
+            db.execSQL("CREATE TRIGGER folder_pending_insert AFTER INSERT ON " + ITEMS_TABLE_NAME
+                    + " WHEN " + String.format(open, "new")
+                    + " BEGIN " + inc + "; END;");
+            db.execSQL("CREATE TRIGGER folder_pending_delete AFTER DELETE ON " + ITEMS_TABLE_NAME
+                    + " WHEN " + String.format(open, "old")
+                    + " BEGIN " + dec + "; END;");
+            db.execSQL("CREATE TRIGGER folder_pending_update AFTER UPDATE OF " + Todo.FOLDER + ","
+                    + Todo.COMPLETED + " ON " + ITEMS_TABLE_NAME
+                    + " WHEN ifnull(old." + Todo.FOLDER + ",-1)!=ifnull(new." + Todo.FOLDER + ",-1)"
+                    + " OR ifnull(old." + Todo.COMPLETED + ",0)!=ifnull(new." + Todo.COMPLETED + ",0)"
+                    + " BEGIN " + dec + " AND " + String.format(open, "old") + "; "
+                    + inc + " AND " + String.format(open, "new") + "; END;");
+        }
+
+        private void createBackfillsTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + BACKFILLS_TABLE_NAME + " ("
+                    + BACKFILL_NAME + " TEXT PRIMARY KEY,"
+                    + BACKFILL_POSITION + " INTEGER"
+                    + ");");
+        }
+
+        /**
+         * Leaves a backfill for {@link TodoProvider#runBackfills()} to do
+         * once the upgrade is over.
+         */
+        private void scheduleBackfill(SQLiteDatabase db, String name) {
+            createBackfillsTable(db);
+            db.execSQL("INSERT OR REPLACE INTO " + BACKFILLS_TABLE_NAME + " (" + BACKFILL_NAME + ","
+                    + BACKFILL_POSITION + ") VALUES (?,0)", new Object[] { name });
+        }
+
+        static List<String> columns(SQLiteDatabase db, String table) {
+            ArrayList<String> columns = new ArrayList<String>();
+            Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+            try {
+                while (c.moveToNext()) {
+                    columns.add(c.getString(1));
+                }
+            } finally {
+                c.close();
+            }
+            return columns;
+        }
+
+        /**
+         * The columns table and into both have.
+         */
+        private static String commonColumns(SQLiteDatabase db, String table, String into) {
+            List<String> common = columns(db, table);
+            common.retainAll(columns(db, into));
+            return TextUtils.join(",", common);
+        }
+
+        private void createTagTables(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TAGS_TABLE_NAME + " ("
+                    + Tags._ID + " INTEGER PRIMARY KEY,"
+                    + Tags.NAME + " TEXT UNIQUE"
+                    + ");");
+            db.execSQL("CREATE TABLE " + TODO_TAGS_TABLE_NAME + " ("
+                    + TODO_TAGS_TODO_ID + " INTEGER,"
+                    + TODO_TAGS_TAG_ID + " INTEGER,"
+                    + "PRIMARY KEY (" + TODO_TAGS_TODO_ID + "," + TODO_TAGS_TAG_ID + ")"
+                    + ");");
+            db.execSQL("CREATE INDEX todo_tags_tag_id ON " + TODO_TAGS_TABLE_NAME
+                    + " (" + TODO_TAGS_TAG_ID + ");");
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            //Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-            //        + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS items;");
-            onCreate(db);
+            migrate(db, oldVersion, newVersion);
+        }
+
+        /**
+         * Runs the migrations after from, up to and including to.
+         */
+        void migrate(SQLiteDatabase db, int from, int to) {
+            for (Migration migration : mMigrations) {
+                if (migration.version > from && migration.version <= to) {
+                    migration.migrate(db);
+                }
+            }
+        }
+
+        /** Every schema change since version 4, oldest first */
+        private final Migration[] mMigrations = new Migration[] {
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Earlier versions had fewer columns, keep the ones they had
+                    db.execSQL("ALTER TABLE " + ITEMS_TABLE_NAME + " RENAME TO items_v3;");
+                    db.execSQL("CREATE TABLE " + ITEMS_TABLE_NAME + " ("
+                            + Todo._ID + " INTEGER PRIMARY KEY,"
+                            + Todo.TITLE + " TEXT,"
+                            + Todo.NOTE + " TEXT,"
+                            + Todo.CREATED_DATE + " INTEGER,"
+                            + Todo.MODIFIED_DATE + " INTEGER,"
+                            + Todo.DUE_DATE + " INTEGER,"
+                            + Todo.COMPLETED + " INTEGER,"
+                            + Todo.FOLDER + " INTEGER,"
+                            + Todo.NOTIFY_DATE + " INTEGER,"
+                            + Todo.CONTEXT + " INTEGER,"
+                            + Todo.ICON + " INTEGER,"
+                            + Todo.HAS_DUE_DATE + " INTEGER,"
+                            + Todo.HAS_REMINDER + " INTEGER,"
+                            + Todo.IS_SCHEDULED + " INTEGER,"
+                            + Todo.PRIORITY + " INTEGER,"
+                            + Todo.SCHEDULE_DATE + " INTEGER,"
+                            + Todo.INBOX + " INTEGER"
+                            + ");");
+                    String columns = commonColumns(db, "items_v3", ITEMS_TABLE_NAME);
+                    db.execSQL("INSERT INTO " + ITEMS_TABLE_NAME + " (" + columns + ") SELECT "
+                            + columns + " FROM items_v3;");
+                    db.execSQL("DROP TABLE items_v3;");
+                }
+            },
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createAlarmStateTable(db);
+                }
+            },
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createRemindersTable(db);
+                }
+            },
+            new Migration(7) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + ITEMS_TABLE_NAME + " ADD COLUMN " + Todo.RRULE + " TEXT;");
+                }
+            },
+            new Migration(8) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createArchiveTable(db);
+                }
+            },
+            new Migration(9) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createNoteBodiesTable(db);
+                    scheduleBackfill(db, ITEMS_TABLE_NAME + "." + Todo.NOTE);
+                    scheduleBackfill(db, ARCHIVE_TABLE_NAME + "." + Todo.NOTE);
+                }
+            },
+            new Migration(10) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createFoldersTable(db);
+                }
+            },
+            new Migration(11) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createTagTables(db);
+                }
+            },
+            new Migration(12) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Filled in by the first query, which finds no bucket day on record
+                    db.execSQL("ALTER TABLE " + ITEMS_TABLE_NAME + " ADD COLUMN " + Todo.BUCKET + " INTEGER;");
+                    // The archive was created with the current columns if it is newer than 8
+                    if (hasColumn(db, ARCHIVE_TABLE_NAME, Todo.BUCKET) == false) {
+                        db.execSQL("ALTER TABLE " + ARCHIVE_TABLE_NAME + " ADD COLUMN " + Todo.BUCKET + " INTEGER;");
+                    }
+                }
+            },
+            new Migration(13) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createBackfillsTable(db);
+                }
+            },
+            new Migration(14) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + ITEMS_TABLE_NAME + " ADD COLUMN " + Todo.SERIES_START + " INTEGER;");
+                    if (hasColumn(db, ARCHIVE_TABLE_NAME, Todo.SERIES_START) == false) {
+                        db.execSQL("ALTER TABLE " + ARCHIVE_TABLE_NAME + " ADD COLUMN " + Todo.SERIES_START + " INTEGER;");
+                    }
+                    // The best guess at where an existing series started,
+                    // only repeating todos have one so this is a few rows
+                    db.execSQL("UPDATE " + ITEMS_TABLE_NAME + " SET " + Todo.SERIES_START + "="
+                            + Todo.DUE_DATE + " WHERE " + Todo.RRULE + " IS NOT NULL;");
+                }
+            },
+            new Migration(15) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Only takes once the file is rebuilt, which can't be done
+                    // in a transaction and takes too long for the first open
+                    db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+                    StorageProfile.requestRebuild(mContext, db);
+                }
+            },
+        };
+
+        private static boolean hasColumn(SQLiteDatabase db, String table, String column) {
+            return columns(db, table).contains(column);
         }
     }
 
+    /** The app's provider, created with the process, for DataManager's file copies */
+    private static TodoProvider sInstance;
+
     private DatabaseHelper mOpenHelper;
 
+    /** Every insert, update and delete goes through here */
+    private GroupCommitWriter mWriter;
+    private final TagIndex mTagIndex = new TagIndex();
+
+    /** Recent query results, valid until the next write commits */
+    private final QueryCache mQueryCache = new QueryCache();
+
+    /** Compiled statements for the common writes, only used on the writer */
+    private final StatementCache mStatements = new StatementCache();
+
+    /** Sort indexes known to exist in the current database */
+    private final HashSet<String> mSortIndexes = new HashSet<String>();
+
+    /** Start of the local day the stored buckets are right for, 0 if unknown */
+    private long mBucketDay;
+
     @Override
     public boolean onCreate() {
+        sInstance = this;
         mOpenHelper = new DatabaseHelper(getContext());
+        mWriter = new GroupCommitWriter(mOpenHelper, new Runnable() {
+            public void run() {
+                // Before observers hear of the write, see QueryCache.invalidate
+                mQueryCache.invalidate();
+            }
+        }, new Runnable() {
+            public void run() {
+                // The index may have loaded rows the group wrote
+                mTagIndex.invalidate();
+            }
+        });
+        startBackfills();
+        return true;
+    }
+
+    /**
+     * Works through whatever backfills an upgrade left, in the background
+     * and one batch per write so that the app's own writes get in between.
+     */
+    private void startBackfills() {
+        final GroupCommitWriter.Write<Boolean> batch = new GroupCommitWriter.Write<Boolean>() {
+            public Boolean run() {
+                return runBackfillBatch();
+            }
+        };
+        Thread backfills = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    while (mWriter.submit(batch, false)) {
+                        // Keep going until there is nothing left
+                    }
+                } catch (SQLException e) {
+                    // Left where it got to, the next start tries again
+                }
+            }
+        }, "Backfills");
+        backfills.setDaemon(true);
+        backfills.start();
+    }
+
+    /**
+     * @return false once no backfill is left
+     */
+    private boolean runBackfillBatch() {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Cursor c = db.query(BACKFILLS_TABLE_NAME, new String[] { BACKFILL_NAME, BACKFILL_POSITION },
+                null, null, null, null, null, "1");
+        String name;
+        long position;
+        try {
+            if (!c.moveToFirst()) {
+                return false;
+            }
+            name = c.getString(0);
+            position = c.getLong(1);
+        } finally {
+            c.close();
+        }
+
+        db.beginTransaction();
+        try {
+            Backfill backfill = sBackfills.get(name);
+            position = backfill != null ? backfill.run(db, position, BACKFILL_BATCH_SIZE) : -1;
+            if (position < 0) {
+                db.delete(BACKFILLS_TABLE_NAME, BACKFILL_NAME + "=?", new String[] { name });
+            } else {
+                ContentValues values = new ContentValues();
+                values.put(BACKFILL_POSITION, position);
+                db.update(BACKFILLS_TABLE_NAME, values, BACKFILL_NAME + "=?", new String[] { name });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
         return true;
     }
 
     @Override
-    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+    public Cursor query(final Uri uri, String[] projection, String selection, final String[] selectionArgs,
             String sortOrder) {
-        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        String defaultOrder = null;
+        HashMap<String, String> projectionMap = null;
+        boolean withNote = false;
 
         switch (sUriMatcher.match(uri)) {
         case NOTES:
-            qb.setTables(ITEMS_TABLE_NAME);
-            qb.setProjectionMap(sNotesProjectionMap);
+            withNote = wantsNote(projection);
+            qb.setTables(withNote ? ITEMS_NOTES_JOIN : ITEMS_TABLE_NAME);
+            projectionMap = sNotesProjectionMap;
+            defaultOrder = Todo.DEFAULT_SORT_ORDER;
             break;
 
         case NOTE_ID:
-            qb.setTables(ITEMS_TABLE_NAME);
-            qb.setProjectionMap(sNotesProjectionMap);
-            qb.appendWhere(Todo._ID + "=" + uri.getPathSegments().get(1));
+            withNote = wantsNote(projection);
+            qb.setTables(withNote ? ITEMS_NOTES_JOIN : ITEMS_TABLE_NAME);
+            projectionMap = sNotesProjectionMap;
+            qb.appendWhere(ITEMS_TABLE_NAME + "." + Todo._ID + "=" + uri.getPathSegments().get(1));
+            defaultOrder = Todo.DEFAULT_SORT_ORDER;
+            break;
+
+        case FOLDER_TODOS:
+            withNote = wantsNote(projection);
+            qb.setTables(withNote ? ITEMS_NOTES_JOIN : ITEMS_TABLE_NAME);
+            projectionMap = sNotesProjectionMap;
+            qb.appendWhere(Todo.FOLDER + "=" + uri.getPathSegments().get(1));
+            defaultOrder = Todo.DEFAULT_SORT_ORDER;
+            break;
+
+        case FOLDERS:
+            qb.setTables(FOLDERS_TABLE_NAME);
+            projectionMap = sFoldersProjectionMap;
+            defaultOrder = Folders.DEFAULT_SORT_ORDER;
+            break;
+
+        case FOLDER_ID:
+            qb.setTables(FOLDERS_TABLE_NAME);
+            projectionMap = sFoldersProjectionMap;
+            qb.appendWhere(Folders._ID + "=" + uri.getPathSegments().get(1));
+            break;
+
+        case TAGS:
+            qb.setTables(TAGS_TABLE_NAME);
+            defaultOrder = Tags.DEFAULT_SORT_ORDER;
+            break;
+
+        case ALARM_STATE:
+            qb.setTables(ALARM_STATE_TABLE_NAME);
+            break;
+
+        case ALARM_STATE_ID:
+            qb.setTables(ALARM_STATE_TABLE_NAME);
+            qb.appendWhere(AlarmState._ID + "=" + uri.getPathSegments().get(1));
+            break;
+
+        case REMINDERS:
+            qb.setTables(REMINDERS_JOIN);
+            projectionMap = sRemindersProjectionMap;
+            defaultOrder = Reminders.DEFAULT_SORT_ORDER;
+            break;
+
+        case ARCHIVE:
+            withNote = wantsNote(projection);
+            qb.setTables(withNote ? ARCHIVE_NOTES_JOIN : ARCHIVE_TABLE_NAME);
+            projectionMap = sArchiveProjectionMap;
+            defaultOrder = Archive.DEFAULT_SORT_ORDER;
+            break;
+
+        case ARCHIVE_ID:
+            withNote = wantsNote(projection);
+            qb.setTables(withNote ? ARCHIVE_NOTES_JOIN : ARCHIVE_TABLE_NAME);
+            projectionMap = sArchiveProjectionMap;
+            qb.appendWhere(ARCHIVE_TABLE_NAME + "." + Todo._ID + "=" + uri.getPathSegments().get(1));
+            defaultOrder = Archive.DEFAULT_SORT_ORDER;
+            break;
+
+        case NOTE_REMINDERS:
+            qb.setTables(REMINDERS_JOIN);
+            projectionMap = sRemindersProjectionMap;
+            qb.appendWhere(Reminders.TODO_ID + "=" + uri.getPathSegments().get(1));
+            defaultOrder = Reminders.DEFAULT_SORT_ORDER;
             break;
 
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
+        final boolean todoList = sUriMatcher.match(uri) == NOTES || sUriMatcher.match(uri) == FOLDER_TODOS;
+        final String groupBy = todoList ? uri.getQueryParameter(Todo.PARAM_GROUP_BY) : null;
+        if (groupBy != null) {
+            if (!groupBy.equals(Todo.BUCKET)) {
+                throw new IllegalArgumentException("Unsupported grouping " + groupBy);
+            }
+            // One row per group, in group order
+            projectionMap = sBucketCountsProjectionMap;
+            withNote = false;
+        }
+        String now = uri.getQueryParameter(Todo.PARAM_NOW);
+        if (now != null && (projectionMap == sNotesProjectionMap || projectionMap == sArchiveProjectionMap)) {
+            projectionMap = new HashMap<String, String>(projectionMap);
+            putDisplayColumns(projectionMap, String.valueOf(Long.parseLong(now)));
+        }
+        qb.setProjectionMap(projectionMap);
 
         // If no sort order is specified use the default
         String orderBy;
-        if (TextUtils.isEmpty(sortOrder)) {
-            orderBy = QuickTodo.Todo.DEFAULT_SORT_ORDER;
+        if (!TextUtils.isEmpty(sortOrder)) {
+            // Only orders we have an index for, never raw SQL from the caller
+            if (!sortOrder.equals(defaultOrder) && !(todoList && sSortIndexes.containsKey(sortOrder))) {
+                throw new IllegalArgumentException("Unsupported sort order " + sortOrder);
+            }
+            orderBy = groupBy != null ? Todo.SORT_BY_BUCKET : sortOrder;
         } else {
-            orderBy = sortOrder;
+            orderBy = groupBy != null ? Todo.SORT_BY_BUCKET : defaultOrder;
+        }
+        if (todoList) {
+            prepareTodoList(orderBy);
         }
 
-        // Get the database and run the query
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
+        if (withNote) {
+            projection = withCompressedNote(projection, projectionMap);
+        }
+
+        final String[] columns = projection;
+        final String where = selection;
+        final String order = orderBy;
+        QueryCache.Source source = new QueryCache.Source() {
+            public Cursor query() {
+                // Get the database and run the query
+                SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+                return qb.query(db, columns, todoList ? withTagFilter(db, uri, where) : where, selectionArgs,
+                        groupBy, null, order, uri.getQueryParameter("limit"));
+            }
+        };
+        Cursor c;
+        if (withNote) {
+            // Note bodies are big and seldom read twice, never worth keeping
+            c = new NoteBodyCursor(source.query());
+        } else {
+            c = mQueryCache.query(QueryCache.key(uri.toString(), projection, selection, selectionArgs, orderBy),
+                    source, dependsOnClock(uri, projection, projectionMap));
+        }
 
         // Tell the cursor what uri to watch, so it knows when its source data changes
         c.setNotificationUri(getContext().getContentResolver(), uri);
         return c;
     }
 
+    /**
+     * Whether the result depends on when the query runs, so that a cached
+     * copy could be wrong without anything having been written.
+     */
+    private static boolean dependsOnClock(Uri uri, String[] projection, HashMap<String, String> projectionMap) {
+        if (uri.getQueryParameter(Todo.PARAM_NOW) != null) {
+            return false;
+        }
+        if (projection == null) {
+            return projectionMap != null && projectionMap.containsKey(Todo.DISPLAY_STATE);
+        }
+        for (String column : projection) {
+            if (Todo.IS_OVERDUE.equals(column) || Todo.DISPLAY_STATE.equals(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the index for orderBy and today's buckets in place before a todo
+     * list is read. Both are writes, so they are left to the writer, which
+     * is only bothered when something is missing.
+     */
+    private void prepareTodoList(final String orderBy) {
+        synchronized (mSortIndexes) {
+            if (mSortIndexes.contains(orderBy) && mBucketDay == startOfDay(System.currentTimeMillis())) {
+                return;
+            }
+        }
+        mWriter.submit(new GroupCommitWriter.Write<Boolean>() {
+            public Boolean run() {
+                ensureSortIndex(orderBy);
+                return ensureBucketsCurrent();
+            }
+        }, false);
+    }
+
+    /**
+     * Creates the index behind a todo sort order the first time that order
+     * is used, so nobody pays for indexes on orders they never pick.
+     */
+    private void ensureSortIndex(String orderBy) {
+        synchronized (mSortIndexes) {
+            if (mSortIndexes.contains(orderBy)) {
+                return;
+            }
+            mOpenHelper.getWritableDatabase().execSQL("CREATE INDEX IF NOT EXISTS "
+                    + sSortIndexes.get(orderBy) + " ON " + ITEMS_TABLE_NAME + " (" + orderBy + ");");
+            mSortIndexes.add(orderBy);
+        }
+    }
+
+    /**
+     * Makes sure the stored buckets were worked out for today, in the
+     * current timezone. After midnight, a timezone change or a database
+     * swap all of them are worked out again in one statement.
+     *
+     * @return whether the buckets had to be refreshed
+     */
+    private boolean ensureBucketsCurrent() {
+        long today = startOfDay(System.currentTimeMillis());
+        synchronized (mSortIndexes) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(getContext());
+            if (mBucketDay == 0) {
+                mBucketDay = prefs.getLong(PREF_BUCKET_DAY, 0);
+            }
+            if (mBucketDay == today) {
+                return false;
+            }
+            refreshBuckets(mOpenHelper.getWritableDatabase(), null, null);
+            mBucketDay = today;
+            prefs.edit().putLong(PREF_BUCKET_DAY, today).commit();
+            return true;
+        }
+    }
+
+    private static long startOfDay(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        c.set(Calendar.HOUR_OF_DAY, 0);
+        c.set(Calendar.MINUTE, 0);
+        c.set(Calendar.SECOND, 0);
+        c.set(Calendar.MILLISECOND, 0);
+        return c.getTimeInMillis();
+    }
+
+    /**
+     * Adds the columns the todo list shows instead of doing date math for
+     * every row it binds. now is the SQL for the time to compare against.
+     */
+    private static void putDisplayColumns(HashMap<String, String> map, String now) {
+        String completed = "ifnull(" + Todo.COMPLETED + ",0)!=0";
+        String noDate = "ifnull(" + Todo.HAS_DUE_DATE + ",0)=0";
+        String local = Todo.DUE_DATE + "/1000,'unixepoch','localtime'";
+        map.put(Todo.IS_OVERDUE, "(NOT " + completed + " AND NOT " + noDate + " AND "
+                + Todo.DUE_DATE + "<" + now + ") AS " + Todo.IS_OVERDUE);
+        map.put(Todo.DISPLAY_STATE, "CASE"
+                + " WHEN " + completed + " THEN " + Todo.DISPLAY_COMPLETED
+                + " WHEN " + noDate + " THEN " + Todo.DISPLAY_NO_DATE
+                + " WHEN " + Todo.DUE_DATE + "<" + now + " THEN " + Todo.DISPLAY_OVERDUE
+                + " ELSE " + Todo.DISPLAY_DUE + " END AS " + Todo.DISPLAY_STATE);
+        // "EEE, dd MMM yyyy HH:mm", the format the list has always used
+        map.put(Todo.DUE_DAY, "CASE WHEN " + completed + " OR " + noDate + " THEN NULL ELSE"
+                + " substr('SunMonTueWedThuFriSat',3*strftime('%w'," + local + ")+1,3)"
+                + "||strftime(', %d '," + local + ")"
+                + "||substr('JanFebMarAprMayJunJulAugSepOctNovDec',3*strftime('%m'," + local + ")-2,3)"
+                + "||strftime(' %Y %H:%M'," + local + ") END AS " + Todo.DUE_DAY);
+    }
+
+    /**
+     * Works out {@link Todo#BUCKET} of the matching todos from the local
+     * day boundaries of right now. Overdue means due before today began,
+     * "this week" runs up to the start of the next week in this locale.
+     */
+    private static void refreshBuckets(SQLiteDatabase db, String where, String[] whereArgs) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(startOfDay(System.currentTimeMillis()));
+        long today = c.getTimeInMillis();
+        c.add(Calendar.DAY_OF_MONTH, 1);
+        long tomorrow = c.getTimeInMillis();
+        c.add(Calendar.DAY_OF_MONTH, 1);
+        long dayAfter = c.getTimeInMillis();
+        c.setTimeInMillis(today);
+        do {
+            c.add(Calendar.DAY_OF_MONTH, 1);
+        } while (c.get(Calendar.DAY_OF_WEEK) != c.getFirstDayOfWeek());
+        long nextWeek = Math.max(c.getTimeInMillis(), dayAfter);
+
+        execSQL(db, "UPDATE " + ITEMS_TABLE_NAME + " SET " + Todo.BUCKET + "=CASE"
+                + " WHEN ifnull(" + Todo.COMPLETED + ",0)!=0 THEN " + Todo.BUCKET_COMPLETED
+                + " WHEN ifnull(" + Todo.HAS_DUE_DATE + ",0)=0 THEN " + Todo.BUCKET_NO_DATE
+                + " WHEN " + Todo.DUE_DATE + "<" + today + " THEN " + Todo.BUCKET_OVERDUE
+                + " WHEN " + Todo.DUE_DATE + "<" + tomorrow + " THEN " + Todo.BUCKET_TODAY
+                + " WHEN " + Todo.DUE_DATE + "<" + dayAfter + " THEN " + Todo.BUCKET_TOMORROW
+                + " WHEN " + Todo.DUE_DATE + "<" + nextWeek + " THEN " + Todo.BUCKET_THIS_WEEK
+                + " ELSE " + Todo.BUCKET_LATER + " END" + whereClause(where), whereArgs);
+    }
+
+    /**
+     * Narrows selection to the todos picked by the tag and status query
+     * parameters, answered from {@link TagIndex} rather than by joins. The
+     * ids are only good for now, so this runs inside the query source and
+     * again for every requery.
+     */
+    private String withTagFilter(SQLiteDatabase db, Uri uri, String selection) {
+        String all = uri.getQueryParameter(Tags.PARAM_ALL);
+        String none = uri.getQueryParameter(Tags.PARAM_NONE);
+        String status = uri.getQueryParameter(Tags.PARAM_STATUS);
+        if (all == null && none == null && status == null) {
+            return selection;
+        }
+        long[] ids = mTagIndex.select(db, TagIndex.parse(all), TagIndex.parse(none),
+                Tags.STATUS_OPEN.equals(status) ? TagIndex.STATUS_OPEN
+                : Tags.STATUS_DONE.equals(status) ? TagIndex.STATUS_DONE : TagIndex.STATUS_ANY);
+        return ITEMS_TABLE_NAME + "." + Todo._ID + " IN (" + joinIds(ids) + ")"
+                + (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
+    }
+
+    private static boolean wantsNote(String[] projection) {
+        return projection == null || Arrays.asList(projection).contains(Todo.NOTE);
+    }
+
+    /**
+     * Spells out the projection and adds the hidden compressed note column at
+     * the end, where {@link NoteBodyCursor} expects it.
+     */
+    private static String[] withCompressedNote(String[] projection, HashMap<String, String> map) {
+        List<String> columns = new ArrayList<String>();
+        if (projection != null) {
+            columns.addAll(Arrays.asList(projection));
+        } else {
+            for (String column : map.keySet()) {
+                if (!column.equals(NoteBodyCursor.COMPRESSED_NOTE)) {
+                    columns.add(column);
+                }
+            }
+        }
+        columns.add(NoteBodyCursor.COMPRESSED_NOTE);
+        return columns.toArray(new String[columns.size()]);
+    }
+
     @Override
     public String getType(Uri uri) {
         switch (sUriMatcher.match(uri)) {
         case NOTES:
+        case FOLDER_TODOS:
             return Todo.CONTENT_TYPE;
 
+        case FOLDERS:
+            return Folders.CONTENT_TYPE;
+
+        case FOLDER_ID:
+            return Folders.CONTENT_ITEM_TYPE;
+
+        case TAGS:
+            return Tags.CONTENT_TYPE;
+
         case NOTE_ID:
             return Todo.CONTENT_ITEM_TYPE;
 
+        case ALARM_STATE:
+            return "vnd.android.cursor.dir/vnd.jetpad.alarmstate";
+
+        case ALARM_STATE_ID:
+            return "vnd.android.cursor.item/vnd.jetpad.alarmstate";
+
+        case REMINDERS:
+        case NOTE_REMINDERS:
+            return Reminders.CONTENT_TYPE;
+
+        case ARCHIVE:
+            return Archive.CONTENT_TYPE;
+
+        case ARCHIVE_ID:
+            return Archive.CONTENT_ITEM_TYPE;
+
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
     }
 
     @Override
-    public Uri insert(Uri uri, ContentValues initialValues) {
+    public Uri insert(final Uri uri, final ContentValues initialValues) {
+        return mWriter.submit(new GroupCommitWriter.Write<Uri>() {
+            public Uri run() {
+                return insertNow(uri, initialValues);
+            }
+        }, sUriMatcher.match(uri) == RESET_CODE);
+    }
+
+    @Override
+    public int bulkInsert(final Uri uri, final ContentValues[] initialValues) {
+        return mWriter.submit(new GroupCommitWriter.Write<Integer>() {
+            public Integer run() {
+                return bulkInsertNow(uri, initialValues);
+            }
+        }, false);
+    }
+
+    @Override
+    public int delete(final Uri uri, final String where, final String[] whereArgs) {
+        return mWriter.submit(new GroupCommitWriter.Write<Integer>() {
+            public Integer run() {
+                return deleteNow(uri, where, whereArgs);
+            }
+        }, false);
+    }
+
+    @Override
+    public int update(final Uri uri, final ContentValues values, final String where,
+            final String[] whereArgs) {
+        return mWriter.submit(new GroupCommitWriter.Write<Integer>() {
+            public Integer run() {
+                return updateNow(uri, values, where, whereArgs);
+            }
+        }, sUriMatcher.match(uri) == ARCHIVE_SWEEP || sUriMatcher.match(uri) == CHECKPOINT
+                || sUriMatcher.match(uri) == MAINTENANCE_ANALYZE || sUriMatcher.match(uri) == MAINTENANCE_VACUUM
+                || sUriMatcher.match(uri) == MAINTENANCE_REBUILD);
+    }
+
+    private Uri insertNow(Uri uri, ContentValues initialValues) {
     	
         if (sUriMatcher.match(uri) == RESET_CODE) {
+            mStatements.clear();
             mOpenHelper.close();
             mOpenHelper.getWritableDatabase();
+            forgetDatabaseState();
+            // An imported file may be from before an upgrade with a backfill
+            startBackfills();
             return uri;
         }
+        if (sUriMatcher.match(uri) == ALARM_STATE) {
+            // Alarm state rows are keyed by todo id, so an insert replaces
+            // whatever was recorded for that todo before.
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            long rowId = db.replace(ALARM_STATE_TABLE_NAME, null, initialValues);
+            if (rowId > 0) {
+                return ContentUris.withAppendedId(AlarmState.CONTENT_URI, rowId);
+            }
+            throw new SQLException("Failed to insert row into " + uri);
+        }
+        if (sUriMatcher.match(uri) == NOTE_REMINDERS) {
+            return insertReminder(uri, initialValues);
+        }
+        if (sUriMatcher.match(uri) == ARCHIVE_RESTORE) {
+            return restoreArchived(Long.parseLong(uri.getPathSegments().get(1)));
+        }
+        if (sUriMatcher.match(uri) == FOLDERS) {
+            return insertFolder(uri, initialValues);
+        }
         // Validate the requested uri
-        if (sUriMatcher.match(uri) != NOTES) {
+        if (sUriMatcher.match(uri) != NOTES && sUriMatcher.match(uri) != FOLDER_TODOS) {
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
+        ContentValues values = itemValues(uri, initialValues);
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long rowId;
+        db.beginTransaction();
+        try {
+            rowId = insertItem(db, mStatements, values);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (rowId > 0) {
+            indexInserted(rowId, values);
+            Uri noteUri = ContentUris.withAppendedId(QuickTodo.Todo.CONTENT_URI, rowId);
+            notifyTodosChanged(noteUri);
+            return noteUri;
+        }
+
+        throw new SQLException("Failed to insert row into " + uri);
+    }
+
+    /**
+     * Inserts all the todos in one transaction, with one notification and
+     * one alarm reconciliation at the end. Either every row goes in or none.
+     */
+    private int bulkInsertNow(Uri uri, ContentValues[] initialValues) {
+        if (sUriMatcher.match(uri) == REMINDERS) {
+            return bulkInsertReminders(initialValues);
+        }
+        if (sUriMatcher.match(uri) != NOTES && sUriMatcher.match(uri) != FOLDER_TODOS) {
+            return super.bulkInsert(uri, initialValues);
+        }
+
+        ContentValues[] values = new ContentValues[initialValues.length];
+        long[] rowIds = new long[values.length];
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = itemValues(uri, initialValues[i]);
+                rowIds[i] = insertItem(db, mStatements, values[i]);
+                if (rowIds[i] <= 0) {
+                    throw new SQLException("Failed to insert row into " + uri);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        for (int i = 0; i < values.length; i++) {
+            indexInserted(rowIds[i], values[i]);
+        }
+        if (values.length > 0) {
+            notifyTodosChanged(Todo.CONTENT_URI);
+            startService(new Intent("org.jetpad.quicktodofree.UPDATE_ALARM", Todo.CONTENT_URI));
+        }
+        return values.length;
+    }
+
+    /**
+     * The values for a new todo, with the folder taken from uri and
+     * defaults filled in for anything not given.
+     */
+    private static ContentValues itemValues(Uri uri, ContentValues initialValues) {
         ContentValues values;
         if (initialValues != null) {
             values = new ContentValues(initialValues);
@@ -178,8 +1206,19 @@ public class TodoProvider extends ContentProvider {
             values = new ContentValues();
         }
 
-        Long now = Long.valueOf(System.currentTimeMillis());
+        if (sUriMatcher.match(uri) == FOLDER_TODOS) {
+            values.put(Todo.FOLDER, Long.parseLong(uri.getPathSegments().get(1)));
+        }
+
+        putDefaults(values, System.currentTimeMillis());
+        return values;
+    }
 
+    /**
+     * Fills in what a new todo gets for anything the caller left out.
+     * {@link ImportPipeline} uses the same, so imported rows arrive ready.
+     */
+    static void putDefaults(ContentValues values, long now) {
         // Make sure that the fields are all set
         if (values.containsKey(QuickTodo.Todo.CREATED_DATE) == false) {
             values.put(QuickTodo.Todo.CREATED_DATE, now);
@@ -200,83 +1239,959 @@ public class TodoProvider extends ContentProvider {
         if (values.containsKey(QuickTodo.Todo.NOTE) == false) {
             values.put(QuickTodo.Todo.NOTE, "");
         }
+    }
 
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        long rowId = db.insert(ITEMS_TABLE_NAME, Todo.NOTE, values);
+    /**
+     * Writes one todo, with its note, bucket and tags. Runs inside the
+     * caller's transaction.
+     */
+    private static long insertItem(SQLiteDatabase db, StatementCache statements, ContentValues values) {
+        ContentValues row = new ContentValues(values);
+        if (row.containsKey(Todo._ID) == false) {
+            // Never hand out an id that an archived todo still holds
+            row.put(Todo._ID, nextItemId(db));
+        }
+        if (row.getAsString(Todo.RRULE) != null && row.containsKey(Todo.SERIES_START) == false) {
+            row.put(Todo.SERIES_START, row.getAsLong(Todo.DUE_DATE));
+        }
+        String note = row.getAsString(Todo.NOTE);
+        row.remove(Todo.NOTE);
+        row.remove(Todo.TAGS);
+        long rowId = statements.insert(db, ITEMS_TABLE_NAME, row);
         if (rowId > 0) {
-            Uri noteUri = ContentUris.withAppendedId(QuickTodo.Todo.CONTENT_URI, rowId);
-            getContext().getContentResolver().notifyChange(noteUri, null);
-            return noteUri;
+            String[] id = new String[] { String.valueOf(rowId) };
+            writeNoteBody(db, note, Todo._ID + "=?", id);
+            refreshBuckets(db, Todo._ID + "=?", id);
+            if (values.containsKey(Todo.TAGS)) {
+                writeTags(db, new long[] { rowId }, TagIndex.parse(values.getAsString(Todo.TAGS)));
+            }
         }
+        return rowId;
+    }
 
-        throw new SQLException("Failed to insert row into " + uri);
+    /**
+     * Tells the tag index about a todo once its insert has committed.
+     */
+    private void indexInserted(final long rowId, ContentValues values) {
+        Boolean completed = values.getAsBoolean(Todo.COMPLETED);
+        final boolean isCompleted = completed != null && completed;
+        final Set<String> tags = values.containsKey(Todo.TAGS)
+                ? TagIndex.parse(values.getAsString(Todo.TAGS)) : null;
+        mWriter.afterCommit(new Runnable() {
+            public void run() {
+                mTagIndex.setCompleted(rowId, isCompleted);
+                if (tags != null) {
+                    mTagIndex.setTags(rowId, tags);
+                }
+            }
+        });
     }
 
-    @Override
-    public int delete(Uri uri, String where, String[] whereArgs) {
+    private int deleteNow(Uri uri, String where, String[] whereArgs) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
         
-        getContext().startService(new Intent("org.jetpad.quicktodofree.DELETE_ALARM",uri));
-        
         switch (sUriMatcher.match(uri)) {
+        case ARCHIVE:
+            count = deleteItems(db, ARCHIVE_TABLE_NAME, where, whereArgs);
+            if (count > 0) {
+                notifyChange(uri);
+            }
+            return count;
+
+        case ARCHIVE_ID:
+            count = deleteItems(db, ARCHIVE_TABLE_NAME, whereWithId(Todo._ID, where),
+                    argsWithId(uri.getPathSegments().get(1), whereArgs));
+            notifyChange(Archive.CONTENT_URI);
+            return count;
+
+        case ALARM_STATE_ID:
+            // Bookkeeping for AlarmService, nobody observes these rows
+            return db.delete(ALARM_STATE_TABLE_NAME, AlarmState._ID + "=?",
+                    new String[] { uri.getPathSegments().get(1) });
+
+        case NOTE_REMINDERS:
+            String todoId = uri.getPathSegments().get(1);
+            count = db.delete(REMINDERS_TABLE_NAME, whereWithId(Reminders.TODO_ID, where),
+                    argsWithId(todoId, whereArgs));
+            refreshReminderColumns(db, Todo._ID + "=?", new String[] { todoId });
+            notifyChange(uri);
+            startService(new Intent("org.jetpad.quicktodofree.UPDATE_ALARM",
+                    ContentUris.withAppendedId(Todo.CONTENT_URI, Long.parseLong(todoId))));
+            return count;
+
         case NOTES:
-            count = db.delete(ITEMS_TABLE_NAME, where, whereArgs);
+            count = deleteItems(db, ITEMS_TABLE_NAME, where, whereArgs);
             break;
 
         case NOTE_ID:
-            String noteId = uri.getPathSegments().get(1);
-            count = db.delete(ITEMS_TABLE_NAME, Todo._ID + "=" + noteId
-                    + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""), whereArgs);
+            count = deleteItems(db, ITEMS_TABLE_NAME, whereWithId(Todo._ID, where),
+                    argsWithId(uri.getPathSegments().get(1), whereArgs));
+            break;
+
+        case FOLDER_TODOS:
+            count = deleteItems(db, ITEMS_TABLE_NAME, whereWithId(Todo.FOLDER, where),
+                    argsWithId(uri.getPathSegments().get(1), whereArgs));
             break;
 
+        case FOLDER_ID:
+            return deleteFolder(db, Long.parseLong(uri.getPathSegments().get(1)));
+
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyTodosChanged(uri);
+        startService(new Intent("org.jetpad.quicktodofree.DELETE_ALARM",alarmUri(uri)));
         return count;
     }
 
-    @Override
-    public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+    private int updateNow(Uri uri, ContentValues values, String where, String[] whereArgs) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
         switch (sUriMatcher.match(uri)) {
+        case BUCKETS:
+            if (!ensureBucketsCurrent()) {
+                return 0;
+            }
+            notifyChange(Todo.CONTENT_URI);
+            notifyChange(Folders.CONTENT_URI);
+            return 1;
+
+        case CHECKPOINT:
+            return StorageProfile.checkpoint(db) ? 1 : 0;
+
+        case MAINTENANCE_ANALYZE:
+            // One table per call, so the lock is never held for all of them
+            int step = Integer.parseInt(uri.getQueryParameter("step"));
+            if (step >= ANALYZE_TABLES.length) {
+                return 0;
+            }
+            db.execSQL("ANALYZE " + ANALYZE_TABLES[step]);
+            return 1;
+
+        case MAINTENANCE_VACUUM:
+            return StorageProfile.incrementalVacuum(db, Integer.parseInt(uri.getQueryParameter("pages")));
+
+        case MAINTENANCE_REBUILD:
+            return StorageProfile.rebuildIfPending(getContext(), db) ? 1 : 0;
+
+        case ARCHIVE_SWEEP:
+            String limit = uri.getQueryParameter("limit");
+            return sweepToArchive(db, where, whereArgs,
+                    limit != null ? Integer.parseInt(limit) : ARCHIVE_BATCH_SIZE);
+
         case NOTES:
-            count = db.update(ITEMS_TABLE_NAME, values, where, whereArgs);
+            count = updateItems(db, values, where, whereArgs);
             break;
 
         case NOTE_ID:
-            String noteId = uri.getPathSegments().get(1);
-            count = db.update(ITEMS_TABLE_NAME, values, Todo._ID + "=" + noteId
-                    + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""), whereArgs);
+            count = updateItems(db, values, whereWithId(Todo._ID, where),
+                    argsWithId(uri.getPathSegments().get(1), whereArgs));
             break;
 
+        case FOLDER_TODOS:
+            count = updateItems(db, values, whereWithId(Todo.FOLDER, where),
+                    argsWithId(uri.getPathSegments().get(1), whereArgs));
+            break;
+
+        case FOLDER_ID:
+            count = db.update(FOLDERS_TABLE_NAME, values, whereWithId(Folders._ID, where),
+                    argsWithId(uri.getPathSegments().get(1), whereArgs));
+            notifyChange(Folders.CONTENT_URI);
+            return count;
+
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
-        getContext().startService(new Intent("org.jetpad.quicktodofree.UPDATE_ALARM",uri));
+        notifyTodosChanged(uri);
+        startService(new Intent("org.jetpad.quicktodofree.UPDATE_ALARM",alarmUri(uri)));
+        return count;
+    }
+
+    /**
+     * Tells observers of uri that todos changed. Folder lists and their
+     * pending counts are watched under a different tree, so they are told
+     * as well.
+     */
+    private void notifyTodosChanged(Uri uri) {
+        notifyChange(uri);
+        notifyChange(Folders.CONTENT_URI);
+    }
+
+    /**
+     * Tells observers of uri about a change, once the write making it has
+     * committed. Before that they would read the data as it was.
+     */
+    private void notifyChange(final Uri uri) {
+        mWriter.afterCommit(new Runnable() {
+            public void run() {
+                getContext().getContentResolver().notifyChange(uri, null);
+            }
+        });
+    }
+
+    /**
+     * Starts a service about a change, once the write making it has
+     * committed.
+     */
+    private void startService(final Intent intent) {
+        mWriter.afterCommit(new Runnable() {
+            public void run() {
+                getContext().startService(intent);
+            }
+        });
+    }
+
+    /**
+     * AlarmService reconciles either one todo or all of them
+     */
+    private static Uri alarmUri(Uri uri) {
+        return sUriMatcher.match(uri) == NOTE_ID ? uri : Todo.CONTENT_URI;
+    }
+
+    private Uri insertFolder(Uri uri, ContentValues initialValues) {
+        ContentValues values = initialValues != null ? new ContentValues(initialValues) : new ContentValues();
+        if (values.containsKey(Folders.NAME) == false) {
+            values.put(Folders.NAME, "");
+        }
+        // The count is maintained by triggers, a new folder is always empty
+        values.put(Folders.PENDING_COUNT, 0);
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long rowId = db.insert(FOLDERS_TABLE_NAME, Folders.NAME, values);
+        if (rowId > 0) {
+            Uri folderUri = ContentUris.withAppendedId(Folders.CONTENT_URI, rowId);
+            notifyChange(folderUri);
+            return folderUri;
+        }
+
+        throw new SQLException("Failed to insert row into " + uri);
+    }
+
+    /**
+     * Deletes a folder. Its todos are kept and end up in no folder.
+     */
+    private int deleteFolder(SQLiteDatabase db, long folderId) {
+        int count;
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            values.putNull(Todo.FOLDER);
+            String[] id = new String[] { String.valueOf(folderId) };
+            db.update(ITEMS_TABLE_NAME, values, Todo.FOLDER + "=?", id);
+            db.update(ARCHIVE_TABLE_NAME, values, Todo.FOLDER + "=?", id);
+            count = db.delete(FOLDERS_TABLE_NAME, Folders._ID + "=?", id);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        notifyTodosChanged(Todo.CONTENT_URI);
         return count;
     }
     
+    private int updateItems(SQLiteDatabase db, ContentValues values, String where, String[] whereArgs) {
+        Boolean completed = values.getAsBoolean(Todo.COMPLETED);
+        if (completed != null && values.containsKey(Todo.MODIFIED_DATE) == false) {
+            // The archive goes by when a todo was completed
+            values = new ContentValues(values);
+            values.put(Todo.MODIFIED_DATE, System.currentTimeMillis());
+        }
+
+        // The note goes to its own table
+        String note = null;
+        boolean hasNote = values.containsKey(Todo.NOTE);
+        if (hasNote) {
+            values = new ContentValues(values);
+            note = values.getAsString(Todo.NOTE);
+            // Clears any note an upgrade backfill has yet to move, it is stale now
+            values.putNull(Todo.NOTE);
+        }
+
+        Set<String> tags = null;
+        if (values.containsKey(Todo.TAGS)) {
+            values = new ContentValues(values);
+            tags = TagIndex.parse(values.getAsString(Todo.TAGS));
+            values.remove(Todo.TAGS);
+        }
+
+        int count;
+        long[] ids = null;
+        long[] done = null;
+        db.beginTransaction();
+        try {
+            boolean moved = completed != null || values.containsKey(Todo.DUE_DATE)
+                    || values.containsKey(Todo.HAS_DUE_DATE);
+            if (tags != null || moved) {
+                // The tag index and buckets go by id, the where clause may
+                // no longer match once the update is done
+                ids = selectIds(db, where, whereArgs);
+            }
+
+            if (values.containsKey(Todo.SERIES_START) == false) {
+                startSeries(db, values, where, whereArgs);
+            }
+
+            // Open repeating todos that this update completes. Read now, a
+            // query's rows are only fetched when first asked for and by then
+            // the update has made them completed.
+            long[] repeatingIds = null;
+            long[] repeatingDue = null;
+            long[] repeatingStart = null;
+            String[] repeatingRules = null;
+            if (completed != null && completed) {
+                Cursor repeating = db.query(ITEMS_TABLE_NAME,
+                        new String[] { Todo._ID, Todo.DUE_DATE, Todo.RRULE, Todo.SERIES_START },
+                        Todo.RRULE + " IS NOT NULL AND ifnull(" + Todo.COMPLETED + ",0)=0"
+                        + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""),
+                        whereArgs, null, null, null);
+                try {
+                    int n = repeating.getCount();
+                    repeatingIds = new long[n];
+                    repeatingDue = new long[n];
+                    repeatingStart = new long[n];
+                    repeatingRules = new String[n];
+                    while (repeating.moveToNext()) {
+                        int i = repeating.getPosition();
+                        repeatingIds[i] = repeating.getLong(0);
+                        repeatingDue[i] = repeating.getLong(1);
+                        repeatingRules[i] = repeating.getString(2);
+                        // Series from before the start was kept go from the current one
+                        repeatingStart[i] = repeating.isNull(3) ? repeatingDue[i] : repeating.getLong(3);
+                    }
+                } finally {
+                    repeating.close();
+                }
+            }
+
+            moveReminders(db, values, where, whereArgs);
+            if (hasNote) {
+                writeNoteBody(db, note, where, whereArgs);
+            }
+            count = values.size() > 0 ? mStatements.update(db, ITEMS_TABLE_NAME, values, where, whereArgs)
+                    : countItems(db, where, whereArgs);
+            if (tags != null && ids.length > 0) {
+                writeTags(db, ids, tags);
+            }
+
+            if (repeatingIds != null) {
+                // The update itself may have just moved the due date or changed the rule
+                Long duedate = values.getAsLong(Todo.DUE_DATE);
+                Long start = values.getAsLong(Todo.SERIES_START);
+                boolean newRule = values.containsKey(Todo.RRULE);
+                for (int i = 0; i < repeatingIds.length; i++) {
+                    long due = duedate != null ? duedate : repeatingDue[i];
+                    advanceOccurrence(db, repeatingIds[i], due,
+                            start != null ? start : duedate != null ? duedate : repeatingStart[i],
+                            newRule ? values.getAsString(Todo.RRULE) : repeatingRules[i]);
+                }
+            }
+            if (moved && ids.length > 0) {
+                refreshBuckets(db, Todo._ID + " IN (" + joinIds(ids) + ")", null);
+            }
+            if (completed != null && ids.length > 0) {
+                // Repeating todos may have reopened, so ask rather than assume
+                done = selectIds(db, Todo._ID + " IN (" + joinIds(ids) + ") AND ifnull("
+                        + Todo.COMPLETED + ",0)!=0", null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (ids != null) {
+            final long[] changed = ids;
+            final long[] completedIds = done;
+            final Set<String> newTags = tags;
+            mWriter.afterCommit(new Runnable() {
+                public void run() {
+                    for (long id : changed) {
+                        if (completedIds != null) {
+                            mTagIndex.setCompleted(id, Arrays.binarySearch(completedIds, id) >= 0);
+                        }
+                        if (newTags != null) {
+                            mTagIndex.setTags(id, newTags);
+                        }
+                    }
+                }
+            });
+        }
+        return count;
+    }
+
+    private int deleteItems(SQLiteDatabase db, String table, String where, String[] whereArgs) {
+        int count;
+        long[] deleted = null;
+        db.beginTransaction();
+        try {
+            String ids = "IN (SELECT " + Todo._ID + " FROM " + table + whereClause(where) + ")";
+            if (table.equals(ITEMS_TABLE_NAME)) {
+                deleted = selectIds(db, where, whereArgs);
+                mStatements.execute(db, "DELETE FROM " + REMINDERS_TABLE_NAME + " WHERE " + Reminders.TODO_ID
+                        + " " + ids, whereArgs);
+            }
+            mStatements.execute(db, "DELETE FROM " + NOTE_BODIES_TABLE_NAME + " WHERE " + Todo._ID + " " + ids,
+                    whereArgs);
+            mStatements.execute(db, "DELETE FROM " + TODO_TAGS_TABLE_NAME + " WHERE " + TODO_TAGS_TODO_ID + " " + ids,
+                    whereArgs);
+            count = mStatements.delete(db, table, where, whereArgs);
+            deleteUnusedTags(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (deleted != null) {
+            forgetIndexed(deleted);
+        }
+        return count;
+    }
+
+    /**
+     * Drops todos that are gone from the tag index, once that has committed.
+     */
+    private void forgetIndexed(final long[] ids) {
+        mWriter.afterCommit(new Runnable() {
+            public void run() {
+                for (long id : ids) {
+                    mTagIndex.remove(id);
+                }
+            }
+        });
+    }
+
+    private static long[] selectIds(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor c = db.query(ITEMS_TABLE_NAME, new String[] { Todo._ID }, where, whereArgs,
+                null, null, Todo._ID);
+        try {
+            long[] ids = new long[c.getCount()];
+            while (c.moveToNext()) {
+                ids[c.getPosition()] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static String joinIds(long[] ids) {
+        StringBuilder sb = new StringBuilder();
+        for (long id : ids) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(id);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Replaces the tags of the given todos.
+     */
+    private static void writeTags(SQLiteDatabase db, long[] ids, Set<String> tags) {
+        String inIds = " IN (" + joinIds(ids) + ")";
+        db.execSQL("DELETE FROM " + TODO_TAGS_TABLE_NAME + " WHERE " + TODO_TAGS_TODO_ID + inIds);
+        for (String tag : tags) {
+            db.execSQL("INSERT OR IGNORE INTO " + TAGS_TABLE_NAME + " (" + Tags.NAME + ") VALUES (?)",
+                    new Object[] { tag });
+            db.execSQL("INSERT INTO " + TODO_TAGS_TABLE_NAME + " (" + TODO_TAGS_TODO_ID + ","
+                    + TODO_TAGS_TAG_ID + ") SELECT " + ITEMS_TABLE_NAME + "." + Todo._ID + ","
+                    + TAGS_TABLE_NAME + "." + Tags._ID + " FROM " + ITEMS_TABLE_NAME + "," + TAGS_TABLE_NAME
+                    + " WHERE " + TAGS_TABLE_NAME + "." + Tags.NAME + "=? AND " + ITEMS_TABLE_NAME + "."
+                    + Todo._ID + inIds, new Object[] { tag });
+        }
+        deleteUnusedTags(db);
+    }
+
+    private static void deleteUnusedTags(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + TAGS_TABLE_NAME + " WHERE " + Tags._ID + " NOT IN (SELECT "
+                + TODO_TAGS_TAG_ID + " FROM " + TODO_TAGS_TABLE_NAME + ")");
+    }
+
+    private static int countItems(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + ITEMS_TABLE_NAME + whereClause(where), whereArgs);
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Sets the note of the matching todos. Long notes are stored compressed,
+     * empty ones not at all.
+     */
+    private static void writeNoteBody(SQLiteDatabase db, String note, String where, String[] whereArgs) {
+        if (TextUtils.isEmpty(note)) {
+            execSQL(db, "DELETE FROM " + NOTE_BODIES_TABLE_NAME + " WHERE " + Todo._ID + " IN (SELECT "
+                    + Todo._ID + " FROM " + ITEMS_TABLE_NAME + whereClause(where) + ")", whereArgs);
+            return;
+        }
+        byte[] compressed = NoteBodyCursor.compress(note);
+        int extra = whereArgs != null ? whereArgs.length : 0;
+        Object[] args = new Object[2 + extra];
+        args[0] = compressed == null ? note : null;
+        args[1] = compressed;
+        if (extra > 0) {
+            System.arraycopy(whereArgs, 0, args, 2, extra);
+        }
+        db.execSQL("INSERT OR REPLACE INTO " + NOTE_BODIES_TABLE_NAME + " (" + Todo._ID + "," + NOTE_BODY
+                + "," + NOTE_ZBODY + ") SELECT " + Todo._ID + ",?,? FROM " + ITEMS_TABLE_NAME
+                + whereClause(where), args);
+    }
+
+    /**
+     * Starts the series over from the todo's due date where values moves the
+     * due date or changes the rule. An update that leaves both as they were,
+     * as the editor's saves mostly do, keeps the series where it was.
+     */
+    private static void startSeries(SQLiteDatabase db, ContentValues values, String where, String[] whereArgs) {
+        Long duedate = values.getAsLong(Todo.DUE_DATE);
+        boolean newRule = values.containsKey(Todo.RRULE);
+        if (duedate == null && newRule == false) {
+            return;
+        }
+        ArrayList<Object> args = new ArrayList<Object>();
+        if (whereArgs != null) {
+            args.addAll(Arrays.asList(whereArgs));
+        }
+        String changed = Todo.SERIES_START + " IS NULL";
+        if (duedate != null) {
+            changed += " OR " + Todo.DUE_DATE + " IS NULL OR " + Todo.DUE_DATE + "!=?";
+            args.add(duedate);
+        }
+        if (newRule) {
+            String rule = values.getAsString(Todo.RRULE);
+            changed += " OR ifnull(" + Todo.RRULE + ",'')!=?";
+            args.add(rule != null ? rule : "");
+        }
+        db.execSQL("UPDATE " + ITEMS_TABLE_NAME + " SET " + Todo.SERIES_START + "="
+                + (duedate != null ? String.valueOf(duedate) : Todo.DUE_DATE)
+                + " WHERE " + (!TextUtils.isEmpty(where) ? "(" + where + ") AND " : "")
+                + (newRule ? "" : Todo.RRULE + " IS NOT NULL AND ")
+                + "(" + changed + ")", args.toArray());
+    }
+
+    /**
+     * Turns a completed occurrence of a repeating todo into the next one, in
+     * place, so a series only ever takes up a single row. Missed occurrences
+     * of an overdue todo are skipped. Once the series has ended the todo
+     * simply stays completed. The next occurrence is counted from start,
+     * the series' first, rather than from duedate.
+     */
+    private void advanceOccurrence(SQLiteDatabase db, long id, long duedate, long start, String rule) {
+        Recurrence recurrence;
+        try {
+            recurrence = Recurrence.parse(rule);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        if (recurrence == null) {
+            return;
+        }
+        long next = recurrence.nextAfter(start, Math.max(duedate, System.currentTimeMillis()));
+        if (next == 0) {
+            return;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(Todo.COMPLETED, 0);
+        values.put(Todo.DUE_DATE, next);
+        String where = Todo._ID + "=?";
+        String[] whereArgs = new String[] { String.valueOf(id) };
+        moveReminders(db, values, where, whereArgs);
+        db.update(ITEMS_TABLE_NAME, values, where, whereArgs);
+    }
+
+    private static long nextItemId(SQLiteDatabase db) {
+        Cursor c = db.rawQuery("SELECT max(ifnull((SELECT MAX(" + Todo._ID + ") FROM " + ITEMS_TABLE_NAME
+                + "),0),ifnull((SELECT MAX(" + Todo._ID + ") FROM " + ARCHIVE_TABLE_NAME + "),0))+1", null);
+        try {
+            c.moveToFirst();
+            return c.getLong(0);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Moves up to limit completed todos matching the where clause into the
+     * archive, in one short transaction, and returns how many were moved.
+     */
+    private int sweepToArchive(SQLiteDatabase db, String where, String[] whereArgs, int limit) {
+        int count = 0;
+        long[] swept;
+        db.beginTransaction();
+        try {
+            Cursor c = db.query(ITEMS_TABLE_NAME, new String[] { Todo._ID },
+                    "ifnull(" + Todo.COMPLETED + ",0)!=0"
+                    + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : ""),
+                    whereArgs, null, null, null, String.valueOf(limit));
+            try {
+                swept = new long[c.getCount()];
+                while (c.moveToNext()) {
+                    swept[count++] = c.getLong(0);
+                }
+            } finally {
+                c.close();
+            }
+            if (count > 0) {
+                // Archived todos keep their tags, they just drop out of the tag index
+                String inIds = " IN (" + joinIds(swept) + ")";
+                db.execSQL("INSERT INTO " + ARCHIVE_TABLE_NAME + " (" + ITEM_COLUMNS + "," + Archive.ARCHIVED_DATE
+                        + ") SELECT " + ITEM_COLUMNS + "," + System.currentTimeMillis() + " FROM "
+                        + ITEMS_TABLE_NAME + " WHERE " + Todo._ID + inIds);
+                db.execSQL("DELETE FROM " + REMINDERS_TABLE_NAME + " WHERE " + Reminders.TODO_ID + inIds);
+                db.execSQL("DELETE FROM " + ALARM_STATE_TABLE_NAME + " WHERE " + AlarmState._ID + inIds);
+                db.execSQL("DELETE FROM " + ITEMS_TABLE_NAME + " WHERE " + Todo._ID + inIds);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        forgetIndexed(swept);
+        if (count > 0) {
+            notifyTodosChanged(Todo.CONTENT_URI);
+            notifyChange(Archive.CONTENT_URI);
+        }
+        return count;
+    }
+
+    private Uri restoreArchived(long id) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long rowId = id;
+        String[] archivedId = new String[] { String.valueOf(id) };
+        db.beginTransaction();
+        try {
+            Cursor c = db.query(ITEMS_TABLE_NAME, new String[] { Todo._ID }, Todo._ID + "=?",
+                    archivedId, null, null, null);
+            boolean taken;
+            try {
+                taken = c.moveToFirst();
+            } finally {
+                c.close();
+            }
+            if (taken) {
+                // Only possible for todos archived before ids were reserved
+                rowId = nextItemId(db);
+            }
+            if (rowId != id) {
+                Object[] ids = new Object[] { rowId, id };
+                db.execSQL("UPDATE " + NOTE_BODIES_TABLE_NAME + " SET " + Todo._ID + "=? WHERE "
+                        + Todo._ID + "=?", ids);
+                db.execSQL("UPDATE " + TODO_TAGS_TABLE_NAME + " SET " + TODO_TAGS_TODO_ID + "=? WHERE "
+                        + TODO_TAGS_TODO_ID + "=?", ids);
+            }
+            db.execSQL("INSERT INTO " + ITEMS_TABLE_NAME + " (" + ITEM_COLUMNS + ") SELECT "
+                    + ITEM_COLUMNS.replaceFirst(Todo._ID, "?")
+                    + " FROM " + ARCHIVE_TABLE_NAME + " WHERE " + Todo._ID + "=?", new Object[] { rowId, id });
+            if (db.delete(ARCHIVE_TABLE_NAME, Todo._ID + "=?", archivedId) == 0) {
+                throw new IllegalArgumentException("Unknown URI " + ContentUris.withAppendedId(Archive.CONTENT_URI, id));
+            }
+            refreshBuckets(db, Todo._ID + "=?", new String[] { String.valueOf(rowId) });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // Restores are rare, let the tag index reload rather than read the row back
+        mWriter.afterCommit(new Runnable() {
+            public void run() {
+                mTagIndex.invalidate();
+            }
+        });
+        Uri noteUri = ContentUris.withAppendedId(Todo.CONTENT_URI, rowId);
+        notifyTodosChanged(noteUri);
+        notifyChange(Archive.CONTENT_URI);
+        return noteUri;
+    }
+
+    private Uri insertReminder(Uri uri, ContentValues values) {
+        String todoId = uri.getPathSegments().get(1);
+        Integer minutes = values != null ? values.getAsInteger(Reminders.MINUTES_BEFORE) : null;
+        if (minutes == null) {
+            throw new IllegalArgumentException("A reminder needs " + Reminders.MINUTES_BEFORE);
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement(INSERT_REMINDER);
+        long rowId;
+        try {
+            insert.bindLong(1, minutes);
+            insert.bindLong(2, Long.parseLong(todoId));
+            rowId = insert.executeInsert();
+        } finally {
+            insert.close();
+        }
+        if (rowId > 0) {
+            refreshReminderColumns(db, Todo._ID + "=?", new String[] { todoId });
+            notifyChange(uri);
+            startService(new Intent("org.jetpad.quicktodofree.UPDATE_ALARM",
+                    ContentUris.withAppendedId(Todo.CONTENT_URI, Long.parseLong(todoId))));
+            return ContentUris.withAppendedId(Reminders.CONTENT_URI, rowId);
+        }
+
+        throw new SQLException("Failed to insert row into " + uri);
+    }
+
+    /**
+     * Inserts reminders for any number of todos in one transaction, each
+     * row giving its {@link Reminders#TODO_ID} and
+     * {@link Reminders#MINUTES_BEFORE}. Reminders of todos that don't
+     * exist are left out.
+     */
+    private int bulkInsertReminders(ContentValues[] values) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        HashSet<Long> todos = new HashSet<Long>();
+        int count = 0;
+        db.beginTransaction();
+        try {
+            SQLiteStatement insert = db.compileStatement(INSERT_REMINDER);
+            try {
+                for (ContentValues reminder : values) {
+                    Long todoId = reminder.getAsLong(Reminders.TODO_ID);
+                    Integer minutes = reminder.getAsInteger(Reminders.MINUTES_BEFORE);
+                    if (todoId == null || minutes == null) {
+                        throw new IllegalArgumentException("A reminder needs " + Reminders.TODO_ID
+                                + " and " + Reminders.MINUTES_BEFORE);
+                    }
+                    insert.bindLong(1, minutes);
+                    insert.bindLong(2, todoId);
+                    if (insert.executeInsert() > 0) {
+                        todos.add(todoId);
+                        count++;
+                    }
+                }
+            } finally {
+                insert.close();
+            }
+            for (Long todoId : todos) {
+                refreshReminderColumns(db, Todo._ID + "=?", new String[] { String.valueOf(todoId) });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (count > 0) {
+            notifyChange(Reminders.CONTENT_URI);
+            notifyTodosChanged(Todo.CONTENT_URI);
+            startService(new Intent("org.jetpad.quicktodofree.UPDATE_ALARM", Todo.CONTENT_URI));
+        }
+        return count;
+    }
+
+    /**
+     * Keeps the reminders of the matching todos in step with a new due date.
+     * Runs before the todos themselves are updated, while the where clause
+     * still matches them.
+     */
+    private void moveReminders(SQLiteDatabase db, ContentValues values, String where, String[] whereArgs) {
+        Long duedate = values.getAsLong(Todo.DUE_DATE);
+        if (duedate == null) {
+            return;
+        }
+        execSQL(db, "UPDATE " + REMINDERS_TABLE_NAME + " SET " + Reminders.FIRE_DATE + "=" + duedate
+                + "-" + Reminders.MINUTES_BEFORE + "*60000 WHERE " + Reminders.TODO_ID + " IN (SELECT "
+                + Todo._ID + " FROM " + ITEMS_TABLE_NAME + whereClause(where) + ")", whereArgs);
+        refreshReminderColumns(db, where, whereArgs);
+    }
+
+    /**
+     * Recomputes the denormalised {@link Todo#HAS_REMINDER} and
+     * {@link Todo#NOTIFY_DATE} (earliest reminder) of the matching todos.
+     */
+    private void refreshReminderColumns(SQLiteDatabase db, String where, String[] whereArgs) {
+        execSQL(db, "UPDATE " + ITEMS_TABLE_NAME + " SET "
+                + Todo.NOTIFY_DATE + "=(SELECT MIN(" + Reminders.FIRE_DATE + ") FROM " + REMINDERS_TABLE_NAME
+                + " WHERE " + Reminders.TODO_ID + "=" + ITEMS_TABLE_NAME + "." + Todo._ID + "),"
+                + Todo.HAS_REMINDER + "=EXISTS (SELECT 1 FROM " + REMINDERS_TABLE_NAME
+                + " WHERE " + Reminders.TODO_ID + "=" + ITEMS_TABLE_NAME + "." + Todo._ID + ")"
+                + whereClause(where), whereArgs);
+    }
+
+    /**
+     * where narrowed to the rows whose column equals a value bound with
+     * {@link #argsWithId}, so the SQL is the same for every id.
+     */
+    private static String whereWithId(String column, String where) {
+        return column + "=?" + (!TextUtils.isEmpty(where) ? " AND (" + where + ')' : "");
+    }
+
+    private static String[] argsWithId(String id, String[] whereArgs) {
+        int extra = whereArgs != null ? whereArgs.length : 0;
+        String[] args = new String[1 + extra];
+        args[0] = id;
+        if (extra > 0) {
+            System.arraycopy(whereArgs, 0, args, 1, extra);
+        }
+        return args;
+    }
+
+    private static String whereClause(String where) {
+        return !TextUtils.isEmpty(where) ? " WHERE " + where : "";
+    }
+
+    private static void execSQL(SQLiteDatabase db, String sql, String[] args) {
+        if (args == null || args.length == 0) {
+            db.execSQL(sql);
+        } else {
+            db.execSQL(sql, args);
+        }
+    }
+
+    /**
+     * Copies the database file to file, for the export in DataManager. Not
+     * offered as a uri, that would let any app that can reach the provider
+     * pick the path.
+     */
+    static boolean backupDatabase(final File file) {
+        final TodoProvider provider = sInstance;
+        return provider.mWriter.submit(new GroupCommitWriter.Write<Boolean>() {
+            public Boolean run() {
+                return provider.backupDatabase(provider.mOpenHelper.getWritableDatabase(), file);
+            }
+        }, true);
+    }
+
+    /**
+     * Replaces the database file with a copy of backup, for the import in
+     * DataManager. Not a uri for the same reason as
+     * {@link #backupDatabase(File)}.
+     */
+    static boolean restoreDatabase(final File backup) {
+        final TodoProvider provider = sInstance;
+        return provider.mWriter.submit(new GroupCommitWriter.Write<Boolean>() {
+            public Boolean run() {
+                return provider.restoreFrom(backup);
+            }
+        }, true);
+    }
+
+    /**
+     * Runs alone on the writer, so no commit and no checkpoint can change
+     * the file during the copy.
+     */
+    private boolean backupDatabase(SQLiteDatabase db, File file) {
+        if (!StorageProfile.checkpoint(db)) {
+            Log.w(TAG, "Backup skipped, a reader held the log");
+            return false;
+        }
+        try {
+            FileUtil.copyFile(getContext().getDatabasePath(DATABASE_NAME), file);
+        } catch (IOException e) {
+            Log.w(TAG, "Backup to " + file + " failed", e);
+            return false;
+        }
+        // The log is empty now, one from an older backup must not be
+        // replayed over this one
+        for (String suffix : JOURNAL_SUFFIXES) {
+            new File(file.getPath() + suffix).delete();
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the database file with a copy of backup, and any log that
+     * came with it. The file is copied in beside the database first, so a
+     * failed copy leaves the database as it was.
+     */
+    private boolean restoreFrom(File backup) {
+        File dbFile = getContext().getDatabasePath(DATABASE_NAME);
+        File copy = new File(dbFile.getPath() + "-restore");
+        File copyLog = new File(copy.getPath() + "-wal");
+        File backupLog = new File(backup.getPath() + "-wal");
+        try {
+            FileUtil.copyFile(backup, copy);
+            copyLog.delete();
+            if (backupLog.exists()) {
+                FileUtil.copyFile(backupLog, copyLog);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Restore from " + backup + " failed", e);
+            copy.delete();
+            copyLog.delete();
+            return false;
+        }
+
+        // The helper opens and closes the database holding its own lock, so
+        // a query can't open the file again half way through the swap
+        synchronized (mOpenHelper) {
+            mStatements.clear();
+            mOpenHelper.close();
+            for (String suffix : JOURNAL_SUFFIXES) {
+                new File(dbFile.getPath() + suffix).delete();
+            }
+            copy.renameTo(dbFile);
+            if (copyLog.exists()) {
+                copyLog.renameTo(new File(dbFile.getPath() + "-wal"));
+            }
+            mOpenHelper.getWritableDatabase();
+        }
+        forgetDatabaseState();
+        // An imported file may be from before an upgrade with a backfill
+        startBackfills();
+        return true;
+    }
+
     public void resetDatabase() {
+        mStatements.clear();
         mOpenHelper.close();
         mOpenHelper.getReadableDatabase();
+        forgetDatabaseState();
+    }
+
+    /**
+     * Drops what we remember about a database file that has just been
+     * replaced: its tags, which sort indexes it has and the day its
+     * buckets were worked out for.
+     */
+    private void forgetDatabaseState() {
+        mTagIndex.invalidate();
+        synchronized (mSortIndexes) {
+            mSortIndexes.clear();
+            mBucketDay = 0;
+            // The day on record was for the file that has gone
+            PreferenceManager.getDefaultSharedPreferences(getContext()).edit()
+                    .remove(PREF_BUCKET_DAY).commit();
+        }
     }
 
     static {
         sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
         sUriMatcher.addURI(QuickTodo.AUTHORITY, "todos", NOTES);
         sUriMatcher.addURI(QuickTodo.AUTHORITY, "todos/#", NOTE_ID);
+        sUriMatcher.addURI(QuickTodo.AUTHORITY, "todos/buckets", BUCKETS);
         sUriMatcher.addURI(QuickTodo.AUTHORITY, "reset", RESET_CODE);
+        sUriMatcher.addURI(QuickTodo.AUTHORITY, "checkpoint", CHECKPOINT);
+        sUriMatcher.addURI(QuickTodo.AUTHORITY, "maintenance/analyze", MAINTENANCE_ANALYZE);
+        sUriMatcher.addURI(QuickTodo.AUTHORITY, "maintenance/vacuum", MAINTENANCE_VACUUM);
+        sUriMatcher.addURI(QuickTodo.AUTHORITY, "maintenance/rebuild", MAINTENANCE_REBUILD);
+
+        sBackfills = new HashMap<String, Backfill>();
+        sBackfills.put(ITEMS_TABLE_NAME + "." + Todo.NOTE, new NoteBodiesBackfill(ITEMS_TABLE_NAME));
+        sBackfills.put(ARCHIVE_TABLE_NAME + "." + Todo.NOTE, new NoteBodiesBackfill(ARCHIVE_TABLE_NAME));
+        sUriMatcher.addURI(QuickTodo.AUTHORITY, "alarmstate", ALARM_STATE);
+        sUriMatcher.addURI(QuickTodo.AUTHORITY, "alarmstate/#", ALARM_STATE_ID);
+        sUriMatcher.addURI(QuickTodo.AUTHORITY, "reminders", REMINDERS);
+        sUriMatcher.addURI(QuickTodo.AUTHORITY, "todos/#/" + Reminders.CONTENT_DIRECTORY, NOTE_REMINDERS);
+        sUriMatcher.addURI(QuickTodo.AUTHORITY, "archive", ARCHIVE);
+        sUriMatcher.addURI(QuickTodo.AUTHORITY, "folders", FOLDERS);
+        sUriMatcher.addURI(QuickTodo.AUTHORITY, "tags", TAGS);
+        sUriMatcher.addURI(QuickTodo.AUTHORITY, "folders/#", FOLDER_ID);
+        sUriMatcher.addURI(QuickTodo.AUTHORITY, "folders/#/" + Folders.TODOS_DIRECTORY, FOLDER_TODOS);
+        sUriMatcher.addURI(QuickTodo.AUTHORITY, "archive/sweep", ARCHIVE_SWEEP);
+        sUriMatcher.addURI(QuickTodo.AUTHORITY, "archive/#", ARCHIVE_ID);
+        sUriMatcher.addURI(QuickTodo.AUTHORITY, "archive/#/" + Archive.RESTORE_DIRECTORY, ARCHIVE_RESTORE);
 
         sNotesProjectionMap = new HashMap<String, String>();
-        sNotesProjectionMap.put(Todo._ID, Todo._ID);
+        sNotesProjectionMap.put(Todo._ID, ITEMS_TABLE_NAME + "." + Todo._ID + " AS " + Todo._ID);
         sNotesProjectionMap.put(Todo.TITLE, Todo.TITLE);
-        sNotesProjectionMap.put(Todo.NOTE, Todo.NOTE);
+        // Notes the upgrade backfill has not moved yet are still in the todo's own column
+        sNotesProjectionMap.put(Todo.NOTE, "ifnull(" + NOTE_BODIES_TABLE_NAME + "." + NOTE_BODY + ","
+                + ITEMS_TABLE_NAME + "." + Todo.NOTE + ") AS " + Todo.NOTE);
+        sNotesProjectionMap.put(NoteBodyCursor.COMPRESSED_NOTE, NOTE_BODIES_TABLE_NAME + "." + NOTE_ZBODY
+                + " AS " + NoteBodyCursor.COMPRESSED_NOTE);
         sNotesProjectionMap.put(Todo.CREATED_DATE, Todo.CREATED_DATE);
         sNotesProjectionMap.put(Todo.MODIFIED_DATE, Todo.MODIFIED_DATE);
         sNotesProjectionMap.put(Todo.DUE_DATE, Todo.DUE_DATE);
@@ -291,5 +2206,45 @@ public class TodoProvider extends ContentProvider {
         sNotesProjectionMap.put(Todo.PRIORITY,Todo.PRIORITY);
         sNotesProjectionMap.put(Todo.SCHEDULE_DATE,Todo.SCHEDULE_DATE);
         sNotesProjectionMap.put(Todo.INBOX,Todo.INBOX);
+        sNotesProjectionMap.put(Todo.RRULE,Todo.RRULE);
+        sNotesProjectionMap.put(Todo.SERIES_START, Todo.SERIES_START);
+        sNotesProjectionMap.put(Todo.TAGS, tagsColumn(ITEMS_TABLE_NAME));
+        sNotesProjectionMap.put(Todo.BUCKET, Todo.BUCKET);
+
+        putDisplayColumns(sNotesProjectionMap, SQL_NOW);
+
+        sArchiveProjectionMap = new HashMap<String, String>(sNotesProjectionMap);
+        sArchiveProjectionMap.put(Todo._ID, ARCHIVE_TABLE_NAME + "." + Todo._ID + " AS " + Todo._ID);
+        sArchiveProjectionMap.put(Todo.NOTE, "ifnull(" + NOTE_BODIES_TABLE_NAME + "." + NOTE_BODY + ","
+                + ARCHIVE_TABLE_NAME + "." + Todo.NOTE + ") AS " + Todo.NOTE);
+        sArchiveProjectionMap.put(Archive.ARCHIVED_DATE, Archive.ARCHIVED_DATE);
+        sArchiveProjectionMap.put(Todo.TAGS, tagsColumn(ARCHIVE_TABLE_NAME));
+
+        sBucketCountsProjectionMap = new HashMap<String, String>();
+        sBucketCountsProjectionMap.put(Todo.BUCKET, Todo.BUCKET);
+        sBucketCountsProjectionMap.put(Todo._COUNT, "COUNT(*) AS " + Todo._COUNT);
+
+        sSortIndexes = new HashMap<String, String>();
+        sSortIndexes.put(Todo.SORT_BY_DUE_DATE, "items_sort_due");
+        sSortIndexes.put(Todo.SORT_BY_PRIORITY, "items_sort_priority");
+        sSortIndexes.put(Todo.SORT_BY_CREATED, "items_sort_created");
+        sSortIndexes.put(Todo.SORT_BY_MODIFIED, "items_sort_modified");
+        sSortIndexes.put(Todo.SORT_BY_TITLE, "items_sort_title");
+        sSortIndexes.put(Todo.SORT_BY_BUCKET, "items_sort_bucket");
+
+        sFoldersProjectionMap = new HashMap<String, String>();
+        sFoldersProjectionMap.put(Folders._ID, Folders._ID);
+        sFoldersProjectionMap.put(Folders.NAME, Folders.NAME);
+        sFoldersProjectionMap.put(Folders.PENDING_COUNT, Folders.PENDING_COUNT);
+
+        sRemindersProjectionMap = new HashMap<String, String>();
+        sRemindersProjectionMap.put(Reminders._ID, REMINDERS_TABLE_NAME + "." + Reminders._ID);
+        sRemindersProjectionMap.put(Reminders.TODO_ID, Reminders.TODO_ID);
+        sRemindersProjectionMap.put(Reminders.MINUTES_BEFORE, Reminders.MINUTES_BEFORE);
+        sRemindersProjectionMap.put(Reminders.FIRE_DATE, Reminders.FIRE_DATE);
+        sRemindersProjectionMap.put(Todo.TITLE, Todo.TITLE);
+        sRemindersProjectionMap.put(Todo.DUE_DATE, Todo.DUE_DATE);
+        sRemindersProjectionMap.put(Todo.COMPLETED, Todo.COMPLETED);
+        sRemindersProjectionMap.put(Todo.HAS_DUE_DATE, Todo.HAS_DUE_DATE);
     }
 }
@@ -0,0 +1,129 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.util.Calendar;
+
+import org.jetpad.quicktodofree.QuickTodo.AlarmState;
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+/**
+ * Rescheduling only calls the AlarmManager and NotificationManager for
+ * todos whose alarm state has changed.
+ */
+public class AlarmServiceTest extends ProviderTest {
+    private static final int COUNT = 10000;
+
+    private int mAlarmCalls;
+    private int mNotificationCalls;
+    private AlarmService mService;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Context context = getContext();
+        mService = new AlarmService() {
+            {
+                attachBaseContext(context);
+            }
+
+            @Override
+            public ContentResolver getContentResolver() {
+                return mResolver;
+            }
+
+            @Override
+            public Object getSystemService(String name) {
+                if (ALARM_SERVICE.equals(name)) {
+                    mAlarmCalls++;
+                } else if (NOTIFICATION_SERVICE.equals(name)) {
+                    mNotificationCalls++;
+                }
+                return context.getSystemService(name);
+            }
+        };
+    }
+
+    /**
+     * Inserts COUNT due todos and records each as already armed, as a
+     * previous run would have left them.
+     */
+    private void insertArmed() {
+        ContentValues[] todos = new ContentValues[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            todos[i] = new ContentValues();
+            todos[i].put(Todo.TITLE, "Todo " + i);
+            todos[i].put(Todo.DUE_DATE, time(2030, Calendar.JANUARY, 1 + i % 28, 9));
+            todos[i].put(Todo.HAS_DUE_DATE, 1);
+        }
+        assertEquals(COUNT, mResolver.bulkInsert(Todo.CONTENT_URI, todos));
+
+        Cursor c = mResolver.query(Todo.CONTENT_URI, new String[] { Todo._ID, Todo.DUE_DATE },
+                null, null, null);
+        try {
+            assertEquals(COUNT, c.getCount());
+            while (c.moveToNext()) {
+                ContentValues state = new ContentValues();
+                state.put(AlarmState._ID, c.getLong(0));
+                state.put(AlarmState.FIRE_DATE, c.getLong(1));
+                state.put(AlarmState.ARMED, 1);
+                mResolver.insert(AlarmState.CONTENT_URI, state);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testNoOpRescheduleMakesNoSystemCalls() {
+        insertArmed();
+        mService.scheduleAlarms(Todo.CONTENT_URI, false);
+        assertEquals(0, mAlarmCalls);
+        assertEquals(0, mNotificationCalls);
+    }
+
+    public void testOnlyTheChangedTodoIsRescheduled() {
+        insertArmed();
+        Cursor c = mResolver.query(Todo.CONTENT_URI, new String[] { Todo._ID }, null, null, null);
+        long id;
+        try {
+            assertTrue(c.moveToFirst());
+            id = c.getLong(0);
+        } finally {
+            c.close();
+        }
+        ContentValues values = new ContentValues();
+        values.put(Todo.COMPLETED, 1);
+        mResolver.update(ContentUris.withAppendedId(Todo.CONTENT_URI, id), values, null, null);
+
+        mService.scheduleAlarms(Todo.CONTENT_URI, false);
+        assertEquals(1, mAlarmCalls);
+        assertEquals(1, mNotificationCalls);
+
+        // Now the stored state agrees again
+        mService.scheduleAlarms(Todo.CONTENT_URI, false);
+        assertEquals(1, mAlarmCalls);
+        assertEquals(1, mNotificationCalls);
+    }
+}
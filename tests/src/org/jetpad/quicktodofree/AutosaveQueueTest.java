@@ -0,0 +1,260 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.net.Uri;
+
+/**
+ * Edits reach the provider in the order they were made, merged while they
+ * wait, and nothing waiting is lost when the editor goes away.
+ */
+public class AutosaveQueueTest extends ProviderTest {
+    /** Long enough that only a flush or release writes in time */
+    private static final long LATER = 60 * 1000;
+    /** Short enough to wait out */
+    private static final long SOON = 100;
+
+    private AutosaveQueue mQueue;
+
+    /** Calls of the provider's write methods */
+    private volatile int mWrites;
+    /** Set to make the provider's inserts and updates fail */
+    private volatile boolean mFailing;
+
+    @Override
+    protected TodoProvider newProvider() {
+        return new TodoProvider() {
+            @Override
+            public Uri insert(Uri uri, ContentValues values) {
+                mWrites++;
+                if (mFailing) {
+                    throw new SQLException("Failing on purpose");
+                }
+                return super.insert(uri, values);
+            }
+
+            @Override
+            public int bulkInsert(Uri uri, ContentValues[] values) {
+                mWrites++;
+                return super.bulkInsert(uri, values);
+            }
+
+            @Override
+            public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+                mWrites++;
+                if (mFailing) {
+                    throw new SQLException("Failing on purpose");
+                }
+                return super.update(uri, values, where, whereArgs);
+            }
+
+            @Override
+            public int delete(Uri uri, String where, String[] whereArgs) {
+                mWrites++;
+                return super.delete(uri, where, whereArgs);
+            }
+        };
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mQueue = new AutosaveQueue(mResolver);
+    }
+
+    /**
+     * Waits for everything queued so far to be written.
+     */
+    private void sync() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mQueue.post(new Runnable() {
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    private static ContentValues values(String column, String value) {
+        ContentValues values = new ContentValues();
+        values.put(column, value);
+        return values;
+    }
+
+    private Uri insert(String title) {
+        return mResolver.insert(Todo.CONTENT_URI, values(Todo.TITLE, title));
+    }
+
+    private int count() {
+        Cursor c = mResolver.query(Todo.CONTENT_URI, new String[] { Todo._ID }, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private void assertStored(Uri uri, String title, String note) {
+        Cursor c = mResolver.query(uri, new String[] { Todo.TITLE, Todo.NOTE }, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(title, c.getString(0));
+            assertEquals(note, c.getString(1));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testRapidEditsOfADraftAreOneInsert() throws Exception {
+        Uri draft = mQueue.draft(Todo.CONTENT_URI);
+        mQueue.save(draft, values(Todo.TITLE, "S"), LATER);
+        mQueue.save(draft, values(Todo.TITLE, "Sh"), LATER);
+        mQueue.save(draft, values(Todo.NOTE, "milk"), LATER);
+        mQueue.save(draft, values(Todo.TITLE, "Shop"), LATER);
+        mQueue.flush(draft);
+        sync();
+
+        assertEquals(1, count());
+        Uri created = mQueue.created(draft);
+        assertNotNull(created);
+        assertStored(created, "Shop", "milk");
+    }
+
+    public void testLaterEditsWin() throws Exception {
+        Uri uri = insert("one");
+        mQueue.save(uri, values(Todo.TITLE, "two"), 0);
+        sync();
+        assertStored(uri, "two", null);
+        mQueue.save(uri, values(Todo.TITLE, "three"), 0);
+        mQueue.save(uri, values(Todo.TITLE, "four"), 0);
+        sync();
+        assertStored(uri, "four", null);
+    }
+
+    public void testDeleteComesAfterEarlierSaves() throws Exception {
+        Uri uri = insert("one");
+        Uri other = insert("other");
+        mQueue.save(uri, values(Todo.TITLE, "two"), 0);
+        mQueue.save(other, values(Todo.TITLE, "changed"), 0);
+        mQueue.delete(uri);
+        sync();
+
+        assertEquals(1, count());
+        assertStored(other, "changed", null);
+    }
+
+    public void testPauseWritesWhatIsWaiting() throws Exception {
+        Uri uri = insert("one");
+        mQueue.save(uri, values(Todo.NOTE, "typed just now"), LATER);
+        // What the editor does when it is paused
+        mQueue.flush(uri);
+        sync();
+        assertStored(uri, "one", "typed just now");
+    }
+
+    public void testReleasedDraftIsStillWritten() throws Exception {
+        Uri draft = mQueue.draft(Todo.CONTENT_URI);
+        mQueue.save(draft, values(Todo.TITLE, "Shop"), LATER);
+        mQueue.release(draft);
+        sync();
+
+        assertEquals(1, count());
+        assertNull(mQueue.created(draft));
+    }
+
+    public void testCancelledCreateNeverWrites() throws Exception {
+        // Typed into, then given up on before the autosave delay was up
+        Uri draft = mQueue.draft(Todo.CONTENT_URI);
+        mQueue.save(draft, values(Todo.NOTE, "m"), SOON);
+        mQueue.save(draft, values(Todo.NOTE, "mi"), SOON);
+        mQueue.delete(draft);
+        mQueue.release(draft);
+        Thread.sleep(3 * SOON);
+        sync();
+
+        assertEquals(0, mWrites);
+        assertEquals(0, count());
+    }
+
+    public void testUntouchedDraftNeverWrites() throws Exception {
+        Uri draft = mQueue.draft(Todo.CONTENT_URI);
+        mQueue.release(draft);
+        sync();
+
+        assertEquals(0, mWrites);
+        assertNull(mQueue.created(draft));
+    }
+
+    public void testFailedSaveIsKeptForRetry() throws Exception {
+        Uri uri = insert("one");
+        mFailing = true;
+        mQueue.save(uri, values(Todo.TITLE, "two"), 0);
+        mQueue.save(uri, values(Todo.NOTE, "note"), 0);
+        sync();
+        assertStored(uri, "one", null);
+
+        // The next save goes out with the failed one under it
+        mFailing = false;
+        mQueue.save(uri, values(Todo.NOTE, "newer note"), 0);
+        sync();
+        assertStored(uri, "two", "newer note");
+    }
+
+    public void testFailedDraftInsertIsKeptForRetry() throws Exception {
+        Uri draft = mQueue.draft(Todo.CONTENT_URI);
+        mFailing = true;
+        ContentValues values = values(Todo.TITLE, "Shop");
+        values.put(Todo.NOTE, "milk");
+        mQueue.save(draft, values, 0);
+        sync();
+        assertNull(mQueue.created(draft));
+        assertEquals(0, count());
+
+        mFailing = false;
+        mQueue.flush(draft);
+        sync();
+        Uri created = mQueue.created(draft);
+        assertNotNull(created);
+        assertStored(created, "Shop", "milk");
+    }
+
+    public void testFailedWriteIsNotTakenForOurOwn() throws Exception {
+        Uri uri = insert("one");
+        mQueue.watch(uri);
+        mFailing = true;
+        mQueue.save(uri, values(Todo.TITLE, "two"), 0);
+        sync();
+        assertFalse(mQueue.takeOwnChange(uri));
+
+        mFailing = false;
+        mQueue.flush(uri);
+        sync();
+        assertTrue(mQueue.takeOwnChange(uri));
+        assertFalse(mQueue.takeOwnChange(uri));
+        mQueue.unwatch(uri);
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * The encodings a compact backup is built from.
+ */
+public class CompactBackupTest extends TestCase {
+    private static DataInputStream in(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    public void testVarints() throws IOException {
+        long[] values = { 0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, 1L << 56, Long.MAX_VALUE, -1 };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (long value : values) {
+            CompactBackup.writeVarint(out, value);
+        }
+        DataInputStream in = in(out.toByteArray());
+        for (long value : values) {
+            assertEquals(value, CompactBackup.readVarint(in));
+        }
+        assertEquals(0, in.available());
+
+        out.reset();
+        CompactBackup.writeVarint(out, 127);
+        assertEquals(1, out.size());
+        CompactBackup.writeVarint(out, 128);
+        assertEquals(3, out.size());
+    }
+
+    public void testZigzag() {
+        long[] values = { 0, -1, 1, -2, 2, Long.MIN_VALUE, Long.MAX_VALUE };
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], CompactBackup.unzigzag(CompactBackup.zigzag(values[i])));
+        }
+        // Small differences either way stay small
+        assertEquals(1, CompactBackup.zigzag(-1));
+        assertEquals(2, CompactBackup.zigzag(1));
+    }
+
+    public void testDamagedVarint() {
+        byte[] endless = new byte[11];
+        Arrays.fill(endless, (byte) 0x80);
+        try {
+            CompactBackup.readVarint(in(endless));
+            fail();
+        } catch (IOException e) {
+            // Expected, ten bytes is the most a long takes
+        }
+    }
+
+    public void testBits() throws IOException {
+        Random random = new Random(1);
+        for (int count = 0; count <= 17; count++) {
+            boolean[] bits = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                bits[i] = random.nextBoolean();
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            CompactBackup.writeBits(out, bits);
+            assertEquals((count + 7) / 8, out.size());
+            assertTrue(Arrays.equals(bits, CompactBackup.readBits(in(out.toByteArray()), count)));
+        }
+    }
+
+    public void testDeflate() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append("Todo number ").append(i).append('\n');
+        }
+        byte[] raw = text.toString().getBytes("UTF-8");
+        byte[] compressed = CompactBackup.deflate(raw);
+        assertTrue(compressed.length < raw.length / 4);
+        byte[] inflated = new byte[raw.length];
+        CompactBackup.inflate(compressed, inflated);
+        assertTrue(Arrays.equals(raw, inflated));
+
+        CompactBackup.inflate(CompactBackup.deflate(new byte[0]), new byte[0]);
+    }
+
+    public void testDamagedDeflate() {
+        byte[] compressed = CompactBackup.deflate(new byte[100]);
+        try {
+            // Asks for more than was compressed
+            CompactBackup.inflate(compressed, new byte[101]);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+        compressed[0] ^= 0xff;
+        try {
+            CompactBackup.inflate(compressed, new byte[100]);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.graphics.Color;
+import android.os.SystemClock;
+import android.util.Log;
+import android.widget.TextView;
+
+/**
+ * The cost of binding the list's date column, now that the provider does
+ * the date math, against the binder that did it for each row.
+ */
+public class DisplayColumnsBenchmark extends ProviderTest {
+    private static final String TAG = "DisplayColumnsBenchmark";
+    private static final int COUNT = 1000;
+    private static final int RUNS = 5;
+
+    private static final String[] PROJECTION = new String[] {
+        Todo._ID, Todo.DUE_DATE, Todo.COMPLETED, Todo.HAS_DUE_DATE, Todo.DISPLAY_STATE, Todo.DUE_DAY,
+    };
+
+    private TextView mView;
+    private Cursor mCursor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ContentValues[] values = new ContentValues[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            values[i] = new ContentValues();
+            values[i].put(Todo.TITLE, "Todo " + i);
+            // A mix of overdue, due, undated and completed todos
+            values[i].put(Todo.DUE_DATE, time(2000 + i % 60, Calendar.JANUARY, 1 + i % 28, 9));
+            values[i].put(Todo.HAS_DUE_DATE, i % 7 == 0 ? 0 : 1);
+            values[i].put(Todo.COMPLETED, i % 5 == 0 ? 1 : 0);
+        }
+        assertEquals(COUNT, mResolver.bulkInsert(Todo.CONTENT_URI, values));
+        mView = new TextView(getContext());
+        mCursor = mResolver.query(Todo.CONTENT_URI, PROJECTION, null, null, null);
+        assertEquals(COUNT, mCursor.getCount());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCursor.close();
+        super.tearDown();
+    }
+
+    /** What ItemsList's binder does with the provider's columns */
+    private void bindProvided(Cursor cursor) {
+        int state = cursor.getInt(4);
+        mView.setTextColor(state == Todo.DISPLAY_OVERDUE ? Color.RED : Color.WHITE);
+        if (state == Todo.DISPLAY_COMPLETED) {
+            mView.setText("Completed");
+        } else if (state == Todo.DISPLAY_NO_DATE) {
+            mView.setText("No due date");
+        } else {
+            mView.setText(cursor.getString(5));
+        }
+    }
+
+    /** What the binder did before, formatting the date itself */
+    private void bindFormatted(Cursor cursor, SimpleDateFormat format) {
+        mView.setTextColor(Color.WHITE);
+        if (cursor.getInt(3) != 0 && cursor.getInt(2) == 0) {
+            long due = cursor.getLong(1);
+            mView.setText(format.format(new Date(due)));
+            if (due < System.currentTimeMillis()) {
+                mView.setTextColor(Color.RED);
+            }
+        } else if (cursor.getInt(2) != 0) {
+            mView.setText("Completed");
+        } else {
+            mView.setText("No due date");
+        }
+    }
+
+    /**
+     * The fastest of a few passes binding every row, with the provider's
+     * columns or without.
+     */
+    private long bindMillis(boolean provided) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm");
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = SystemClock.uptimeMillis();
+            mCursor.moveToPosition(-1);
+            while (mCursor.moveToNext()) {
+                if (provided) {
+                    bindProvided(mCursor);
+                } else {
+                    bindFormatted(mCursor, format);
+                }
+            }
+            best = Math.min(best, SystemClock.uptimeMillis() - start);
+        }
+        return best;
+    }
+
+    public void testBindCost() {
+        // Fill the cursor window before timing either
+        bindMillis(true);
+        long formatted = bindMillis(false);
+        long provided = bindMillis(true);
+        Log.i(TAG, COUNT + " rows bound in " + provided + "ms from the provider's columns, "
+                + formatted + "ms formatting the dates");
+        assertTrue("Binding took " + provided + "ms against " + formatted + "ms",
+                provided <= formatted);
+    }
+}
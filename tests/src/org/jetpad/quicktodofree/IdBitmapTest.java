@@ -0,0 +1,96 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+public class IdBitmapTest extends TestCase {
+    private static IdBitmap bitmap(long... ids) {
+        IdBitmap bitmap = new IdBitmap();
+        for (long id : ids) {
+            bitmap.add(id);
+        }
+        return bitmap;
+    }
+
+    private static void assertIds(IdBitmap bitmap, long... ids) {
+        assertEquals(Arrays.toString(ids), Arrays.toString(bitmap.toArray()));
+        assertEquals(ids.length, bitmap.cardinality());
+        assertEquals(ids.length == 0, bitmap.isEmpty());
+    }
+
+    public void testAddContainsRemove() {
+        IdBitmap bitmap = bitmap(5, 63, 64, 1000000, 3);
+        assertTrue(bitmap.contains(63));
+        assertTrue(bitmap.contains(64));
+        assertFalse(bitmap.contains(65));
+        assertFalse(bitmap.contains(999999));
+        assertIds(bitmap, 3, 5, 63, 64, 1000000);
+
+        bitmap.add(5);
+        assertIds(bitmap, 3, 5, 63, 64, 1000000);
+        bitmap.remove(64);
+        bitmap.remove(65);
+        bitmap.remove(1000000);
+        assertIds(bitmap, 3, 5, 63);
+        bitmap.remove(3);
+        bitmap.remove(5);
+        bitmap.remove(63);
+        assertIds(bitmap);
+    }
+
+    public void testSetOperations() {
+        IdBitmap a = bitmap(1, 2, 64, 130, 5000);
+        IdBitmap b = bitmap(2, 65, 130, 9000);
+        assertIds(a.and(b), 2, 130);
+        assertIds(a.or(b), 1, 2, 64, 65, 130, 5000, 9000);
+        assertIds(a.andNot(b), 1, 64, 5000);
+        assertIds(b.andNot(a), 65, 9000);
+        assertIds(a.and(new IdBitmap()));
+        assertIds(new IdBitmap().or(b), 2, 65, 130, 9000);
+        // A word that ends up empty is dropped, not kept as zero
+        assertIds(bitmap(64).andNot(bitmap(64)));
+    }
+
+    public void testMatchesASortedSet() {
+        Random random = new Random(1);
+        IdBitmap bitmap = new IdBitmap();
+        TreeSet<Long> expected = new TreeSet<Long>();
+        for (int i = 0; i < 5000; i++) {
+            long id = random.nextInt(20000);
+            if (random.nextInt(3) == 0) {
+                bitmap.remove(id);
+                expected.remove(id);
+            } else {
+                bitmap.add(id);
+                expected.add(id);
+            }
+        }
+        long[] ids = new long[expected.size()];
+        int n = 0;
+        for (Long id : expected) {
+            ids[n++] = id;
+        }
+        assertIds(bitmap, ids);
+    }
+}
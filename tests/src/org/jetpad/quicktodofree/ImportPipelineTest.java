@@ -0,0 +1,74 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Splitting an import file into records and fields.
+ */
+public class ImportPipelineTest extends TestCase {
+    private static String fields(String record) {
+        return Arrays.toString(ImportPipeline.parseFields(record));
+    }
+
+    public void testRecords() throws IOException {
+        Reader in = new StringReader("title,note\r\n"
+                + "Milk,\"first line\r\nsecond line\"\n"
+                + "\n"
+                + "\"Say \"\"hi\"\"\",\n"
+                + "last");
+        assertEquals("title,note", ImportPipeline.readRecord(in));
+        String quoted = ImportPipeline.readRecord(in);
+        assertEquals("Milk,\"first line\r\nsecond line\"", quoted);
+        assertEquals(2, ImportPipeline.lines(quoted));
+        // The blank line is skipped
+        assertEquals("\"Say \"\"hi\"\"\",", ImportPipeline.readRecord(in));
+        assertEquals("last", ImportPipeline.readRecord(in));
+        assertNull(ImportPipeline.readRecord(in));
+        assertNull(ImportPipeline.readRecord(new StringReader("")));
+    }
+
+    public void testFields() {
+        assertNull(ImportPipeline.parseFields(null));
+        assertEquals("[]", fields(""));
+        assertEquals("[a, b, c]", fields("a,b,c"));
+        assertEquals("[a, , ]", fields("a,,"));
+        assertEquals("[a,b, c]", fields("\"a,b\",c"));
+        assertEquals("[Say \"hi\", ]", fields("\"Say \"\"hi\"\"\","));
+        assertEquals("[first line\r\nsecond line]", fields("\"first line\r\nsecond line\""));
+        assertEquals("[\"\"]", fields("\"\"\"\"\"\""));
+    }
+
+    public void testColumns() {
+        assertEquals("[title, null, duedate, tags]", Arrays.toString(
+                ImportPipeline.columns(new String[] { "Title", "Whatever", " DUEDATE ", "tags" })));
+        try {
+            ImportPipeline.columns(new String[] { "note", "duedate" });
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected, a todo needs a title
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import org.jetpad.quicktodofree.QuickTodo.Folders;
+import org.jetpad.quicktodofree.QuickTodo.Reminders;
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Undo of the bulk actions, against a provider of its own.
+ */
+public class ItemsListTest extends ProviderTest {
+    private long insert(String title, long due, String rule, Long folder) {
+        ContentValues values = new ContentValues();
+        values.put(Todo.TITLE, title);
+        values.put(Todo.DUE_DATE, due);
+        values.put(Todo.HAS_DUE_DATE, 1);
+        values.put(Todo.RRULE, rule);
+        values.put(Todo.FOLDER, folder);
+        return ContentUris.parseId(mResolver.insert(Todo.CONTENT_URI, values));
+    }
+
+    private void completeAll(long... ids) {
+        ContentValues values = new ContentValues();
+        values.put(Todo.COMPLETED, 1);
+        mResolver.update(Todo.CONTENT_URI, values, ItemsList.idsWhere(ids.length), args(ids));
+    }
+
+    private static String[] args(long... ids) {
+        Long[] boxed = new Long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            boxed[i] = ids[i];
+        }
+        return ItemsList.idsArgs(Arrays.asList(boxed));
+    }
+
+    private Cursor query(long id, String... projection) {
+        Cursor c = mResolver.query(ContentUris.withAppendedId(Todo.CONTENT_URI, id), projection, null, null, null);
+        assertTrue(c.moveToFirst());
+        return c;
+    }
+
+    private void assertDue(long id, int completed, long due) {
+        Cursor c = query(id, Todo.COMPLETED, Todo.DUE_DATE);
+        try {
+            assertEquals(completed, c.getInt(0));
+            assertEquals(due, c.getLong(1));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testIdsWhere() {
+        assertEquals("_id IN (?)", ItemsList.idsWhere(1));
+        assertEquals("_id IN (?,?,?)", ItemsList.idsWhere(3));
+        assertEquals("[4, 12, 7]", Arrays.toString(args(4, 12, 7)));
+    }
+
+    public void testIdChunks() {
+        List<Long> ids = new ArrayList<Long>();
+        for (long id = 0; id < 2 * ItemsList.MAX_IDS + 2; id++) {
+            ids.add(id);
+        }
+        List<List<Long>> chunks = ItemsList.idChunks(ids);
+        assertEquals(3, chunks.size());
+        assertEquals(ItemsList.MAX_IDS, chunks.get(0).size());
+        assertEquals(ItemsList.MAX_IDS, chunks.get(1).size());
+        assertEquals(Arrays.asList(2L * ItemsList.MAX_IDS, 2L * ItemsList.MAX_IDS + 1), chunks.get(2));
+        assertTrue(ItemsList.idChunks(new ArrayList<Long>()).isEmpty());
+    }
+
+    public void testBulkActionsOnMoreIdsThanSQLiteBinds() {
+        int count = ItemsList.MAX_IDS + 201;
+        ContentValues[] todos = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            todos[i] = new ContentValues();
+            todos[i].put(Todo.TITLE, "Todo " + i);
+        }
+        assertEquals(count, mResolver.bulkInsert(Todo.CONTENT_URI, todos));
+        List<Long> ids = new ArrayList<Long>();
+        Cursor c = mResolver.query(Todo.CONTENT_URI, new String[] { Todo._ID }, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+
+        ContentValues[] rows = ItemsList.snapshot(mResolver, ItemsList.COMPLETE_PROJECTION, ids);
+        assertEquals(count, rows.length);
+        ContentValues values = new ContentValues();
+        values.put(Todo.COMPLETED, 1);
+        assertEquals(count, ItemsList.updateIds(mResolver, values, ids));
+
+        ItemsList.undoComplete(mResolver, rows);
+        c = mResolver.query(Todo.CONTENT_URI, new String[] { Todo._ID }, Todo.COMPLETED + "!=0",
+                null, null);
+        try {
+            assertEquals(0, c.getCount());
+        } finally {
+            c.close();
+        }
+
+        assertEquals(count, ItemsList.deleteIds(mResolver, ids));
+    }
+
+    public void testUndoCompleteOfRepeatingTodos() {
+        long rent = insert("Rent", time(2030, Calendar.JANUARY, 31, 9), "FREQ=MONTHLY", null);
+        long dentist = insert("Dentist", time(2030, Calendar.FEBRUARY, 3, 10), null, null);
+        // The series is now on its February occurrence, still from the 31st
+        completeAll(rent);
+        assertDue(rent, 0, time(2030, Calendar.FEBRUARY, 28, 9));
+
+        ContentValues[] rows = ItemsList.snapshot(mResolver, ItemsList.COMPLETE_PROJECTION,
+                Arrays.asList(rent, dentist));
+        completeAll(rent, dentist);
+        assertDue(rent, 0, time(2030, Calendar.MARCH, 31, 9));
+        assertDue(dentist, 1, time(2030, Calendar.FEBRUARY, 3, 10));
+
+        ItemsList.undoComplete(mResolver, rows);
+        assertDue(rent, 0, time(2030, Calendar.FEBRUARY, 28, 9));
+        assertDue(dentist, 0, time(2030, Calendar.FEBRUARY, 3, 10));
+
+        // The start of the series came back too, or this would be the 28th
+        completeAll(rent);
+        assertDue(rent, 0, time(2030, Calendar.MARCH, 31, 9));
+    }
+
+    public void testUndoMove() {
+        long home = folder("Home");
+        long work = folder("Work");
+        long milk = insert("Milk", time(2030, Calendar.JANUARY, 1, 9), null, home);
+        long bob = insert("Call Bob", time(2030, Calendar.JANUARY, 1, 9), null, null);
+
+        List<Long> ids = Arrays.asList(milk, bob);
+        ContentValues[] rows = ItemsList.snapshot(mResolver, ItemsList.MOVE_PROJECTION, ids);
+        ContentValues values = new ContentValues();
+        values.put(Todo.FOLDER, work);
+        assertEquals(2, ItemsList.updateIds(mResolver, values, ids));
+
+        ItemsList.restoreColumn(mResolver, Arrays.asList(rows), Todo.FOLDER);
+        Cursor c = query(milk, Todo.FOLDER);
+        try {
+            assertEquals(home, c.getLong(0));
+        } finally {
+            c.close();
+        }
+        c = query(bob, Todo.FOLDER);
+        try {
+            assertTrue(c.isNull(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testUndoDeleteRestoresEveryColumnAndReminder() {
+        ContentValues values = new ContentValues();
+        values.put(Todo.TITLE, "Dentist");
+        values.put(Todo.NOTE, "Bring the forms");
+        values.put(Todo.DUE_DATE, time(2030, Calendar.MARCH, 3, 10));
+        values.put(Todo.HAS_DUE_DATE, 1);
+        values.put(Todo.PRIORITY, 2);
+        values.put(Todo.TAGS, "health");
+        values.put(Todo.CONTEXT, 3);
+        values.put(Todo.ICON, 4);
+        values.put(Todo.INBOX, 1);
+        values.put(Todo.IS_SCHEDULED, 1);
+        values.put(Todo.SCHEDULE_DATE, time(2030, Calendar.MARCH, 1, 9));
+        Uri uri = mResolver.insert(Todo.CONTENT_URI, values);
+        Uri reminders = Uri.withAppendedPath(uri, Reminders.CONTENT_DIRECTORY);
+        for (int minutes : new int[] { 15, 60 }) {
+            ContentValues reminder = new ContentValues();
+            reminder.put(Reminders.MINUTES_BEFORE, minutes);
+            mResolver.insert(reminders, reminder);
+        }
+        List<Long> ids = Arrays.asList(ContentUris.parseId(uri));
+        ContentValues before = ItemsList.snapshot(mResolver, ItemsList.DELETE_PROJECTION, ids)[0];
+
+        ContentValues[] rows = ItemsList.snapshot(mResolver, ItemsList.DELETE_PROJECTION, ids);
+        ContentValues[] kept = ItemsList.snapshotReminders(mResolver, rows);
+        assertEquals(2, kept.length);
+        assertEquals(1, ItemsList.deleteIds(mResolver, ids));
+
+        mResolver.bulkInsert(Todo.CONTENT_URI, rows);
+        assertEquals(2, mResolver.bulkInsert(Reminders.CONTENT_URI, kept));
+        ContentValues after = ItemsList.snapshot(mResolver, ItemsList.DELETE_PROJECTION, ids)[0];
+        assertEquals(before, after);
+
+        Cursor c = mResolver.query(reminders, new String[] { Reminders.MINUTES_BEFORE, Reminders.FIRE_DATE },
+                null, null, Reminders.DEFAULT_SORT_ORDER);
+        try {
+            assertEquals(2, c.getCount());
+            c.moveToFirst();
+            assertEquals(60, c.getInt(0));
+            assertEquals(time(2030, Calendar.MARCH, 3, 9), c.getLong(1));
+        } finally {
+            c.close();
+        }
+    }
+
+    private long folder(String name) {
+        ContentValues values = new ContentValues();
+        values.put(Folders.NAME, name);
+        Uri uri = mResolver.insert(Folders.CONTENT_URI, values);
+        return ContentUris.parseId(uri);
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import org.jetpad.quicktodofree.TodoEditor.LinedEditText;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.view.View.MeasureSpec;
+
+/**
+ * A note of 10k lines draws about as fast as a short one, because only
+ * the lines on the screen are ruled.
+ */
+public class LinedEditTextTest extends AndroidTestCase {
+    private static final int LINES = 10000;
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 800;
+    /** One frame at 60 frames a second */
+    private static final long FRAME_MILLIS = 16;
+    private static final int FRAMES = 20;
+
+    /** Counts the ruled lines drawn, told apart from the text by their paint */
+    private static class RuleCounter extends Canvas {
+        int lines;
+        float firstY = -1;
+
+        RuleCounter(Bitmap bitmap) {
+            super(bitmap);
+        }
+
+        @Override
+        public void drawLines(float[] pts, int offset, int count, Paint paint) {
+            if (paint.getColor() == 0x80AAAAFF) {
+                lines += count / 4;
+                if (firstY < 0 && count > 0) {
+                    firstY = pts[offset + 1];
+                }
+            }
+            super.drawLines(pts, offset, count, paint);
+        }
+    }
+
+    private LinedEditText mView;
+    private Bitmap mBitmap;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            text.append("Line ").append(i).append('\n');
+        }
+        mView = new LinedEditText(getContext(), null);
+        mView.setText(text);
+        mView.measure(MeasureSpec.makeMeasureSpec(WIDTH, MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED));
+        mView.layout(0, 0, WIDTH, mView.getMeasuredHeight());
+        mBitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBitmap.recycle();
+        super.tearDown();
+    }
+
+    /**
+     * Draws the view scrolled down by y, the way its parent would.
+     */
+    private RuleCounter draw(int y) {
+        RuleCounter canvas = new RuleCounter(mBitmap);
+        canvas.translate(0, -y);
+        mView.draw(canvas);
+        return canvas;
+    }
+
+    public void testOnlyVisibleLinesAreRuled() {
+        assertTrue(mView.getLineCount() > LINES);
+        int screenful = HEIGHT / mView.getLineHeight() + 2;
+
+        RuleCounter top = draw(0);
+        assertTrue(top.lines > 0);
+        assertTrue(top.lines <= screenful);
+
+        int middle = mView.getMeasuredHeight() / 2;
+        RuleCounter scrolled = draw(middle);
+        assertTrue(scrolled.lines > 0);
+        assertTrue(scrolled.lines <= screenful);
+        assertTrue(scrolled.firstY >= middle - mView.getLineHeight());
+    }
+
+    public void testFrameTime() {
+        int middle = mView.getMeasuredHeight() / 2;
+        // Warm up the text caches
+        draw(middle);
+
+        long start = SystemClock.uptimeMillis();
+        for (int i = 0; i < FRAMES; i++) {
+            draw(middle + i * mView.getLineHeight());
+        }
+        long perFrame = (SystemClock.uptimeMillis() - start) / FRAMES;
+        assertTrue("A frame took " + perFrame + "ms", perFrame < FRAME_MILLIS);
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * Upgrades a database from every version there has been and checks that it
+ * ends up with the schema of a new install, and with the todos it had.
+ * Version 4 is the first that was released, 3 stands for the development
+ * builds before it, which had fewer columns.
+ */
+public class MigrationTest extends AndroidTestCase {
+    private static final String NAME = "migration-test.db";
+    private static final String FRESH_NAME = "migration-fresh.db";
+
+    /** The due date of the repeating todo in every fixture from version 7 */
+    private static final long RENT_DUE = 1264950000000L;
+
+    private List<String> mFreshSchema;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(FRESH_NAME);
+        TodoProvider.DatabaseHelper fresh = new TodoProvider.DatabaseHelper(getContext(), FRESH_NAME);
+        try {
+            SQLiteDatabase db = fresh.getWritableDatabase();
+            mFreshSchema = schema(db);
+            assertRebuildTurnsOnIncrementalVacuum(db);
+        } finally {
+            fresh.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteDatabase(NAME);
+        getContext().deleteDatabase(FRESH_NAME);
+        super.tearDown();
+    }
+
+    public void testUpgradeFromEveryVersion() {
+        for (int version = 3; version < TodoProvider.DATABASE_VERSION; version++) {
+            createFixture(version);
+            TodoProvider.DatabaseHelper helper = new TodoProvider.DatabaseHelper(getContext(), NAME);
+            try {
+                SQLiteDatabase db = helper.getWritableDatabase();
+                assertEquals("From " + version, TodoProvider.DATABASE_VERSION, db.getVersion());
+                assertEquals("From " + version, mFreshSchema, schema(db));
+                assertTodos(version, db);
+            } finally {
+                helper.close();
+            }
+        }
+    }
+
+    public void testUpgradeTurnsOnIncrementalVacuum() {
+        createFixture(TodoProvider.DATABASE_VERSION - 1);
+        TodoProvider.DatabaseHelper helper = new TodoProvider.DatabaseHelper(getContext(), NAME);
+        try {
+            assertRebuildTurnsOnIncrementalVacuum(helper.getWritableDatabase());
+        } finally {
+            helper.close();
+        }
+    }
+
+    /**
+     * Opening leaves the rebuild to MaintenanceService, which takes it from
+     * there.
+     */
+    private void assertRebuildTurnsOnIncrementalVacuum(SQLiteDatabase db) {
+        assertTrue(StorageProfile.isRebuildPending(getContext(), db));
+        assertTrue(StorageProfile.rebuildIfPending(getContext(), db));
+        assertEquals("2", pragma(db, "auto_vacuum"));
+        assertFalse(StorageProfile.isRebuildPending(getContext(), db));
+        assertFalse(StorageProfile.rebuildIfPending(getContext(), db));
+    }
+
+    /**
+     * Leaves a database at NAME as the given version made it, with a few
+     * todos in it.
+     */
+    private void createFixture(int version) {
+        getContext().deleteDatabase(NAME);
+        SQLiteDatabase db = getContext().openOrCreateDatabase(NAME, 0, null);
+        try {
+            if (version == 3) {
+                db.execSQL("CREATE TABLE items (" + Todo._ID + " INTEGER PRIMARY KEY," + Todo.TITLE + " TEXT,"
+                        + Todo.NOTE + " TEXT," + Todo.CREATED_DATE + " INTEGER," + Todo.MODIFIED_DATE
+                        + " INTEGER);");
+            } else {
+                // As the first release created it
+                db.execSQL("CREATE TABLE items (" + Todo._ID + " INTEGER PRIMARY KEY," + Todo.TITLE + " TEXT,"
+                        + Todo.NOTE + " TEXT," + Todo.CREATED_DATE + " INTEGER," + Todo.MODIFIED_DATE
+                        + " INTEGER," + Todo.DUE_DATE + " INTEGER," + Todo.COMPLETED + " INTEGER,"
+                        + Todo.FOLDER + " INTEGER," + Todo.NOTIFY_DATE + " INTEGER," + Todo.CONTEXT
+                        + " INTEGER," + Todo.ICON + " INTEGER," + Todo.HAS_DUE_DATE + " INTEGER,"
+                        + Todo.HAS_REMINDER + " INTEGER," + Todo.IS_SCHEDULED + " INTEGER,"
+                        + Todo.PRIORITY + " INTEGER," + Todo.SCHEDULE_DATE + " INTEGER,"
+                        + Todo.INBOX + " INTEGER);");
+                new TodoProvider.DatabaseHelper(getContext(), NAME).migrate(db, 4, version);
+            }
+
+            insert(db, 1, "Milk", "Semi-skimmed");
+            insert(db, 2, "Call Bob", null);
+            if (version >= 7) {
+                ContentValues values = new ContentValues();
+                values.put(Todo._ID, 3);
+                values.put(Todo.TITLE, "Rent");
+                values.put(Todo.DUE_DATE, RENT_DUE);
+                values.put(Todo.HAS_DUE_DATE, 1);
+                values.put(Todo.RRULE, "FREQ=MONTHLY");
+                if (version >= 14) {
+                    values.put(Todo.SERIES_START, RENT_DUE);
+                }
+                assertTrue(db.insert("items", null, values) > 0);
+            }
+            db.setVersion(version);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void insert(SQLiteDatabase db, long id, String title, String note) {
+        ContentValues values = new ContentValues();
+        values.put(Todo._ID, id);
+        values.put(Todo.TITLE, title);
+        values.put(Todo.NOTE, note);
+        values.put(Todo.CREATED_DATE, 1000 * id);
+        values.put(Todo.MODIFIED_DATE, 2000 * id);
+        assertTrue(db.insert("items", null, values) > 0);
+    }
+
+    private static void assertTodos(int version, SQLiteDatabase db) {
+        String from = "From " + version;
+        // Notes may not have been moved to their own table yet
+        Cursor c = db.rawQuery("SELECT " + Todo._ID + "," + Todo.TITLE + ",ifnull((SELECT body FROM note_bodies"
+                + " WHERE note_bodies." + Todo._ID + "=items." + Todo._ID + ")," + Todo.NOTE + "),"
+                + Todo.CREATED_DATE + "," + Todo.DUE_DATE + "," + Todo.RRULE + "," + Todo.SERIES_START
+                + " FROM items ORDER BY " + Todo._ID, null);
+        try {
+            assertEquals(from, version >= 7 ? 3 : 2, c.getCount());
+            c.moveToNext();
+            assertEquals(from, "Milk", c.getString(1));
+            assertEquals(from, "Semi-skimmed", c.getString(2));
+            assertEquals(from, 1000, c.getLong(3));
+            c.moveToNext();
+            assertEquals(from, "Call Bob", c.getString(1));
+            assertTrue(from, c.isNull(2));
+            if (c.moveToNext()) {
+                assertEquals(from, RENT_DUE, c.getLong(4));
+                assertEquals(from, "FREQ=MONTHLY", c.getString(5));
+                // A series from before the start was kept starts at its due date
+                assertEquals(from, RENT_DUE, c.getLong(6));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Every table with its columns, and every index and trigger, sorted so
+     * that the order they were made in doesn't matter.
+     */
+    private static List<String> schema(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<String>();
+        Cursor c = db.rawQuery("SELECT type,name FROM sqlite_master WHERE name NOT LIKE 'sqlite_%'"
+                + " AND name!='android_metadata'", null);
+        try {
+            while (c.moveToNext()) {
+                String name = c.getString(1);
+                if (c.getString(0).equals("table")) {
+                    List<String> columns = TodoProvider.DatabaseHelper.columns(db, name);
+                    Collections.sort(columns);
+                    schema.add("table " + name + " " + columns);
+                } else {
+                    schema.add(c.getString(0) + " " + name);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        Collections.sort(schema);
+        return schema;
+    }
+
+    private static String pragma(SQLiteDatabase db, String pragma) {
+        Cursor c = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.io.File;
+
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The list query and the database size with 10 KB notes. Notes live in a
+ * side table, compressed, so the list does not page through them.
+ */
+public class NoteBodyBenchmark extends ProviderTest {
+    private static final String TAG = "NoteBodyBenchmark";
+    private static final int COUNT = 500;
+    private static final int NOTE_LENGTH = 10 * 1024;
+    private static final int RUNS = 5;
+
+    /** What the list asks for, no note */
+    private static final String[] LIST_PROJECTION = new String[] {
+        Todo._ID, Todo.TITLE, Todo.DUE_DATE, Todo.COMPLETED, Todo.HAS_DUE_DATE,
+    };
+
+    private static String note() {
+        StringBuilder note = new StringBuilder(NOTE_LENGTH);
+        int i = 0;
+        while (note.length() < NOTE_LENGTH) {
+            note.append("Buy ").append(i++).append(" things at the shop on the way home. ");
+        }
+        note.setLength(NOTE_LENGTH);
+        return note.toString();
+    }
+
+    private void insert(String note) {
+        ContentValues[] values = new ContentValues[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            values[i] = new ContentValues();
+            values[i].put(Todo.TITLE, "Todo " + i);
+            values[i].put(Todo.NOTE, note);
+        }
+        assertEquals(COUNT, mResolver.bulkInsert(Todo.CONTENT_URI, values));
+    }
+
+    /**
+     * The fastest of a few runs of the list query, read to the end.
+     */
+    private long listMillis() {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            long start = SystemClock.uptimeMillis();
+            Cursor c = mResolver.query(Todo.CONTENT_URI, LIST_PROJECTION, null, null,
+                    Todo.DEFAULT_SORT_ORDER);
+            try {
+                while (c.moveToNext()) {
+                    c.getString(1);
+                }
+            } finally {
+                c.close();
+            }
+            best = Math.min(best, SystemClock.uptimeMillis() - start);
+        }
+        return best;
+    }
+
+    private long databaseSize() {
+        File db = databaseFile();
+        return db.length() + new File(db.getPath() + "-wal").length();
+    }
+
+    public void testListQueryIgnoresNotes() {
+        insert(null);
+        long plain = listMillis();
+        mResolver.delete(Todo.CONTENT_URI, null, null);
+
+        insert(note());
+        long withNotes = listMillis();
+        Log.i(TAG, COUNT + " todos listed in " + plain + "ms without notes, "
+                + withNotes + "ms with 10 KB notes");
+        assertTrue("Listing took " + withNotes + "ms against " + plain + "ms",
+                withNotes <= 2 * plain + 20);
+    }
+
+    public void testNotesAreCompressed() {
+        insert(note());
+        long size = databaseSize();
+        Log.i(TAG, COUNT + " todos with 10 KB notes take " + size / 1024 + " KB");
+        assertTrue("The database takes " + size + " bytes",
+                size < COUNT * NOTE_LENGTH / 2);
+
+        Cursor c = mResolver.query(Todo.CONTENT_URI, new String[] { Todo.NOTE }, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(note(), c.getString(0));
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.io.File;
+import java.util.Calendar;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+
+/**
+ * Runs a TodoProvider of its own on a database of its own. The provider
+ * sees the app's preferences and services, only its files are renamed.
+ */
+public abstract class ProviderTest extends AndroidTestCase {
+    private static final String PREFIX = "test.";
+
+    private Context mProviderContext;
+    protected ContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProviderContext = new RenamingDelegatingContext(getContext(), PREFIX);
+        mProviderContext.deleteDatabase("QuickTodo.db");
+        TodoProvider provider = newProvider();
+        provider.attachInfo(mProviderContext, null);
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(QuickTodo.AUTHORITY, provider);
+        mResolver = resolver;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mProviderContext.deleteDatabase("QuickTodo.db");
+        super.tearDown();
+    }
+
+    /**
+     * The test database's file, without its journal.
+     */
+    protected File databaseFile() {
+        return mProviderContext.getDatabasePath("QuickTodo.db");
+    }
+
+    /**
+     * The provider to test, for tests that need to watch it.
+     */
+    protected TodoProvider newProvider() {
+        return new TodoProvider();
+    }
+
+    protected static long time(int year, int month, int day, int hour) {
+        Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set(year, month, day, hour, 0);
+        return c.getTimeInMillis();
+    }
+}
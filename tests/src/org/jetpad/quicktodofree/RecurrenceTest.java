@@ -0,0 +1,124 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * The occurrence math behind completing a repeating todo. Runs in a zone
+ * with daylight saving so the changeovers are covered too.
+ */
+public class RecurrenceTest extends TestCase {
+    private TimeZone mDefaultZone;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDefaultZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("America/New_York"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TimeZone.setDefault(mDefaultZone);
+        super.tearDown();
+    }
+
+    private static long time(int year, int month, int day, int hour) {
+        Calendar c = Calendar.getInstance();
+        c.clear();
+        c.set(year, month, day, hour, 0);
+        return c.getTimeInMillis();
+    }
+
+    public void testParseAndToString() {
+        assertNull(Recurrence.parse(null));
+        assertNull(Recurrence.parse(""));
+        assertEquals("FREQ=DAILY", Recurrence.parse("FREQ=DAILY").toString());
+        assertEquals("FREQ=WEEKLY;INTERVAL=2", Recurrence.parse("freq=weekly; interval=2").toString());
+        assertEquals("FREQ=MONTHLY;UNTIL=20100301T120000Z",
+                Recurrence.parse("FREQ=MONTHLY;UNTIL=20100301T120000Z").toString());
+    }
+
+    public void testBadRules() {
+        String[] bad = { "FREQ=YEARLY", "INTERVAL=2", "FREQ=DAILY;INTERVAL=x", "FREQ=DAILY;INTERVAL=0",
+                "FREQ", "FREQ=DAILY;UNTIL=soon" };
+        for (String rule : bad) {
+            try {
+                Recurrence.parse(rule);
+                fail(rule);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    public void testDaily() {
+        Recurrence daily = Recurrence.parse("FREQ=DAILY");
+        long start = time(2010, Calendar.JANUARY, 1, 9);
+        assertEquals(time(2010, Calendar.JANUARY, 2, 9), daily.nextAfter(start, start));
+        assertEquals(time(2010, Calendar.JANUARY, 2, 9), daily.nextAfter(start, start - 1000));
+        Recurrence everyThird = Recurrence.parse("FREQ=DAILY;INTERVAL=3");
+        assertEquals(time(2010, Calendar.JANUARY, 4, 9), everyThird.nextAfter(start, start));
+    }
+
+    public void testWeeklyOverdue() {
+        Recurrence weekly = Recurrence.parse("FREQ=WEEKLY");
+        long start = time(2010, Calendar.JANUARY, 1, 9);
+        // Skips the occurrences missed while it was overdue
+        assertEquals(time(2010, Calendar.JANUARY, 15, 9),
+                weekly.nextAfter(start, time(2010, Calendar.JANUARY, 10, 12)));
+        assertEquals(time(2011, Calendar.JANUARY, 7, 9),
+                weekly.nextAfter(start, time(2011, Calendar.JANUARY, 1, 9)));
+    }
+
+    public void testKeepsTimeOfDayOverDaylightSaving() {
+        Recurrence daily = Recurrence.parse("FREQ=DAILY");
+        long start = time(2010, Calendar.MARCH, 13, 9);
+        assertEquals(time(2010, Calendar.MARCH, 14, 9), daily.nextAfter(start, start));
+        assertEquals(time(2010, Calendar.NOVEMBER, 8, 9),
+                daily.nextAfter(start, time(2010, Calendar.NOVEMBER, 7, 12)));
+    }
+
+    public void testMonthlyFromTheEndOfAMonth() {
+        Recurrence monthly = Recurrence.parse("FREQ=MONTHLY");
+        long start = time(2010, Calendar.JANUARY, 31, 9);
+        long feb = monthly.nextAfter(start, start);
+        assertEquals(time(2010, Calendar.FEBRUARY, 28, 9), feb);
+        // Each occurrence comes from the start of the series, not the one
+        // before it, so February doesn't move the rest to the 28th
+        long mar = monthly.nextAfter(start, feb);
+        assertEquals(time(2010, Calendar.MARCH, 31, 9), mar);
+        long apr = monthly.nextAfter(start, mar);
+        assertEquals(time(2010, Calendar.APRIL, 30, 9), apr);
+        assertEquals(time(2010, Calendar.MAY, 31, 9), monthly.nextAfter(start, apr));
+        assertEquals(time(2012, Calendar.FEBRUARY, 29, 9),
+                monthly.nextAfter(start, time(2012, Calendar.FEBRUARY, 1, 9)));
+    }
+
+    public void testUntil() {
+        Recurrence daily = Recurrence.parse("FREQ=DAILY;UNTIL=20100103");
+        long start = time(2010, Calendar.JANUARY, 1, 9);
+        assertEquals(time(2010, Calendar.JANUARY, 2, 9), daily.nextAfter(start, start));
+        assertEquals(0, daily.nextAfter(start, time(2010, Calendar.JANUARY, 2, 9)));
+    }
+}
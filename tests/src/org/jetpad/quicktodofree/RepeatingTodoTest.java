@@ -0,0 +1,111 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.util.Calendar;
+
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Completing a repeating todo moves it on to its next occurrence instead.
+ * The due dates are years ahead, so now is never past them.
+ */
+public class RepeatingTodoTest extends ProviderTest {
+    private Uri insert(String title, long due, String rule) {
+        ContentValues values = new ContentValues();
+        values.put(Todo.TITLE, title);
+        values.put(Todo.DUE_DATE, due);
+        values.put(Todo.HAS_DUE_DATE, 1);
+        values.put(Todo.RRULE, rule);
+        return mResolver.insert(Todo.CONTENT_URI, values);
+    }
+
+    private void complete(Uri uri, String where, String[] whereArgs) {
+        ContentValues values = new ContentValues();
+        values.put(Todo.COMPLETED, 1);
+        mResolver.update(uri, values, where, whereArgs);
+    }
+
+    private void assertOpenAndDue(Uri uri, long due) {
+        Cursor c = mResolver.query(uri, new String[] { Todo.COMPLETED, Todo.DUE_DATE }, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(0, c.getInt(0));
+            assertEquals(due, c.getLong(1));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testCompleteMovesOnFromTheEndOfAMonth() {
+        Uri uri = insert("Rent", time(2030, Calendar.JANUARY, 31, 9), "FREQ=MONTHLY");
+        complete(uri, null, null);
+        assertOpenAndDue(uri, time(2030, Calendar.FEBRUARY, 28, 9));
+        complete(uri, null, null);
+        assertOpenAndDue(uri, time(2030, Calendar.MARCH, 31, 9));
+        complete(uri, null, null);
+        assertOpenAndDue(uri, time(2030, Calendar.APRIL, 30, 9));
+    }
+
+    public void testEditingTheDueDateStartsTheSeriesOver() {
+        Uri uri = insert("Rent", time(2030, Calendar.JANUARY, 31, 9), "FREQ=MONTHLY");
+        ContentValues values = new ContentValues();
+        values.put(Todo.DUE_DATE, time(2030, Calendar.JANUARY, 15, 9));
+        mResolver.update(uri, values, null, null);
+        complete(uri, null, null);
+        assertOpenAndDue(uri, time(2030, Calendar.FEBRUARY, 15, 9));
+    }
+
+    public void testBulkComplete() {
+        Uri weekly = insert("Bins", time(2030, Calendar.JANUARY, 1, 9), "FREQ=WEEKLY");
+        Uri daily = insert("Walk", time(2030, Calendar.JANUARY, 1, 7), "FREQ=DAILY");
+        Uri once = insert("Dentist", time(2030, Calendar.JANUARY, 1, 10), null);
+        complete(Todo.CONTENT_URI, Todo._ID + " IN (?,?,?)", new String[] {
+            String.valueOf(ContentUris.parseId(weekly)), String.valueOf(ContentUris.parseId(daily)),
+            String.valueOf(ContentUris.parseId(once)),
+        });
+        assertOpenAndDue(weekly, time(2030, Calendar.JANUARY, 8, 9));
+        assertOpenAndDue(daily, time(2030, Calendar.JANUARY, 2, 7));
+
+        Cursor c = mResolver.query(once, new String[] { Todo.COMPLETED }, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(1, c.getInt(0));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testEndedSeriesStaysCompleted() {
+        Uri uri = insert("Course", time(2030, Calendar.JANUARY, 1, 9), "FREQ=DAILY;UNTIL=20300101");
+        complete(uri, null, null);
+        Cursor c = mResolver.query(uri, new String[] { Todo.COMPLETED }, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(1, c.getInt(0));
+        } finally {
+            c.close();
+        }
+    }
+}
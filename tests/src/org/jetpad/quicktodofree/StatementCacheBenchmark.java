@@ -0,0 +1,97 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * CPU time per write for the provider's common writes, which go through
+ * its cache of compiled statements.
+ */
+public class StatementCacheBenchmark extends ProviderTest {
+    private static final String TAG = "StatementCacheBenchmark";
+    private static final int WRITES = 200;
+    /** Generous, a write includes its notification and alarm update */
+    private static final long BUDGET_MILLIS = 10;
+
+    private Uri insert(int i) {
+        ContentValues values = new ContentValues();
+        values.put(Todo.TITLE, "Todo " + i);
+        return mResolver.insert(Todo.CONTENT_URI, values);
+    }
+
+    /**
+     * Logs and checks the CPU time per write since start, in milliseconds
+     * of process CPU time.
+     */
+    private void assertPerWrite(String what, long start) {
+        long perWrite = (Process.getElapsedCpuTime() - start) / WRITES;
+        Log.i(TAG, what + ": " + perWrite + "ms of CPU a write");
+        assertTrue(what + " took " + perWrite + "ms a write", perWrite < BUDGET_MILLIS);
+    }
+
+    public void testEditorSave() {
+        Uri uri = insert(0);
+        // Compile the statement before timing
+        ContentValues values = new ContentValues();
+        values.put(Todo.TITLE, "Warm");
+        mResolver.update(uri, values, null, null);
+
+        long start = Process.getElapsedCpuTime();
+        for (int i = 0; i < WRITES; i++) {
+            values = new ContentValues();
+            values.put(Todo.MODIFIED_DATE, System.currentTimeMillis());
+            values.put(Todo.TITLE, "Todo " + i);
+            values.put(Todo.NOTE, "Note " + i);
+            values.put(Todo.DUE_DATE, time(2030, 0, 1 + i % 28, 9));
+            values.put(Todo.HAS_DUE_DATE, 1);
+            values.put(Todo.COMPLETED, 0);
+            mResolver.update(uri, values, null, null);
+        }
+        assertPerWrite("Editor save", start);
+    }
+
+    public void testToggleCompleted() {
+        Uri uri = insert(0);
+        long start = Process.getElapsedCpuTime();
+        for (int i = 0; i < WRITES; i++) {
+            ContentValues values = new ContentValues();
+            values.put(Todo.COMPLETED, i % 2);
+            mResolver.update(uri, values, null, null);
+        }
+        assertPerWrite("Toggle completed", start);
+    }
+
+    public void testInsertAndDelete() {
+        Uri[] uris = new Uri[WRITES / 2];
+        long start = Process.getElapsedCpuTime();
+        for (int i = 0; i < uris.length; i++) {
+            uris[i] = insert(i);
+        }
+        for (int i = 0; i < uris.length; i++) {
+            assertEquals(1, mResolver.delete(uris[i], null, null));
+        }
+        assertPerWrite("Insert and delete", start);
+    }
+}
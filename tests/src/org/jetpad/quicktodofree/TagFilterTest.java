@@ -0,0 +1,93 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import org.jetpad.quicktodofree.QuickTodo.Tags;
+import org.jetpad.quicktodofree.QuickTodo.Todo;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * A tag filtered list picks up tagging done after it was first read, when
+ * it is requeried.
+ */
+public class TagFilterTest extends ProviderTest {
+    private static final String[] PROJECTION = new String[] { Todo._ID, Todo.TITLE };
+
+    private static final Uri WORK = Todo.CONTENT_URI.buildUpon()
+            .appendQueryParameter(Tags.PARAM_ALL, "work").build();
+
+    private long[] insert(int count, String tags) {
+        ContentValues[] values = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = new ContentValues();
+            values[i].put(Todo.TITLE, "A todo with a title long enough to fill the cache " + i);
+            values[i].put(Todo.TAGS, tags);
+        }
+        assertEquals(count, mResolver.bulkInsert(Todo.CONTENT_URI, values));
+        Cursor c = mResolver.query(Todo.CONTENT_URI, PROJECTION, null, null, null);
+        long[] ids = new long[c.getCount()];
+        while (c.moveToNext()) {
+            ids[c.getPosition()] = c.getLong(0);
+        }
+        c.close();
+        return ids;
+    }
+
+    private void tag(long id, String tags) {
+        ContentValues values = new ContentValues();
+        values.put(Todo.TAGS, tags);
+        mResolver.update(ContentUris.withAppendedId(Todo.CONTENT_URI, id), values, null, null);
+    }
+
+    private void assertRequeryFollowsTags(int count) {
+        long[] ids = insert(count, "work");
+        long untagged = ids[0];
+        tag(untagged, "home");
+
+        Cursor c = mResolver.query(WORK, PROJECTION, null, null, null);
+        try {
+            assertEquals(count - 1, c.getCount());
+            tag(untagged, "home,work");
+            tag(ids[1], "");
+            assertTrue(c.requery());
+            assertEquals(count - 1, c.getCount());
+            boolean found = false;
+            while (c.moveToNext()) {
+                assertTrue(c.getLong(0) != ids[1]);
+                found |= c.getLong(0) == untagged;
+            }
+            assertTrue(found);
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testRequeryOfACachedList() {
+        assertRequeryFollowsTags(10);
+    }
+
+    public void testRequeryOfAListTooBigToCache() {
+        // Well over QueryCache.MAX_ENTRY_BYTES of rows
+        assertRequeryFollowsTags(2000);
+    }
+}
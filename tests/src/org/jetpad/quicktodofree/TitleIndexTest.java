@@ -0,0 +1,70 @@
+/**
+ * ------------------------------------------------------------
+ *                       QuickTodo Lite
+ * ------------------------------------------------------------
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jetpad.quicktodofree;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class TitleIndexTest extends TestCase {
+    private TitleIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mIndex = TitleIndex.build(new long[] { 1, 2, 3, 4, 5 }, new String[] {
+            "Buy milk", "Call Bob about the milk-float", "Book flights", null, "buy BOOKS, buy milk",
+        });
+    }
+
+    private void assertFinds(String query, long... ids) {
+        assertEquals(query, Arrays.toString(ids), Arrays.toString(mIndex.find(TitleIndex.words(query))));
+    }
+
+    public void testWords() {
+        assertEquals("[buy, books, buy, milk]", Arrays.toString(TitleIndex.words("buy BOOKS, buy milk")));
+        assertEquals("[milk, float, 2]", Arrays.toString(TitleIndex.words("  milk-float #2 ")));
+        assertEquals(0, TitleIndex.words(" ,.; ").length);
+    }
+
+    public void testFind() {
+        assertFinds("milk", 1, 2, 5);
+        assertFinds("MIL", 1, 2, 5);
+        assertFinds("bo", 2, 3, 5);
+        assertFinds("book", 3, 5);
+        assertFinds("buy milk", 1, 5);
+        assertFinds("milk buy", 1, 5);
+        assertFinds("flo mi", 2);
+        assertFinds("tea");
+        assertFinds("");
+    }
+
+    public void testNarrow() {
+        long[] bo = mIndex.find(TitleIndex.words("bo"));
+        assertEquals("[3, 5]", Arrays.toString(mIndex.narrow(bo, TitleIndex.words("boo"))));
+        assertEquals("[5]", Arrays.toString(mIndex.narrow(bo, TitleIndex.words("boo bu"))));
+        // An empty title matches nothing, nor does an id deleted since
+        assertEquals("[]", Arrays.toString(mIndex.narrow(new long[] { 4, 9 }, TitleIndex.words("b"))));
+    }
+
+    public void testEscapeLike() {
+        assertEquals("milk", TitleSearch.escapeLike("milk"));
+        assertEquals("50\\%\\_off\\\\", TitleSearch.escapeLike("50%_off\\"));
+    }
+}